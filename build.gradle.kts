@@ -58,10 +58,22 @@ dependencies {
 	antlr("org.antlr:antlr4:4.13.1")
 }
 
-tasks.withType<Test> {
-	useJUnitPlatform()
+tasks.test {
+	useJUnitPlatform {
+		excludeTags("benchmark")
+	}
 	finalizedBy(tasks.jacocoTestReport) // report is always generated after tests run
 }
+
+tasks.register<Test>("benchmark") {
+	description = "Runs the tests tagged benchmark, which log timings."
+	group = "verification"
+	testClassesDirs = sourceSets.test.get().output.classesDirs
+	classpath = sourceSets.test.get().runtimeClasspath
+	useJUnitPlatform {
+		includeTags("benchmark")
+	}
+}
 tasks.processResources {
 	filesMatching("application.properties") {
 		expand (project.properties)
@@ -35,8 +35,14 @@ DASH: '-' ;
 
 NUM : [0-9]+ ;
 
+// A run of plain text, which may contain spaces or tabs between its characters but does not start or end with them.
+// Anything which could begin another token is excluded, so text up to the next piece of markup lexes as one token.
 WORD
-    : [A-Z0-9a-z]+
+    : TEXT_CHAR+ ( [ \t]+ TEXT_CHAR+ )*
+    ;
+
+fragment TEXT_CHAR
+    : ~[\r\n \t=[\]|*\-/_'<>%{}~^\\]
     ;
 
 
@@ -53,6 +53,12 @@ public class AdminController {
     @Autowired
     GlobalSettingsService globalSettingsService;
 
+    @Autowired
+    RenderBudgetService renderBudgetService;
+
+    @Autowired
+    RenderedPageCache renderedPageCache;
+
     @PostMapping("regenLinkTable/{site}")
     public ResponseEntity<Void> regenLinkTable(@PathVariable("site") String site, Principal principal) {
         User user = userService.getUser(principal.getName());
@@ -75,6 +81,26 @@ public class AdminController {
         return ResponseEntity.ok().build();
     }
 
+    @GetMapping("renderOverruns/{site}")
+    public ResponseEntity<List<RenderBudgetService.Overrun>> getRenderOverruns(@PathVariable("site") String site, Principal principal) {
+        User user = userService.getUser(principal.getName());
+        Set<String> roles = user.roles.stream().map(ur -> ur.role).collect(Collectors.toSet());
+        if (!roles.contains("ROLE_ADMIN") && !roles.contains("ROLE_ADMIN:" + site)) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        return ResponseEntity.ok(renderBudgetService.getOverruns(site));
+    }
+
+    @GetMapping("renderedPageCacheStats")
+    public ResponseEntity<RenderedPageCache.Stats> getRenderedPageCacheStats(Principal principal) {
+        User user = userService.getUser(principal.getName());
+        Set<String> roles = user.roles.stream().map(ur -> ur.role).collect(Collectors.toSet());
+        if (!roles.contains("ROLE_ADMIN")) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        return ResponseEntity.ok(renderedPageCache.getStats());
+    }
+
     @GetMapping("getUsers")
     public ResponseEntity<List<UserDTO>> getUsers(Principal principal) {
         User user = userService.getUser(principal.getName());
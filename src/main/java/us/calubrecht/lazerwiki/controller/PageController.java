@@ -2,7 +2,10 @@ package us.calubrecht.lazerwiki.controller;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.util.Pair;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.bind.annotation.RestController;
@@ -24,9 +27,11 @@ import us.calubrecht.lazerwiki.service.exception.PageWriteException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.Principal;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping(value={"api/page/", "app/api/page/"})
@@ -43,11 +48,26 @@ public class PageController {
     @Autowired
     PageLockService pageLockService;
 
+    // Pages, current or past, change with the site, so clients check back each time
+    static final CacheControl REVALIDATE = CacheControl.noCache().cachePrivate();
+    // Diffs are made from the revisions' source alone, so never change
+    static final CacheControl IMMUTABLE = CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate().immutable();
+
     @RequestMapping(value = {"/get/{pageDescriptor}", "/get/"})
-    public PageData getPage(@PathVariable Optional<String> pageDescriptor, Principal principal, HttpServletRequest request ) throws MalformedURLException {
+    public ResponseEntity<byte[]> getPage(@PathVariable Optional<String> pageDescriptor, Principal principal, HttpServletRequest request ) throws MalformedURLException {
         URL url = new URL(request.getRequestURL().toString());
         String userName = principal == null ? "Guest" : principal.getName();
-        return renderService.getRenderedPage(url.getHost(), pageDescriptor.orElse(""), userName);
+        String eTag = renderService.getPageETag(url.getHost(), pageDescriptor.orElse(""), userName);
+        if (notModified(request, eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(REVALIDATE).build();
+        }
+        // Users with the same roles all see the same page, which is kept serialized
+        RenderService.PageJson page = renderService.getPageJson(url.getHost(), pageDescriptor.orElse(""), userName);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).cacheControl(REVALIDATE);
+        if (page.shareable()) {
+            response.eTag(eTag);
+        }
+        return response.body(page.json());
     }
 
     @RequestMapping(value = {"/history/{pageDescriptor}", "/history/"})
@@ -62,23 +82,50 @@ public class PageController {
     }
 
     @RequestMapping(value = {"/getHistorical/{pageDescriptor}/{revision}", "/getHistorical/{revision}"})
-    public PageData getPageHistorical(@PathVariable Optional<String> pageDescriptor, @PathVariable long revision, Principal principal, HttpServletRequest request ) throws MalformedURLException {
+    public ResponseEntity<PageData> getPageHistorical(@PathVariable Optional<String> pageDescriptor, @PathVariable long revision, Principal principal, HttpServletRequest request ) throws MalformedURLException {
         URL url = new URL(request.getRequestURL().toString());
         String userName = principal == null ? "Guest" : principal.getName();
-        return renderService.getHistoricalRenderedPage(url.getHost(), pageDescriptor.orElse(""), revision, userName);
+        String eTag = renderService.getHistoricalPageETag(url.getHost(), pageDescriptor.orElse(""), revision, userName);
+        if (notModified(request, eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(REVALIDATE).build();
+        }
+        RenderService.RenderedPage page = renderService.renderHistoricalPage(url.getHost(), pageDescriptor.orElse(""), revision, userName);
+        if (!page.shareable() || eTag == null) {
+            return ResponseEntity.ok(page.page());
+        }
+        // Rendered with the site as it is now, so checked again on each view
+        return ResponseEntity.ok().eTag(eTag).cacheControl(REVALIDATE).body(page.page());
     }
 
     @RequestMapping(value = {"/diff/{pageDescriptor}/{rev1}/{rev2}", "/diff/{rev1}/{rev2}"})
     public ResponseEntity<List<Pair<Integer,String>>> getPageDiff(@PathVariable Optional<String> pageDescriptor, @PathVariable Long rev1, @PathVariable Long rev2, Principal principal, HttpServletRequest request ) throws MalformedURLException {
         URL url = new URL(request.getRequestURL().toString());
         String userName = principal == null ? "Guest" : principal.getName();
+        String eTag = renderService.getPageDiffETag(url.getHost(), pageDescriptor.orElse(""), rev1, rev2, userName);
+        if (notModified(request, eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(IMMUTABLE).build();
+        }
         try {
-            return ResponseEntity.ok(pageService.getPageDiff(url.getHost(), pageDescriptor.orElse(""), rev1, rev2, userName));
+            List<Pair<Integer,String>> diff = pageService.getPageDiff(url.getHost(), pageDescriptor.orElse(""), rev1, rev2, userName);
+            return eTag == null ? ResponseEntity.ok(diff) : ResponseEntity.ok().eTag(eTag).cacheControl(IMMUTABLE).body(diff);
         } catch (PageReadException e) {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
         }
     }
 
+    /**
+     * Whether the client already has the response tagged eTag. Tags are only computed for responses the user can read.
+     */
+    static boolean notModified(HttpServletRequest request, String eTag) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (eTag == null || ifNoneMatch == null) {
+            return false;
+        }
+        return Arrays.stream(ifNoneMatch.split(",")).map(String::trim).
+                map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag).
+                anyMatch(tag -> tag.equals(eTag) || tag.equals("*"));
+    }
+
     @PostMapping(value = { "/savePage", "{pageDescriptor}/savePage"})
     public PageData savePage(@PathVariable Optional<String> pageDescriptor, Principal principal, HttpServletRequest request, @RequestBody SavePageRequest body) throws MalformedURLException, PageWriteException {
         URL url = new URL(request.getRequestURL().toString());
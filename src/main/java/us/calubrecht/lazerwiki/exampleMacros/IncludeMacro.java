@@ -4,6 +4,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import us.calubrecht.lazerwiki.macro.CustomMacro;
 import us.calubrecht.lazerwiki.macro.Macro;
 
+import java.time.Duration;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Optional;
@@ -48,6 +49,13 @@ public class IncludeMacro extends Macro {
         context.addLinks(List.of(includePath));
         return false;}
 
+    @Override
+    public Duration getResultCacheTtl() {
+        // Reused until the included page, or a page it links to, changes
+        return Duration.ofMinutes(10);
+    }
+
+    @SuppressWarnings("unchecked")
     @Override
     public String render(MacroContext context, String macroArgs) {
         if (context.isPlaintextRender()) {
@@ -56,6 +64,11 @@ public class IncludeMacro extends Macro {
         String includePath = macroArgs.trim();
         context.addLinks(List.of(includePath));
         MacroContext.RenderOutput p = context.renderPage(includePath);
+        // Links show their target's title and whether it exists
+        Collection<String> links = (Collection<String>) p.getState().get(LINKS.name());
+        if (links != null) {
+            links.forEach(context::addDependency);
+        }
         context.setPageDontCache();
         if (p.getState().get("userCanWrite").toString().equals("true")) {
             return "<div class=\"include\">%s<a href=\"/page/%s#Edit\" className=\"includePageLink\">Edit %s</a></div>".formatted(p.getHtml(), includePath,includePath);
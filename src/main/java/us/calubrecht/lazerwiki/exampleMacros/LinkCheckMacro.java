@@ -3,6 +3,7 @@ package us.calubrecht.lazerwiki.exampleMacros;
 import us.calubrecht.lazerwiki.macro.CustomMacro;
 import us.calubrecht.lazerwiki.macro.Macro;
 
+import java.time.Duration;
 import java.util.*;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -56,6 +57,12 @@ public class LinkCheckMacro extends Macro{
     @Override
     public boolean allowCache(MacroContext context, String macroArgs) {return false;}
 
+    @Override
+    public Duration getResultCacheTtl() {
+        // Reads every page, so is rerun after any page in the site changes.
+        return Duration.ofHours(1);
+    }
+
     @Override
     public String render(Macro.MacroContext context, String macroArgs) {
         Map<String, String> argsMap = toArgsMap(macroArgs);
@@ -84,10 +91,13 @@ public class LinkCheckMacro extends Macro{
         Set<String> allPages = caseInsensitiveMapping.keySet();
         Set<String> linkedTo = new HashSet<>();
         Map<String, List<String>> brokenLinks = new HashMap<>();
+        // Links to unreadable pages are already left out of the graph
+        Map<String, List<String>> linkGraph = new HashMap<>();
+        context.getLinkGraph().forEach((page, links) -> linkGraph.computeIfAbsent(page.toLowerCase(), k -> new ArrayList<>()).addAll(links));
         allPages.stream().sorted().forEach(page -> {
-            List<String> links = context.getLinksOnPage(caseInsensitiveMapping.get(page));
+            List<String> links = linkGraph.getOrDefault(page, List.of());
             linkedTo.addAll(links.stream().map(String::toLowerCase).filter(l -> allPages.contains(l)).collect(Collectors.toList()));
-            links.stream().filter(l -> !allPages.contains(l.toLowerCase())).filter(context::isReadable).forEach(l -> {
+            links.stream().filter(l -> !allPages.contains(l.toLowerCase())).forEach(l -> {
                 brokenLinks.computeIfAbsent(l.toLowerCase(), (k)-> new ArrayList<>()).add(page);
                 // Record case of first existence of link
                 if (!brokenLinksMapping.containsKey(l.toLowerCase())) {
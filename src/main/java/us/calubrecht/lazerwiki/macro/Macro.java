@@ -2,7 +2,9 @@ package us.calubrecht.lazerwiki.macro;
 
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class Macro {
 
@@ -16,6 +18,15 @@ public abstract class Macro {
 
     public boolean allowCache(MacroContext context, String macroArgs) { return true;}
 
+    /**
+     * For macros that can't be in the page cache, how long their output may be reused for other views. Reused output is
+     * dropped early if any page read through the MacroContext, or declared with addDependency, changes. Zero means the
+     * macro runs on every view. Can be overridden with lazerwiki.macro.[name].result.cache.seconds
+     */
+    public Duration getResultCacheTtl() {
+        return Duration.ZERO;
+    }
+
     /**
      * If macroArgs is of the format "key1=val1&key2=val2", will split the argument into a Map<String, String>
      * If macroArgs is in some other format, macro is responsible for parsing it itself.
@@ -46,16 +57,49 @@ public abstract class Macro {
 
         boolean isReadable(String pageDescriptor);
 
+        /*
+         * Non-blocking versions of the calls above, for macros that fan out over many pages. They run on a shared
+         * pool, and getCachedRenderAsync calls made close together are fetched as one batch. Call them from the thread
+         * render was called on, and wait for the results before returning from render.
+         */
+        CompletableFuture<RenderOutput> renderPageAsync(String pageDescriptor);
+        CompletableFuture<RenderOutput> getCachedRenderAsync(String pageDescriptor);
+        CompletableFuture<List<String>> getPagesByNSAndTagAsync(String ns, String tag);
+        CompletableFuture<List<String>> getLinksOnPageAsync(String page);
+
         List<String> getLinksOnPage(String page);
 
+        /**
+         * Links on every readable page in the site with overrides applied, keyed by page. Cheaper than calling
+         * getLinksOnPage for each page, and links to pages the user can't read are already left out.
+         */
+        Map<String, List<String>> getLinkGraph();
+
         RenderOutput renderMarkup(String markup);
 
         void setPageDontCache();
 
+        /**
+         * True once the macro has used up its render time or node budget. Sub-renders stop on their own, macros that
+         * do a lot of work between them should check this and return what they have.
+         */
+        boolean isOverBudget();
+
         boolean isPlaintextRender();
 
         void addLinks(Collection<String> newLinks);
 
+        /**
+         * Declare that the output depends on a page not read through this context. Pages that are read through it are
+         * tracked already.
+         */
+        void addDependency(String pageDescriptor);
+
+        /**
+         * Declare that the output depends on every page in the site.
+         */
+        void addSiteDependency();
+
         public static abstract class RenderOutput {
             public abstract String getHtml();
             public abstract Map<String,Object> getState();
@@ -33,6 +33,7 @@ public class PageCache implements PageDesc {
     @Id
     public String pageName;
 
+    // Html with link slots and uncachable macros still to be filled in, see MacroService.postRender
     public String renderedCache;
     public String plaintextCache;
     public String source;
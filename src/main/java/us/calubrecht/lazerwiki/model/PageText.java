@@ -1,11 +1,5 @@
 package us.calubrecht.lazerwiki.model;
 
-public interface PageText {
-    String getNamespace();
-
-    String getPagename();
-
-    String getTitle();
-
+public interface PageText extends PageTitle {
     String getText();
 }
@@ -0,0 +1,9 @@
+package us.calubrecht.lazerwiki.model;
+
+public interface PageTitle {
+    String getNamespace();
+
+    String getPagename();
+
+    String getTitle();
+}
@@ -0,0 +1,7 @@
+package us.calubrecht.lazerwiki.model;
+
+public interface PageVersion {
+    Long getId();
+
+    Long getRevision();
+}
@@ -1,10 +1,14 @@
 package us.calubrecht.lazerwiki.repository;
 
+import jakarta.persistence.QueryHint;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 import us.calubrecht.lazerwiki.model.Link;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 @Repository
 public interface LinkRepository extends CrudRepository<Link, Long> {
@@ -14,4 +18,19 @@ public interface LinkRepository extends CrudRepository<Link, Long> {
     void deleteBySiteAndSourcePageNSAndSourcePageName(String site, String sourcePageNS, String sourcePageName);
 
     void deleteBySite(String site);
+
+    interface LinkEdge {
+        String getSourcePageNS();
+        String getSourcePageName();
+        String getTargetPageNS();
+        String getTargetPageName();
+    }
+
+    // Every link in the site, with link overrides applied to the target. Must be consumed inside a transaction.
+    @Query(value="SELECT l.sourcePageNS as sourcePageNS, l.sourcePageName as sourcePageName, " +
+            "COALESCE(o.newTargetPageNS, l.targetPageNS) as targetPageNS, COALESCE(o.newTargetPageName, l.targetPageName) as targetPageName " +
+            "FROM links l LEFT JOIN linkOverrides o ON o.site = l.site AND o.sourcePageNS = l.sourcePageNS AND o.sourcePageName = l.sourcePageName " +
+            "AND o.targetPageNS = l.targetPageNS AND o.targetPageName = l.targetPageName WHERE l.site = :site ORDER BY l.id")
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "500"))
+    Stream<LinkEdge> streamLinkGraph(String site);
 }
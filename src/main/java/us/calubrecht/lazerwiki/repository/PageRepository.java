@@ -9,6 +9,8 @@ import us.calubrecht.lazerwiki.model.Page;
 import us.calubrecht.lazerwiki.model.PageDesc;
 import us.calubrecht.lazerwiki.model.PageKey;
 import us.calubrecht.lazerwiki.model.PageText;
+import us.calubrecht.lazerwiki.model.PageTitle;
+import us.calubrecht.lazerwiki.model.PageVersion;
 
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -21,6 +23,7 @@ public interface PageRepository extends CrudRepository<Page, PageKey> {
     <T> T findBySiteAndNamespaceAndPagenameAndValidts(String site, String namespace, String pagename, LocalDateTime validts, Class<T> type);
 
     Page findBySiteAndNamespaceAndPagenameAndRevision(String site, String namespace, String pagename, long revision);
+    <T> T findBySiteAndNamespaceAndPagenameAndRevision(String site, String namespace, String pagename, long revision, Class<T> type);
     List<PageDesc> findAllBySiteAndValidtsAndDeletedOrderByModifiedDesc(String site, LocalDateTime validts, boolean deleted);
     List<PageDesc> findAllBySiteAndNamespaceInOrderByModifiedDesc(Limit limit, String site, List<String> namespaces);
     List<PageDesc> findAllBySiteAndNamespaceAndPagenameOrderByRevision(String site, String namespace, String pagename);
@@ -50,6 +53,11 @@ public interface PageRepository extends CrudRepository<Page, PageKey> {
         return desc == null ? null : desc.getRevision();
     }
 
+    default PageVersion getVersionBySiteAndNamespaceAndPagename(String site, String namespace, String pagename)
+    {
+        return findBySiteAndNamespaceAndPagenameAndValidts(site, namespace, pagename, MAX_DATE, PageVersion.class);
+    }
+
     default List<PageDesc> getAllValid(String site)
     {
         return findAllBySiteAndValidtsAndDeletedOrderByModifiedDesc(site, MAX_DATE, false);
@@ -59,6 +67,10 @@ public interface PageRepository extends CrudRepository<Page, PageKey> {
             nativeQuery = true)
     List<PageText> getAllBySiteAndNamespaceAndPagenameNative(String site, List<String> pageDescs, String validTS);
 
+    @Query(value="SELECT namespace, pagename, title FROM page WHERE site=:site AND deleted=0 and validTS=:validTS AND concat(namespace , ':' , pagename) IN (:pageDescs)",
+            nativeQuery = true)
+    List<PageTitle> getTitlesBySiteAndNamespaceAndPagenameNative(String site, List<String> pageDescs, String validTS);
+
     void deleteBySite(String site);
 
     default String getMaxTS(String engine) {
@@ -72,4 +84,8 @@ public interface PageRepository extends CrudRepository<Page, PageKey> {
     default List<PageText> getAllBySiteAndNamespaceAndPagename(String engine, String site, List<String> pageDescs) {;
         return getAllBySiteAndNamespaceAndPagenameNative(site, pageDescs, getMaxTS(engine));
     }
+
+    default List<PageTitle> getTitlesBySiteAndNamespaceAndPagename(String engine, String site, List<String> pageDescs) {
+        return getTitlesBySiteAndNamespaceAndPagenameNative(site, pageDescs, getMaxTS(engine));
+    }
 }
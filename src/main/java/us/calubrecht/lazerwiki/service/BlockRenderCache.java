@@ -0,0 +1,101 @@
+package us.calubrecht.lazerwiki.service;
+
+import us.calubrecht.lazerwiki.model.HeaderRef;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * LRU cache of rendered top-level blocks (headers, paragraphs, lists, tables, code boxes), with what each block added
+ * to the render state, so preview and save only re-render the blocks that were edited. Keyed by a hash of the block's
+ * markup and the page it is on. Bounded by the total length of the cached html and plaintext.
+ */
+public class BlockRenderCache {
+    public record Stats(long hits, long misses, long evictions, int entries, long weight, long maxWeight) {}
+
+    /**
+     * A rendered block. Header ids depend on the headers before them, and only the first header sets the title, so
+     * blocks with headers record those in headerContext and are only reused where it matches. It is null for other
+     * blocks. plainText is null if the block was rendered without it.
+     */
+    public record Block(String html, String plainText, Set<String> links, Set<String> images, List<HeaderRef> headers,
+                        String title, Boolean toc, boolean dontCache, String headerContext) {
+        int weight() {
+            return html.length() + (plainText == null ? 0 : plainText.length());
+        }
+    }
+
+    final long maxWeight;
+    final LinkedHashMap<String, Block> entries = new LinkedHashMap<>(16, 0.75f, true);
+    long weight = 0;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+
+    public BlockRenderCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public boolean isEnabled() {
+        return maxWeight > 0;
+    }
+
+    /**
+     * Blocks rendered for a preview of the page are keyed as the page, so saving reuses them.
+     */
+    public static String key(String host, String page, String source) {
+        String keyPage = page != null && page.endsWith(RenderService.PREVIEW_SUFFIX) ?
+                page.substring(0, page.length() - RenderService.PREVIEW_SUFFIX.length()) : page;
+        return ParseTreeCache.hash(host + "\t" + keyPage + "\t" + source);
+    }
+
+    /**
+     * The block for key, if it was rendered in the same header context and with plaintext if that is needed.
+     */
+    public Block get(String key, Supplier<String> headerContext, boolean needPlainText) {
+        Block block;
+        synchronized (this) {
+            block = entries.get(key);
+        }
+        if (block == null || (needPlainText && block.plainText() == null) ||
+                (block.headerContext() != null && !block.headerContext().equals(headerContext.get()))) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return block;
+    }
+
+    public synchronized void put(String key, Block block) {
+        if (!isEnabled() || block.weight() > maxWeight / 4) {
+            return;
+        }
+        Block old = entries.put(key, block);
+        if (old != null) {
+            weight -= old.weight();
+        }
+        weight += block.weight();
+        Iterator<Map.Entry<String, Block>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            Block eldest = it.next().getValue();
+            it.remove();
+            weight -= eldest.weight();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.get(), misses.get(), evictions.get(), entries.size(), weight, maxWeight);
+    }
+}
@@ -1,27 +1,53 @@
 package us.calubrecht.lazerwiki.service;
 
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import us.calubrecht.lazerwiki.model.HeaderRef;
+import us.calubrecht.lazerwiki.model.LinkOverride;
+import us.calubrecht.lazerwiki.model.MediaOverride;
 import us.calubrecht.lazerwiki.model.RenderResult;
+import us.calubrecht.lazerwiki.service.PageService.LinkTarget;
 import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiLexer;
 import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiParser;
+import us.calubrecht.lazerwiki.service.parser.doku.FastPathParser;
 import us.calubrecht.lazerwiki.service.renderhelpers.AdditiveTreeRenderer;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderBudget;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderState;
 import us.calubrecht.lazerwiki.service.renderhelpers.TreeRenderer;
+import us.calubrecht.lazerwiki.service.renderhelpers.doku.LinkRenderer;
+import us.calubrecht.lazerwiki.service.renderhelpers.doku.LinkResolver;
+import us.calubrecht.lazerwiki.util.HtmlEscaper;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.*;
 
 /**
  * An implementation of IMarkupRenderer that speaks DokuWiki's markup language.
  */
 @Service
 public class DokuWikiRenderer implements IMarkupRenderer {
+    final Logger logger = LogManager.getLogger(getClass());
 
     @Autowired
     RendererRegistrar renderers;
@@ -29,97 +55,625 @@ public class DokuWikiRenderer implements IMarkupRenderer {
     @Autowired
     TOCRenderService tocRenderService;
 
+    @Autowired
+    LinkResolver linkResolver;
+
+    // Total length of markup whose parse trees are kept, 0 to disable
+    @Value("${lazerwiki.parse.cache.max.chars:4000000}")
+    long parseCacheMaxChars;
+
+    ParseTreeCache parseTreeCache;
+
+    @Value("${lazerwiki.static.file.root:static}")
+    String staticFileRoot;
+
+    // Keep the parse trees of pages' current markup on disk, for renders after a dependency changes
+    @Value("${lazerwiki.parse.store.enabled:true}")
+    boolean parseStoreEnabled;
+
+    ParseTreeStore parseTreeStore;
+
+    // Total length of rendered blocks kept for preview and save, 0 to disable
+    @Value("${lazerwiki.render.block.cache.max.chars:2000000}")
+    long blockCacheMaxChars;
+
+    BlockRenderCache blockRenderCache;
+
+    static final int MIN_BLOCK_CHARS = 20;
+
+    // Render the blocks of long pages in parallel
+    @Value("${lazerwiki.render.parallel.enabled:false}")
+    boolean parallelEnabled;
+
+    // Length of markup a page must have to be rendered in parallel
+    @Value("${lazerwiki.render.parallel.min.chars:100000}")
+    int parallelMinChars;
+
+    // 0 for one per core
+    @Value("${lazerwiki.render.parallel.threads:0}")
+    int parallelThreads;
+
+    ForkJoinPool renderPool;
+
+    @Autowired
+    LinkOverrideService linkOverrideService;
+
+    @Autowired
+    MediaOverrideService mediaOverrideService;
+
+    @Value("${lazerwiki.parse.fastpath.enabled:true}")
+    boolean fastPathEnabled;
+
+    final Map<ParseStage, ParseStageCounter> parseStageCounters = new EnumMap<>(ParseStage.class);
+
+    @PostConstruct
+    public void init() {
+        parseTreeCache = new ParseTreeCache(parseCacheMaxChars);
+        parseTreeStore = new ParseTreeStore(staticFileRoot, parseStoreEnabled);
+        blockRenderCache = new BlockRenderCache(blockCacheMaxChars);
+        if (parallelEnabled) {
+            renderPool = new ForkJoinPool(parallelThreads > 0 ? parallelThreads : Runtime.getRuntime().availableProcessors());
+        }
+        for (ParseStage stage : ParseStage.values()) {
+            parseStageCounters.put(stage, new ParseStageCounter());
+        }
+    }
+
+    @PreDestroy
+    public void stopPool() {
+        if (renderPool != null) {
+            renderPool.shutdownNow();
+        }
+    }
+
     @Override
     public String  renderToString(String markup, RenderContext context) {
         return renderToString(parseMarkup(markup), context);
     }
 
     ParseTree parseMarkup(String markup) {
-       ParseTree tree = doParseMarkup(markup, false);
-       if (tree == null) {
-           return doParseMarkup(markup, true);
-       }
-       return tree;
+        return parseMarkup(markup, this::parseUncached);
+    }
+
+    ParseTree parseMarkup(String markup, Function<String, ParseTree> parser) {
+        ParseTree tree = parseTreeCache.get(markup, parser);
+        ParseTreeCache.Stats stats = parseTreeCache.getStats();
+        if ((stats.hits() + stats.misses()) % 1000 == 0) {
+            logger.info("Parse cache: {} entries, {} chars, hit rate {}", stats.entries(), stats.weight(), "%.2f".formatted(stats.hitRate()));
+        }
+        return tree;
+    }
+
+    /**
+     * Parse a page's current markup, reading the tree back from the parse tree store if it was stored from the same
+     * markup, and storing it if not.
+     */
+    ParseTree parsePersisted(String markup, RenderContext context) {
+        if (!parseTreeStore.isEnabled() || context.site() == null || context.page() == null) {
+            return parseMarkup(markup);
+        }
+        return parseMarkup(markup, m -> {
+            CharStream input = markupStream(m);
+            ParseTree tree = parseTreeStore.load(context.site(), context.page(), m, input);
+            if (tree == null) {
+                tree = parseUncached(input);
+                parseTreeStore.save(context.site(), context.page(), m, tree);
+            }
+            return tree;
+        });
+    }
+
+    static CharStream markupStream(String markup) {
+        // Placeholder delimiters in the markup would be filled in as if LinkRenderer had written them
+        return CharStreams.fromString(LinkResolver.stripDelimiters(markup) + '\n');
+    }
+
+    /**
+     * Parse in stages, each only if the previous fails: the fast path parser for common markup, SLL prediction, full LL
+     * prediction, and finally LL allowing broken markup. The SLL and LL stages bail on the first syntax error rather
+     * than attempting recovery.
+     */
+    ParseTree parseUncached(String markup) {
+        return parseUncached(markupStream(markup));
+    }
+
+    ParseTree parseUncached(CharStream input) {
+        CommonTokenStream tokens = new CommonTokenStream(new DokuwikiLexer(input));
+        tokens.fill();
+        ParseTree tree = fastPathEnabled ? doParseMarkup(tokens, ParseStage.FAST) : null;
+        if (tree == null) {
+            tree = doParseMarkup(tokens, ParseStage.SLL);
+        }
+        if (tree == null) {
+            tree = doParseMarkup(tokens, ParseStage.LL);
+        }
+        if (tree == null) {
+            tree = doParseMarkup(tokens, ParseStage.BROKEN);
+        }
+        return tree;
     }
 
-    ParseTree doParseMarkup(String markup, boolean allowBroken) {
-        DokuwikiLexer lexer = new DokuwikiLexer(CharStreams.fromString(markup + '\n'));
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
+    public ParseTreeCache.Stats getParseCacheStats() {
+        return parseTreeCache.getStats();
+    }
+
+    public ParseTreeStore.Stats getParseStoreStats() {
+        return parseTreeStore.getStats();
+    }
+
+    public Map<ParseStage, ParseStageStats> getParseStageStats() {
+        Map<ParseStage, ParseStageStats> stats = new EnumMap<>(ParseStage.class);
+        for (ParseStage stage : ParseStage.values()) {
+            ParseStageCounter counter = parseStageCounters.get(stage);
+            stats.put(stage, new ParseStageStats(counter.runs.get(), counter.failures.get(), counter.nanos.get() / 1000000));
+        }
+        return stats;
+    }
+
+    ParseTree doParseMarkup(CommonTokenStream tokens, ParseStage stage) {
+        long start = System.nanoTime();
+        ParseTree tree = stage == ParseStage.FAST ? new FastPathParser(tokens).parse() : doAntlrParse(tokens, stage);
+        long elapsed = System.nanoTime() - start;
+        parseStageCounters.get(stage).record(elapsed, tree == null);
+        logger.debug("Parse stage {} {} in {}us", stage, tree == null ? "failed" : "succeeded", elapsed / 1000);
+        return tree;
+    }
+
+    ParseTree doAntlrParse(CommonTokenStream tokens, ParseStage stage) {
+        tokens.seek(0);
         DokuwikiParser parser = new DokuwikiParser(tokens);
-        if (allowBroken) {
+        if (stage == ParseStage.BROKEN) {
             parser.setAllowBroken();
+            return parser.page();
+        }
+        parser.getInterpreter().setPredictionMode(stage == ParseStage.SLL ? PredictionMode.SLL : PredictionMode.LL);
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.removeErrorListeners();
+        try {
+            return parser.page();
         }
-        ParseTree tree = parser.page();
-        if (!allowBroken && parser.getNumberOfSyntaxErrors() > 0) {
+        catch (ParseCancellationException e) {
             return null;
         }
-        return tree;
     }
 
+    public enum ParseStage { FAST, SLL, LL, BROKEN }
+
+    static class ParseStageCounter {
+        final AtomicLong runs = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+
+        void record(long elapsed, boolean failed) {
+            runs.incrementAndGet();
+            nanos.addAndGet(elapsed);
+            if (failed) {
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    public record ParseStageStats(long runs, long failures, long totalMillis) {}
+
     String renderToString(ParseTree tree, RenderContext context) {
         StringBuilder outBuffer = new StringBuilder();
+        RenderContext renderContext = new RenderContext(context.host(), context.site(), context.page(), context.user(), this, context.renderState());
+        lookupHeaderLinks(tree, renderContext);
+        renderBlocks(tree, renderContext, outBuffer, null);
+        markPartial(outBuffer, renderContext);
+        renderToC(outBuffer, renderContext);
+        resolveLinks(renderContext, outBuffer, null);
+        return outBuffer.toString().strip();
+    }
+
+    /**
+     * Render html and plaintext together in a single walk of the tree, plaintext is appended to the passed buffer.
+     */
+    String renderToString(ParseTree tree, RenderContext context, StringBuilder plainText) {
+        StringBuilder outBuffer = new StringBuilder();
+        RenderContext renderContext = new RenderContext(context.host(), context.site(), context.page(), context.user(), this, context.renderState());
+        lookupHeaderLinks(tree, renderContext);
+        renderBlocks(tree, renderContext, outBuffer, plainText);
+        markPartial(outBuffer, renderContext);
+        renderToC(outBuffer, renderContext);
+        resolveLinks(renderContext, outBuffer, plainText);
+        return outBuffer.toString().strip();
+    }
+
+    /**
+     * Headers fill in their links as soon as they are rendered, so look up the link targets of all the page's headers
+     * with one query before rendering. The page's other links are looked up with one query at the end.
+     */
+    void lookupHeaderLinks(ParseTree tree, RenderContext renderContext) {
+        Set<String> targets = new HashSet<>();
+        collectHeaderLinks(tree, renderContext, targets);
+        renderContext.state().setLinkTargets(linkResolver.lookup(renderContext.host(), targets));
+    }
+
+    // Headers are top-level blocks, or in hidden blocks
+    void collectHeaderLinks(ParseTree tree, RenderContext renderContext, Set<String> targets) {
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            ParseTree child = tree.getChild(i);
+            if (child instanceof DokuwikiParser.HeaderContext) {
+                collectLinks(child, renderContext, targets);
+            } else if (child instanceof DokuwikiParser.HiddenContext) {
+                collectHeaderLinks(child, renderContext, targets);
+            }
+        }
+    }
+
+    void collectLinks(ParseTree tree, RenderContext renderContext, Set<String> targets) {
+        if (tree instanceof DokuwikiParser.LinkContext link && renderers.getRenderer(link) instanceof LinkRenderer linkRenderer) {
+            // The overrides are needed to know where links go
+            hasOverrides(renderContext);
+            targets.addAll(linkRenderer.internalTargets(link, renderContext));
+            return;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            collectLinks(tree.getChild(i), renderContext, targets);
+        }
+    }
+
+    /**
+     * Render the top-level blocks of the tree, merging adjacent additive children (rows of a list or table) into one
+     * block. Plaintext is rendered too unless it is null.
+     */
+    void renderBlocks(ParseTree tree, RenderContext renderContext, StringBuilder outBuffer, StringBuilder plainText) {
+        boolean memoize = renderContext.state().isMemoizeBlocks() && blockRenderCache.isEnabled() && !hasOverrides(renderContext);
+        if (shouldRenderInParallel(tree)) {
+            // Loaded up front, so the parallel renders share them rather than each loading them.
+            hasOverrides(renderContext);
+            renderBlocksInParallel(collectBlocks(tree), renderContext, outBuffer, plainText, memoize);
+            return;
+        }
         List<ParseTree> childrenToMerge = new ArrayList<>();
-        String lastChildClass = null;
-        Map<String, Object> renderState = context.renderState();
-        RenderContext renderContext = new RenderContext(context.host(), context.site(), context.page(), context.user(), this, renderState);
+        int lastAdditiveId = -1;
         for(int i = 0; i < tree.getChildCount(); i++) {
             ParseTree child = tree.getChild(i);
-            TreeRenderer renderer = renderers.getRenderer(child.getClass(), child);
-            if (lastChildClass != null && !lastChildClass.equals(renderer.getAdditiveClass()))
+            if (!renderContext.state().chargeBudget()) {
+                break;
+            }
+            TreeRenderer renderer = renderers.getRenderer(child);
+            if (lastAdditiveId != -1 && lastAdditiveId != renderer.getAdditiveId())
             {
-                AdditiveTreeRenderer aRenderer = (AdditiveTreeRenderer)renderers.getRenderer(lastChildClass, childrenToMerge.get(0));
-                outBuffer.append(aRenderer.render(childrenToMerge, renderContext));
-                lastChildClass = null;
+                renderBlock(childrenToMerge, renderers.getAdditiveRenderer(lastAdditiveId, childrenToMerge.get(0)), renderContext, outBuffer, plainText, memoize);
+                lastAdditiveId = -1;
                 childrenToMerge.clear();
             }
             if (renderer.isAdditive()) {
-                lastChildClass = renderer.getAdditiveClass();
+                lastAdditiveId = renderer.getAdditiveId();
                 childrenToMerge.add(child);
                 continue;
             }
-            outBuffer.append(renderer.render(child, renderContext));
+            renderBlock(List.of(child), renderer, renderContext, outBuffer, plainText, memoize);
+        }
+        if (lastAdditiveId != -1) {
+            renderBlock(childrenToMerge, renderers.getAdditiveRenderer(lastAdditiveId, childrenToMerge.get(0)), renderContext, outBuffer, plainText, memoize);
+        }
+    }
+
+    void renderBlock(List<ParseTree> block, TreeRenderer renderer, RenderContext renderContext, StringBuilder outBuffer, StringBuilder plainText, boolean memoize) {
+        RenderState state = renderContext.state();
+        String key = memoize ? blockKey(block, renderContext, state) : null;
+        if (key == null) {
+            doRenderBlock(block, renderer, renderContext, outBuffer, plainText);
+            return;
+        }
+        BlockRenderCache.Block rendered = blockRenderCache.get(key, () -> headerContext(state.hasTitle(), state.getHeaders()), plainText != null);
+        if (rendered == null) {
+            rendered = renderToBlock(block, renderer, renderContext, state.forBlock(), plainText != null, key);
+        }
+        applyBlock(rendered, state, outBuffer, plainText);
+    }
+
+    // Header ids in blocks kept for reuse end with this in place of the render's id suffix, which applyBlock fills in,
+    // so preview and save share blocks. Markup can't contain placeholder delimiters, see LinkResolver.
+    static final String ID_SUFFIX_SLOT = "\uE000S\uE001";
+
+    /**
+     * Render a block into its own state from RenderState.forBlock(), keeping it for reuse under key unless key is null
+     * or the block can't be reused.
+     */
+    BlockRenderCache.Block renderToBlock(List<ParseTree> block, TreeRenderer renderer, RenderContext renderContext, RenderState blockState, boolean withPlainText, String key) {
+        if (key != null) {
+            blockState.setIdSuffix(ID_SUFFIX_SLOT);
+        }
+        int priorHeaders = blockState.getHeaders().size();
+        boolean hadTitle = blockState.hasTitle();
+        RenderContext blockContext = new RenderContext(renderContext.host(), renderContext.site(), renderContext.page(), renderContext.user(), this, blockState);
+        StringBuilder html = new StringBuilder();
+        StringBuilder blockPlainText = withPlainText ? new StringBuilder() : null;
+        doRenderBlock(block, renderer, blockContext, html, blockPlainText);
+        List<HeaderRef> allHeaders = blockState.getHeaders();
+        List<HeaderRef> headers = allHeaders.subList(priorHeaders, allHeaders.size());
+        BlockRenderCache.Block rendered = new BlockRenderCache.Block(html.toString(), withPlainText ? blockPlainText.toString() : null,
+                Set.copyOf(blockState.getLinks()), Set.copyOf(blockState.getImages()), List.copyOf(headers),
+                hadTitle ? null : blockState.getTitle(), blockState.getToc(), blockState.isDontCache(),
+                headers.isEmpty() ? null : headerContext(hadTitle, allHeaders.subList(0, priorHeaders)));
+        RenderBudget budget = blockState.getBudget();
+        // Links in headers are resolved as the header renders, so its text depends on the pages it links to.
+        boolean reusable = (budget == null || !budget.isSpent()) && (headers.isEmpty() || rendered.links().isEmpty());
+        if (key != null && reusable) {
+            blockRenderCache.put(key, rendered);
+        }
+        return rendered;
+    }
+
+    void doRenderBlock(List<ParseTree> block, TreeRenderer renderer, RenderContext renderContext, StringBuilder outBuffer, StringBuilder plainText) {
+        if (renderer instanceof AdditiveTreeRenderer aRenderer) {
+            // Some renderers consume the list as they render.
+            List<ParseTree> trees = new ArrayList<>(block);
+            if (plainText == null) {
+                aRenderer.render(trees, renderContext, outBuffer);
+            } else {
+                aRenderer.renderWithPlainText(trees, renderContext, outBuffer, plainText);
+            }
+            return;
+        }
+        if (plainText == null) {
+            renderer.render(block.get(0), renderContext, outBuffer);
+        } else {
+            renderer.renderWithPlainText(block.get(0), renderContext, outBuffer, plainText);
+        }
+    }
+
+    void applyBlock(BlockRenderCache.Block block, RenderState state, StringBuilder outBuffer, StringBuilder plainText) {
+        String html = block.html();
+        outBuffer.append(html.contains(ID_SUFFIX_SLOT) ? html.replace(ID_SUFFIX_SLOT, state.getIdSuffix()) : html);
+        if (plainText != null) {
+            plainText.append(block.plainText());
+        }
+        if (!block.links().isEmpty()) {
+            state.addLinks(block.links());
+        }
+        block.images().forEach(state::addImage);
+        block.headers().forEach(state::addHeader);
+        if (block.title() != null && !state.hasTitle()) {
+            state.setTitle(block.title());
+        }
+        if (block.toc() != null) {
+            state.setToc(block.toc());
+        }
+        if (block.dontCache()) {
+            state.setDontCache(true);
+        }
+    }
+
+    /**
+     * Key for a block's render, or null if it can't be reused. Macros depend on other pages and the user, hidden blocks
+     * get a random id, and blocks this short aren't worth keeping.
+     */
+    String blockKey(List<ParseTree> block, RenderContext renderContext, RenderState state) {
+        String source = blockSource(block);
+        if (source == null || source.length() < MIN_BLOCK_CHARS || source.contains("~~MACRO~~") || source.contains("<hidden>")) {
+            return null;
+        }
+        return BlockRenderCache.key(renderContext.host(), renderContext.page(), source);
+    }
+
+    // The markup of a block, null if it isn't made of parsed rules
+    static String blockSource(List<ParseTree> block) {
+        if (!(block.get(0) instanceof ParserRuleContext first) || !(block.get(block.size() - 1) instanceof ParserRuleContext last)
+                || first.start == null || last.stop == null || last.stop.getStopIndex() < first.start.getStartIndex()) {
+            return null;
+        }
+        return first.start.getInputStream().getText(Interval.of(first.start.getStartIndex(), last.stop.getStopIndex()));
+    }
+
+    static String headerContext(boolean hasTitle, List<HeaderRef> headers) {
+        StringBuilder context = new StringBuilder(hasTitle ? "T" : "");
+        headers.forEach(h -> context.append('\n').append(h.id()));
+        return context.toString();
+    }
+
+    record TopBlock(List<ParseTree> trees, TreeRenderer renderer) {}
+
+    // The top-level blocks of the tree as renderBlocks groups them
+    List<TopBlock> collectBlocks(ParseTree tree) {
+        List<TopBlock> blocks = new ArrayList<>();
+        List<ParseTree> childrenToMerge = new ArrayList<>();
+        int lastAdditiveId = -1;
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            ParseTree child = tree.getChild(i);
+            TreeRenderer renderer = renderers.getRenderer(child);
+            if (lastAdditiveId != -1 && lastAdditiveId != renderer.getAdditiveId()) {
+                blocks.add(new TopBlock(List.copyOf(childrenToMerge), renderers.getAdditiveRenderer(lastAdditiveId, childrenToMerge.get(0))));
+                lastAdditiveId = -1;
+                childrenToMerge.clear();
+            }
+            if (renderer.isAdditive()) {
+                lastAdditiveId = renderer.getAdditiveId();
+                childrenToMerge.add(child);
+                continue;
+            }
+            blocks.add(new TopBlock(List.of(child), renderer));
+        }
+        if (lastAdditiveId != -1) {
+            blocks.add(new TopBlock(List.copyOf(childrenToMerge), renderers.getAdditiveRenderer(lastAdditiveId, childrenToMerge.get(0))));
+        }
+        return blocks;
+    }
+
+    boolean shouldRenderInParallel(ParseTree tree) {
+        if (renderPool == null || !(tree instanceof ParserRuleContext page) || page.stop == null || page.stop.getStopIndex() < parallelMinChars) {
+            return false;
+        }
+        // Nested renders on the pool stay sequential
+        return !(Thread.currentThread() instanceof ForkJoinWorkerThread worker && worker.getPool() == renderPool);
+    }
+
+    /**
+     * Headers depend on the headers before them, macros on the page's state, and hidden blocks can contain headers, so
+     * those are rendered in order. Anything else can be rendered on its own.
+     */
+    boolean isIndependent(TopBlock block) {
+        ParseTree first = block.trees().get(0);
+        if (first instanceof DokuwikiParser.HeaderContext || first instanceof DokuwikiParser.HiddenContext) {
+            return false;
+        }
+        String source = blockSource(block.trees());
+        return source != null && !source.contains("~~MACRO~~");
+    }
+
+    /**
+     * Render the independent blocks on the fork-join pool, each into its own state, while this thread renders the
+     * rest in order. Results are applied to the page's state in page order, so headers, title, links and TOC come out
+     * as they would from a sequential render.
+     */
+    void renderBlocksInParallel(List<TopBlock> blocks, RenderContext renderContext, StringBuilder outBuffer, StringBuilder plainText, boolean memoize) {
+        RenderState state = renderContext.state();
+        List<ForkJoinTask<BlockRenderCache.Block>> tasks = new ArrayList<>(blocks.size());
+        for (TopBlock block : blocks) {
+            if (!isIndependent(block)) {
+                tasks.add(null);
+                continue;
+            }
+            // Forked here, forBlock() marks this state's headers as shared.
+            RenderState blockState = state.forBlock();
+            tasks.add(renderPool.submit(() -> renderIndependentBlock(block, renderContext, blockState, plainText != null, memoize)));
+        }
+        try {
+            for (int i = 0; i < blocks.size(); i++) {
+                ForkJoinTask<BlockRenderCache.Block> task = tasks.get(i);
+                if (task != null) {
+                    applyBlock(task.join(), state, outBuffer, plainText);
+                    continue;
+                }
+                TopBlock block = blocks.get(i);
+                List<ParseTree> trees = chargeBudget(block.trees(), state);
+                if (!trees.isEmpty()) {
+                    renderBlock(trees, block.renderer(), renderContext, outBuffer, plainText, memoize);
+                }
+                if (trees.size() < block.trees().size()) {
+                    break;
+                }
+            }
+        } finally {
+            tasks.stream().filter(Objects::nonNull).forEach(task -> task.cancel(false));
+        }
+    }
+
+    BlockRenderCache.Block renderIndependentBlock(TopBlock block, RenderContext renderContext, RenderState blockState, boolean withPlainText, boolean memoize) {
+        List<ParseTree> trees = chargeBudget(block.trees(), blockState);
+        if (trees.isEmpty()) {
+            return new BlockRenderCache.Block("", withPlainText ? "" : null, Set.of(), Set.of(), List.of(), null, null, false, null);
+        }
+        String key = memoize && trees.size() == block.trees().size() ? blockKey(trees, renderContext, blockState) : null;
+        BlockRenderCache.Block rendered = key == null ? null : blockRenderCache.get(key, () -> headerContext(blockState.hasTitle(), blockState.getHeaders()), withPlainText);
+        return rendered != null ? rendered : renderToBlock(trees, block.renderer(), renderContext, blockState, withPlainText, key);
+    }
+
+    // The trees the budget allows rendering, charging for each
+    static List<ParseTree> chargeBudget(List<ParseTree> trees, RenderState state) {
+        for (int i = 0; i < trees.size(); i++) {
+            if (!state.chargeBudget()) {
+                return trees.subList(0, i);
+            }
+        }
+        return trees;
+    }
+
+    /**
+     * Load the page's link and media overrides if no renderer has yet. A page has overrides when a page it links to has
+     * moved, and its links render differently until it is next saved, so it isn't memoized.
+     */
+    boolean hasOverrides(RenderContext renderContext) {
+        RenderState state = renderContext.state();
+        if (state.getLinkOverrides() == null) {
+            state.setLinkOverrides(linkOverrideService.getOverrides(renderContext.host(), renderContext.page()).stream().collect(
+                    Collectors.toMap(LinkOverride::getTarget, Function.identity(), (a, b) -> b)));
+        }
+        if (state.getMediaOverrides() == null) {
+            state.setMediaOverrides(mediaOverrideService.getOverrides(renderContext.host(), renderContext.page()).stream().collect(
+                    Collectors.toMap(MediaOverride::getTarget, Function.identity(), (a, b) -> b)));
+        }
+        return !state.getLinkOverrides().isEmpty() || !state.getMediaOverrides().isEmpty();
+    }
+
+    public BlockRenderCache.Stats getBlockCacheStats() {
+        return blockRenderCache.getStats();
+    }
+
+    static final String PARTIAL_RENDER = "<div class=\"partialRender\">This page took too long to render, the rest of it has been left out.</div>";
+
+    /**
+     * If the render budget ran out, mark the output as partial and keep it out of the page cache. Sub-renders share
+     * the page's budget, so only the page's own render adds the notice, once at the end of the page.
+     */
+    void markPartial(StringBuilder outBuffer, RenderContext renderContext) {
+        RenderBudget budget = renderContext.state().getBudget();
+        if (budget != null && budget.isSpent()) {
+            if (!renderContext.state().isSubRender()) {
+                outBuffer.append(PARTIAL_RENDER);
+            }
+            renderContext.state().setDontCache(true);
+        }
+    }
+
+    /**
+     * Html rendered for the cache keeps its link slots, they are filled in by MacroService.postRender when the page is
+     * served so that creating, deleting or retitling a page doesn't leave pages linking to it stale. Plaintext is
+     * stored for search, so always has its links resolved.
+     */
+    void resolveLinks(RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        Map<String, LinkTarget> known = renderContext.state().getLinkTargets();
+        if (renderContext.state().isForCache()) {
+            if (plainText != null) {
+                linkResolver.resolve(renderContext.host(), known, plainText);
+            }
+            return;
+        }
+        if (plainText == null) {
+            linkResolver.resolve(renderContext.host(), known, html);
+        } else {
+            linkResolver.resolve(renderContext.host(), known, html, plainText);
         }
-        renderToC(outBuffer, renderContext);
-        return outBuffer.toString().strip();
     }
 
     private void renderToC(StringBuilder outBuffer, RenderContext renderContext) {
-        List<HeaderRef> headers = (List<HeaderRef>)renderContext.renderState().getOrDefault(HEADERS.name(), Collections.emptyList());
-        Object forceTOC = renderContext.renderState().get(TOC.name());
+        RenderState state = renderContext.state();
+        List<HeaderRef> headers = state.getHeaders();
+        Boolean forceTOC = state.getToc();
         if (Boolean.FALSE.equals(forceTOC) || (headers.size() < 3) && !Boolean.TRUE.equals(forceTOC)) {
             return;
         }
-        String idSuffix = renderContext.renderState().getOrDefault(ID_SUFFIX.name(), "").toString();
-        String toc = tocRenderService.renderTOC(headers, idSuffix);
+        String toc = tocRenderService.renderTOC(headers, state.getIdSuffix());
 
         outBuffer.insert(0, toc);
     }
 
     @Override
     public RenderResult renderWithInfo(String markup, RenderContext renderContext) {
-        ParseTree tree = parseMarkup(markup);
-        String rendered = renderToString(tree, renderContext);
-        String plainText = renderToPlainText(tree, renderContext);
-        return new RenderResult(rendered, plainText, renderContext.renderState());
+        ParseTree tree = renderContext.state().isPersistTree() ? parsePersisted(markup, renderContext) : parseMarkup(markup);
+        StringBuilder plainText = new StringBuilder();
+        String rendered = renderToString(tree, renderContext, plainText);
+        return new RenderResult(rendered, finishPlainText(plainText), renderContext.renderState());
     }
 
     @Override
     public String renderToPlainText(String markup, RenderContext renderContext) {
-        RenderContext plainTextContext = new RenderContext(renderContext.host(), renderContext.site(), renderContext.page(), renderContext.user(), renderContext.renderer(), new HashMap<>(renderContext.renderState()));
+        RenderContext plainTextContext = new RenderContext(renderContext.host(), renderContext.site(), renderContext.page(), renderContext.user(), renderContext.renderer(), renderContext.state().fork());
         plainTextContext.renderState().put("plainText", true);
-        return renderToPlainText(parseMarkup(markup), renderContext);
+        return renderToPlainText(parseMarkup(markup), plainTextContext);
     }
 
     public String renderToPlainText(ParseTree tree, RenderContext renderContext) {
         StringBuilder outBuffer = new StringBuilder();
         for(int i = 0; i < tree.getChildCount(); i++) {
             ParseTree child = tree.getChild(i);
-            TreeRenderer renderer = renderers.getRenderer(child.getClass(), child);
+            TreeRenderer renderer = renderers.getRenderer(child);
             outBuffer.append(renderer.renderToPlainText(child, renderContext));
         }
-        // Remove trailing new line
-        outBuffer.deleteCharAt(outBuffer.length() -1);
-        return TreeRenderer.sanitize(outBuffer.toString());
+        linkResolver.resolve(renderContext.host(), outBuffer);
+        return finishPlainText(outBuffer);
+    }
+
+    String finishPlainText(StringBuilder outBuffer) {
+        // Remove trailing new line, if anything was rendered
+        if (!outBuffer.isEmpty()) {
+            outBuffer.deleteCharAt(outBuffer.length() -1);
+        }
+        return HtmlEscaper.escape(outBuffer);
     }
 
 }
@@ -8,6 +8,7 @@ import us.calubrecht.lazerwiki.repository.LinkRepository;
 
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class LinkService {
@@ -30,6 +31,24 @@ public class LinkService {
                 stream().map(l -> l.getTargetPageNS().isBlank() ? l.getTargetPageName() : l.getTargetPageNS() +":" + l.getTargetPageName()).collect(Collectors.toList());
     }
 
+    /**
+     * Links on every page in the site, with overrides applied, keyed by source page. Read from a single streamed query
+     * rather than one per page.
+     */
+    @Transactional
+    public Map<String, List<String>> getLinkGraph(String site) {
+        Map<String, List<String>> graph = new LinkedHashMap<>();
+        try (Stream<LinkRepository.LinkEdge> edges = linkRepository.streamLinkGraph(site)) {
+            edges.forEach(e -> graph.computeIfAbsent(toDescriptor(e.getSourcePageNS(), e.getSourcePageName()), k -> new ArrayList<>()).
+                    add(toDescriptor(e.getTargetPageNS(), e.getTargetPageName())));
+        }
+        return graph;
+    }
+
+    static String toDescriptor(String ns, String pageName) {
+        return ns.isBlank() ? pageName : ns + ":" + pageName;
+    }
+
     public List<String> getBacklinks(String site, String page) {
         PageDescriptor pd = PageService.decodeDescriptor(page);
         return linkRepository.findAllBySiteAndTargetPageNSAndTargetPageName(site, pd.namespace(), pd.pageName()).
@@ -0,0 +1,135 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import us.calubrecht.lazerwiki.util.DbSupport;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output of macros that can't go in the page cache, reused across views of the page. Entries are keyed by macro,
+ * args, page and the ACL class of the viewer, and remember the pages the macro read. Each change to a page stamps it
+ * with a new version from a clock, an entry is stale once any page it read has a version newer than the render it
+ * came from. Macros that read the whole site (getAllPages, searches) depend on every page in it.
+ * Like the page caches, a change counts again once its transaction completes.
+ */
+@Service
+public class MacroResultCache {
+    public record Key(String host, String page, String macroName, String macroArgs, String aclClass, boolean plainText) {}
+
+    /**
+     * A cached macro result, with the links it added to the page and whether it marked the page uncacheable, so they
+     * can be replayed when it is reused.
+     */
+    public record Result(String html, Set<String> links, boolean dontCache, String site, Set<String> dependencies,
+                         boolean siteWide, long asOf, long expires) {}
+
+    public record Stats(long hits, long misses, long stale, int entries) {}
+
+    @Value("${lazerwiki.macro.result.cache.max.entries:1000}")
+    int maxEntries;
+
+    final AtomicLong clock = new AtomicLong();
+    volatile long clearedAt = 0;
+    final Map<String, Long> pageVersions = new ConcurrentHashMap<>();
+    final Map<String, Long> siteVersions = new ConcurrentHashMap<>();
+    final LinkedHashMap<Key, Result> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong stale = new AtomicLong();
+
+    /**
+     * Version to record as asOf for a macro about to render, anything changed after this makes its result stale.
+     */
+    public long now() {
+        return clock.get();
+    }
+
+    public Result get(Key key) {
+        Result result;
+        synchronized (this) {
+            result = entries.get(key);
+        }
+        if (result == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (System.currentTimeMillis() >= result.expires() || changedSince(result)) {
+            synchronized (this) {
+                entries.remove(key, result);
+            }
+            stale.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return result;
+    }
+
+    public void put(Key key, Result result) {
+        // A page changed while the macro was running, its output may already be out of date.
+        if (maxEntries <= 0 || changedSince(result)) {
+            return;
+        }
+        synchronized (this) {
+            entries.put(key, result);
+            Iterator<Key> it = entries.keySet().iterator();
+            while (entries.size() > maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    boolean changedSince(Result result) {
+        if (clearedAt > result.asOf()) {
+            return true;
+        }
+        if (result.siteWide() && siteVersions.getOrDefault(result.site(), 0L) > result.asOf()) {
+            return true;
+        }
+        for (String page : result.dependencies()) {
+            if (pageVersions.getOrDefault(versionKey(result.site(), page), 0L) > result.asOf()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called when a page is saved, deleted or moved.
+     */
+    public void pageChanged(String site, String pageDescriptor) {
+        bump(site, pageDescriptor);
+        DbSupport.afterCompletion(() -> bump(site, pageDescriptor));
+    }
+
+    void bump(String site, String pageDescriptor) {
+        long version = clock.incrementAndGet();
+        pageVersions.put(versionKey(site, pageDescriptor), version);
+        siteVersions.put(site, version);
+    }
+
+    /**
+     * Called when something every macro result may depend on changes, such as namespace permissions.
+     */
+    public void clear() {
+        purgeAll();
+        DbSupport.afterCompletion(this::purgeAll);
+    }
+
+    synchronized void purgeAll() {
+        clearedAt = clock.incrementAndGet();
+        entries.clear();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.get(), misses.get(), stale.get(), entries.size());
+    }
+
+    static String versionKey(String site, String pageDescriptor) {
+        return site + "\t" + PageService.decodeDescriptor(pageDescriptor).toString().toLowerCase();
+    }
+}
@@ -1,13 +1,13 @@
 package us.calubrecht.lazerwiki.service;
 
 import jakarta.annotation.PostConstruct;
-import org.apache.commons.lang3.BooleanUtils;
-import org.apache.commons.text.StringEscapeUtils;
+import jakarta.annotation.PreDestroy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
 import org.springframework.data.util.AnnotatedTypeScanner;
 import org.springframework.stereotype.Service;
 import us.calubrecht.lazerwiki.macro.CustomMacro;
@@ -18,21 +18,28 @@ import us.calubrecht.lazerwiki.model.PageDescriptor;
 import us.calubrecht.lazerwiki.model.RenderResult;
 import us.calubrecht.lazerwiki.responses.PageData;
 import us.calubrecht.lazerwiki.responses.SearchResult;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderBudget;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderState;
+import us.calubrecht.lazerwiki.service.renderhelpers.doku.LinkResolver;
+import us.calubrecht.lazerwiki.util.HtmlEscaper;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.LINKS;
-
 @Service
 public class MacroService {
     final Logger logger = LogManager.getLogger(getClass());
     final Map<String, Macro> macros = new HashMap<>();
+    final Map<String, Duration> resultCacheTtls = new ConcurrentHashMap<>();
+    static final String DEPENDENCIES_KEY = "macroDependencies";
 
     @Autowired
     MacroCssService macroCssService;
@@ -46,9 +53,87 @@ public class MacroService {
     @Autowired
     LinkOverrideService linkOverrideService;
 
+    @Autowired
+    LinkResolver linkResolver;
+
+    @Autowired
+    MacroResultCache macroResultCache;
+
+    @Autowired
+    NamespaceService namespaceService;
+
+    @Autowired
+    Environment env;
+
+    @Autowired
+    RenderBudgetService renderBudgetService;
+
     @Value("#{'${lazerwiki.plugin.scan.packages}'.split(',')}")
     private List<String> macroPackages;
 
+    // Threads shared by all requests for rendering uncached pages in getCachedRenders, 0 to render on the caller
+    @Value("${lazerwiki.macro.render.threads:4}")
+    int renderThreads;
+
+    // Most of the pool one getCachedRenders call may use, counting the calling thread
+    @Value("${lazerwiki.macro.render.concurrency:4}")
+    int renderConcurrency;
+
+    @Value("${lazerwiki.macro.render.deadline.ms:30000}")
+    long renderDeadlineMs;
+
+    // Threads running the MacroContext async calls, 0 to run them on the caller
+    @Value("${lazerwiki.macro.async.threads:4}")
+    int asyncThreads;
+
+    ExecutorService renderPool;
+    ExecutorService asyncPool;
+    // Sub-renders of the same page running at once for different requests
+    SingleFlight<SubRenderKey, SubRender> subRenders;
+    static final ThreadLocal<Boolean> onAsyncThread = ThreadLocal.withInitial(() -> false);
+
+    @PostConstruct
+    public void startPools() {
+        subRenders = new SingleFlight<>(renderDeadlineMs);
+        if (renderThreads > 0) {
+            AtomicInteger threadNum = new AtomicInteger();
+            renderPool = Executors.newFixedThreadPool(renderThreads, r -> {
+                Thread t = new Thread(r, "macro-render-" + threadNum.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        if (asyncThreads > 0) {
+            AtomicInteger threadNum = new AtomicInteger();
+            asyncPool = Executors.newFixedThreadPool(asyncThreads, r -> {
+                Thread t = new Thread(() -> {
+                    onAsyncThread.set(true);
+                    r.run();
+                }, "macro-async-" + threadNum.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    @PreDestroy
+    public void stopPools() {
+        if (renderPool != null) {
+            renderPool.shutdownNow();
+        }
+        if (asyncPool != null) {
+            asyncPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Executor for async MacroContext calls. Calls made from the async pool itself, by macros in pages it is
+     * rendering, run inline so the pool can't fill up with tasks waiting on tasks queued behind them.
+     */
+    Executor asyncExecutor() {
+        return asyncPool == null || onAsyncThread.get() ? Runnable::run : asyncPool;
+    }
+
     public void registerMacro(Macro macro) {
         logger.info("Registering macro " + macro.getName() + " as " + macro.getClass());
         macros.put(macro.getName(), macro);
@@ -71,7 +156,7 @@ public class MacroService {
     }
 
     protected String sanitize(String input) {
-        return StringEscapeUtils.escapeHtml4(input).replaceAll("&quot;", "\"");
+        return HtmlEscaper.escape(input);
     }
 
     public String renderMacro(String macroText, String fullText, RenderContext renderContext) {
@@ -79,8 +164,7 @@ public class MacroService {
         String macroName = parts[0];
         String macroArgs = parts.length > 1 ? parts[1] : "";
 
-        @SuppressWarnings("unchecked")
-        boolean forCache = BooleanUtils.isTrue((Boolean)renderContext.renderState().get(RenderResult.RENDER_STATE_KEYS.FOR_CACHE.name()));
+        boolean forCache = renderContext.state().isForCache();
 
         Macro macro = macros.get(macroName);
         if (macro == null) {
@@ -95,27 +179,183 @@ public class MacroService {
             return "";
         }
         renderContext.renderState().put(macroKey, "1");
+        // Macros get their own budget within the page's, only renders for viewing have one.
+        RenderState state = renderContext.state();
+        RenderBudget pageBudget = state.getBudget();
+        RenderBudget macroBudget = pageBudget == null ? null : renderBudgetService.newMacroBudget(pageBudget);
+        if (macroBudget != null) {
+            state.setBudget(macroBudget);
+        }
         try {
-            return macro.render(new MacroContextImpl(renderContext), macroArgs);
+            Duration ttl = forCache ? Duration.ZERO : resultCacheTtl(macro);
+            if (ttl.isZero() || ttl.isNegative()) {
+                return macro.render(new MacroContextImpl(renderContext), macroArgs);
+            }
+            return renderWithResultCache(macro, macroArgs, ttl, renderContext);
         } finally {
             renderContext.renderState().remove(macroKey);
+            if (macroBudget != null) {
+                state.setBudget(pageBudget);
+                renderBudgetService.checkBudget(renderContext, macroName, macroBudget);
+            }
         }
     }
 
-    Pattern macroPattern = Pattern.compile("~~MACRO~~(.*?)~~/MACRO~~", Pattern.MULTILINE | Pattern.DOTALL);
-    public String postRender(String fullText, RenderContext context) {
-        Matcher matcher = macroPattern.matcher(fullText);
-        return matcher.replaceAll(matched -> {
-            String macroText = matched.group(1);
-            return renderMacro(macroText, matched.group(0), context);
+    Duration resultCacheTtl(Macro macro) {
+        return resultCacheTtls.computeIfAbsent(macro.getName(), name -> {
+            Long seconds = env.getProperty("lazerwiki.macro." + name + ".result.cache.seconds", Long.class);
+            return seconds == null ? macro.getResultCacheTtl() : Duration.ofSeconds(seconds);
         });
     }
 
+    String renderWithResultCache(Macro macro, String macroArgs, Duration ttl, RenderContext renderContext) {
+        RenderState state = renderContext.state();
+        MacroDependencies parent = (MacroDependencies) state.get(DEPENDENCIES_KEY);
+        MacroResultCache.Key key = new MacroResultCache.Key(renderContext.host(), renderContext.page(), macro.getName(),
+                macroArgs, namespaceService.aclClass(renderContext.site(), renderContext.user()), Boolean.TRUE.equals(state.get("plainText")));
+        MacroResultCache.Result cached = macroResultCache.get(key);
+        if (cached != null) {
+            // Replay what the macro did to the page when it ran
+            state.addLinks(cached.links());
+            if (cached.dontCache()) {
+                state.setDontCache(true);
+            }
+            if (parent != null) {
+                parent.addPages(cached.dependencies());
+                if (cached.siteWide()) {
+                    parent.addSite();
+                }
+            }
+            return cached.html();
+        }
+        long asOf = macroResultCache.now();
+        MacroDependencies dependencies = new MacroDependencies(parent);
+        state.put(DEPENDENCIES_KEY, dependencies);
+        String html;
+        try {
+            html = macro.render(new MacroContextImpl(renderContext, dependencies), macroArgs);
+        } finally {
+            if (parent == null) {
+                state.remove(DEPENDENCIES_KEY);
+            } else {
+                state.put(DEPENDENCIES_KEY, parent);
+            }
+        }
+        if (dependencies.partial || (state.getBudget() != null && state.getBudget().isSpent())) {
+            // Partial output, don't reuse it
+            return html;
+        }
+        macroResultCache.put(key, new MacroResultCache.Result(html, Set.copyOf(dependencies.links), dependencies.dontCache,
+                renderContext.site(), Set.copyOf(dependencies.pages), dependencies.siteWide, asOf,
+                System.currentTimeMillis() + ttl.toMillis()));
+        return html;
+    }
+
+    /**
+     * What a macro whose output is being cached read while rendering. Macros run in sub-renders record into the
+     * nearest enclosing cached macro, which passes them on to its parents.
+     */
+    static class MacroDependencies {
+        final MacroDependencies parent;
+        final Set<String> pages = ConcurrentHashMap.newKeySet();
+        final Set<String> links = ConcurrentHashMap.newKeySet();
+        volatile boolean siteWide = false;
+        volatile boolean dontCache = false;
+        // Output was left out, so isn't reused
+        volatile boolean partial = false;
+
+        MacroDependencies(MacroDependencies parent) {
+            this.parent = parent;
+        }
+
+        void addPages(Collection<String> newPages) {
+            for (MacroDependencies d = this; d != null; d = d.parent) {
+                d.pages.addAll(newPages);
+            }
+        }
+
+        void addSite() {
+            for (MacroDependencies d = this; d != null; d = d.parent) {
+                d.siteWide = true;
+            }
+        }
+
+        void setPartial() {
+            for (MacroDependencies d = this; d != null; d = d.parent) {
+                d.partial = true;
+            }
+        }
+    }
+
+    static final String NOT_RENDERED = "<div class=\"partialRender\">This page took too long to render and has been left out.</div>";
+
+    static final String MACRO_START = "~~MACRO~~";
+    static final String MACRO_END = "~~/MACRO~~";
+
+    /**
+     * Finish html rendered for the cache: fill its link slots and run the macros that couldn't be cached. Text with
+     * nothing to fill in is returned as is.
+     */
+    public String postRender(String fullText, RenderContext context) {
+        String text = linkResolver.resolve(context.host(), fullText);
+        int start = text.indexOf(MACRO_START);
+        if (start == -1) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length());
+        int copied = 0;
+        while (start != -1) {
+            int end = text.indexOf(MACRO_END, start + MACRO_START.length());
+            if (end == -1) {
+                break;
+            }
+            int macroEnd = end + MACRO_END.length();
+            out.append(text, copied, start);
+            out.append(renderMacro(text.substring(start + MACRO_START.length(), end), text.substring(start, macroEnd), context));
+            copied = macroEnd;
+            start = text.indexOf(MACRO_START, copied);
+        }
+        out.append(text, copied, text.length());
+        return out.toString();
+    }
+
     class MacroContextImpl implements Macro.MacroContext {
         private final RenderContext renderContext;
+        // Set when this macro's output is going in the result cache
+        private final MacroDependencies cachedResult;
+        private RenderBatch pendingBatch;
 
         public MacroContextImpl(RenderContext renderContext) {
+            this(renderContext, null);
+        }
+
+        MacroContextImpl(RenderContext renderContext, MacroDependencies cachedResult) {
             this.renderContext = renderContext;
+            this.cachedResult = cachedResult;
+        }
+
+        private void readPages(Collection<String> pageDescriptors) {
+            MacroDependencies dependencies = (MacroDependencies) renderContext.renderState().get(DEPENDENCIES_KEY);
+            if (dependencies != null) {
+                dependencies.addPages(pageDescriptors);
+            }
+        }
+
+        private void readSite() {
+            MacroDependencies dependencies = (MacroDependencies) renderContext.renderState().get(DEPENDENCIES_KEY);
+            if (dependencies != null) {
+                dependencies.addSite();
+            }
+        }
+
+        @Override
+        public void addDependency(String pageDescriptor) {
+            readPages(List.of(pageDescriptor));
+        }
+
+        @Override
+        public void addSiteDependency() {
+            readSite();
         }
 
         @Override
@@ -123,8 +363,64 @@ public class MacroService {
             return MacroService.this.sanitize(input);
         }
 
+        /**
+         * A context for running calls on the async pool, with its own fork of the render state so nothing the pool
+         * does touches this render's state. Must be made on the thread running the macro.
+         */
+        private MacroContextImpl asyncContext() {
+            return new MacroContextImpl(new RenderContext(renderContext.host(), renderContext.site(), renderContext.page(),
+                    renderContext.user(), renderContext.renderer(), forkState()));
+        }
+
+        @Override
+        public CompletableFuture<RenderOutput> renderPageAsync(String pageDescriptor) {
+            MacroContextImpl async = asyncContext();
+            return CompletableFuture.supplyAsync(() -> async.renderPage(pageDescriptor), asyncExecutor());
+        }
+
+        /**
+         * Requests made while a batch is waiting for or being fetched by the pool are fetched together with one
+         * getCachedRenders call.
+         */
+        @Override
+        public CompletableFuture<RenderOutput> getCachedRenderAsync(String pageDescriptor) {
+            readPages(List.of(pageDescriptor));
+            CompletableFuture<RenderOutput> future = new CompletableFuture<>();
+            RenderBatch batch;
+            synchronized (this) {
+                if (pendingBatch != null && pendingBatch.add(pageDescriptor, future)) {
+                    return future;
+                }
+                batch = new RenderBatch(asyncContext());
+                batch.add(pageDescriptor, future);
+                pendingBatch = batch;
+            }
+            asyncExecutor().execute(() -> {
+                synchronized (this) {
+                    if (pendingBatch == batch) {
+                        pendingBatch = null;
+                    }
+                }
+                batch.run();
+            });
+            return future;
+        }
+
+        @Override
+        public CompletableFuture<List<String>> getPagesByNSAndTagAsync(String ns, String tag) {
+            MacroContextImpl async = asyncContext();
+            return CompletableFuture.supplyAsync(() -> async.getPagesByNSAndTag(ns, tag), asyncExecutor());
+        }
+
+        @Override
+        public CompletableFuture<List<String>> getLinksOnPageAsync(String page) {
+            MacroContextImpl async = asyncContext();
+            return CompletableFuture.supplyAsync(() -> async.getLinksOnPage(page), asyncExecutor());
+        }
+
         @Override
         public RenderOutput renderPage(String pageDescriptor) {
+            readPages(List.of(pageDescriptor));
             PageData page = pageService.getPageData(renderContext.host(), pageDescriptor, renderContext.user());
             if (!page.flags().exists() || !page.flags().userCanRead()) {
                 return new RenderOutputImpl("", new HashMap<String, Object>(page.flags().toMap()));
@@ -143,19 +439,59 @@ public class MacroService {
 
         @NotNull
         private RenderOutput doRender(PageData page, String pageDescriptor) {
+            return doRender(page, pageDescriptor, forkState());
+        }
+
+        /**
+         * Renders for views of the same page that start while one is running wait for it and share its output, when
+         * they render the same markup in equivalent states. Renders for the cache aren't shared, their state is kept.
+         */
+        @NotNull
+        private RenderOutput doRender(PageData page, String pageDescriptor, RenderState state) {
+            String inputs = state.isForCache() ? null : state.inputKey(Set.of(DEPENDENCIES_KEY));
+            if (inputs == null) {
+                return renderNow(page, pageDescriptor, state).output(page);
+            }
+            SubRenderKey key = new SubRenderKey(renderContext.host(), pageDescriptor.toLowerCase(), page.source(),
+                    namespaceService.aclClass(renderContext.site(), renderContext.user()), inputs);
+            boolean[] rendered = {false};
+            SubRender sub = subRenders.run(key, () -> {
+                rendered[0] = true;
+                return renderNow(page, pageDescriptor, state);
+            });
+            if (!rendered[0]) {
+                if (!sub.complete()) {
+                    // Cut short by the other request's budget
+                    return renderNow(page, pageDescriptor, state).output(page);
+                }
+                // Record what the shared render read, as it would have been recorded rendering here
+                MacroDependencies dependencies = (MacroDependencies) state.get(DEPENDENCIES_KEY);
+                if (dependencies != null) {
+                    dependencies.addPages(sub.pages());
+                    if (sub.siteWide()) {
+                        dependencies.addSite();
+                    }
+                }
+            }
+            return sub.output(page);
+        }
+
+        private SubRender renderNow(PageData page, String pageDescriptor, RenderState state) {
+            MacroDependencies parent = (MacroDependencies) state.get(DEPENDENCIES_KEY);
+            MacroDependencies recorded = new MacroDependencies(parent);
+            state.put(DEPENDENCIES_KEY, recorded);
             RenderContext subrenderContext = new RenderContext(renderContext.host(), renderContext.site(), pageDescriptor,
-                    renderContext.user(), renderContext.renderer(), new HashMap<>());
-            subrenderContext.renderState().putAll(renderContext.renderState());
-            // Allow inner page render to generate its own title
-            subrenderContext.renderState().remove(RenderResult.RENDER_STATE_KEYS.TITLE.name());
+                    renderContext.user(), renderContext.renderer(), state);
             RenderResult res = renderContext.renderer().renderWithInfo(page.source(), subrenderContext);
-            Map<String, Object> renderState = new HashMap<>(res.renderState());
-            renderState.putAll(page.flags().toMap());
-            return new RenderOutputImpl(res.renderedText(), renderState);
+            Map<String, Object> output = new HashMap<>(RenderState.of(res.renderState()));
+            output.remove(DEPENDENCIES_KEY);
+            boolean complete = state.getBudget() == null || !state.getBudget().isSpent();
+            return new SubRender(res.renderedText(), output, Set.copyOf(recorded.pages), recorded.siteWide, complete);
         }
 
         @Override
         public RenderOutput getCachedRender(String pageDescriptor) {
+            readPages(List.of(pageDescriptor));
             long start = System.currentTimeMillis();
             PageData page = pageService.getPageData(renderContext.host(), pageDescriptor, renderContext.user());
             long fetchedPageData = System.currentTimeMillis();
@@ -177,6 +513,7 @@ public class MacroService {
 
         @Override
         public Map<String, RenderOutput> getCachedRenders(List<String> pageDescriptors) {
+            readPages(pageDescriptors);
             long start = System.currentTimeMillis();
             Map<PageDescriptor, PageData> pages = pageService.getPageData(renderContext.host(), pageDescriptors, renderContext.user());
             long gotPageData = System.currentTimeMillis();
@@ -184,11 +521,15 @@ public class MacroService {
             long gotCacheData = System.currentTimeMillis();
             Map<String, PageData> pageMap = pages.entrySet().stream().collect(Collectors.toMap(pd -> pd.getKey().toString(), Map.Entry::getValue));
             Map<String, PageCache> pageCacheMap = pageCaches.stream().collect(Collectors.toMap(pc -> new PageDescriptor(pc.namespace, pc.pageName).toString(), pc -> pc));
-            Map<String, RenderOutput> outputMap = new HashMap<>();
+            Map<String, RenderOutput> outputMap = new LinkedHashMap<>();
+            List<String> toRender = new ArrayList<>();
+            List<RenderState> renderStates = new ArrayList<>();
             AtomicLong totalRenderTime = new AtomicLong(0);
             AtomicLong numCachedPages = new AtomicLong(0);
-            AtomicLong numRenderedPages = new AtomicLong(0);
             pageDescriptors.forEach(pd -> {
+                        if (outputMap.containsKey(pd)) {
+                            return;
+                        }
                         PageData page = pageMap.get(pd);
                         if (page == null) {
                             outputMap.put(pd, new RenderOutputImpl("",  new HashMap<>()));
@@ -207,13 +548,70 @@ public class MacroService {
                             outputMap.put(pd, new RenderOutputImpl(rendered, renderState));
                             return;
                         }
-                        long renderStart = System.currentTimeMillis();
-                        outputMap.put(pd, doRender(page, pd));
-                        long renderEnd = System.currentTimeMillis();
-                        numRenderedPages.addAndGet(1);
-                        totalRenderTime.addAndGet(renderEnd - renderStart);
+                        // Hold the place so the output keeps the requested order
+                        outputMap.put(pd, null);
+                        toRender.add(pd);
+                        // Forked here, forking modifies this render's state so can't be done from the workers
+                        renderStates.add(forkState());
                     }
             );
+            AtomicReferenceArray<RenderOutput> rendered = new AtomicReferenceArray<>(toRender.size());
+            AtomicInteger next = new AtomicInteger();
+            long deadline = System.currentTimeMillis() + renderDeadlineMs;
+            Runnable worker = () -> {
+                for (int i = next.getAndIncrement(); i < rendered.length(); i = next.getAndIncrement()) {
+                    if (System.currentTimeMillis() > deadline) {
+                        return;
+                    }
+                    long renderStart = System.currentTimeMillis();
+                    rendered.set(i, doRender(pageMap.get(toRender.get(i)), toRender.get(i), renderStates.get(i)));
+                    totalRenderTime.addAndGet(System.currentTimeMillis() - renderStart);
+                }
+            };
+            List<RenderHelper> helpers = new ArrayList<>();
+            int numHelpers = renderPool == null ? 0 : Math.min(renderConcurrency, rendered.length()) - 1;
+            for (int i = 0; i < numHelpers; i++) {
+                AtomicBoolean started = new AtomicBoolean();
+                helpers.add(new RenderHelper(started, renderPool.submit(() -> {
+                    if (started.compareAndSet(false, true)) {
+                        worker.run();
+                    }
+                })));
+            }
+            // The caller works too, so a render always progresses even when the pool is busy with other requests or
+            // with the renders this one is nested in.
+            worker.run();
+            for (RenderHelper helper : helpers) {
+                // Helpers that never started have nothing left to do. A running one can't be told apart by cancel(),
+                // which also succeeds on tasks that are running.
+                if (helper.started().compareAndSet(false, true)) {
+                    helper.future().cancel(false);
+                    continue;
+                }
+                try {
+                    helper.future().get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    logger.warn("getCachedRenders passed its deadline of {}ms", renderDeadlineMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+                }
+            }
+            AtomicLong numRenderedPages = new AtomicLong(0);
+            for (int i = 0; i < rendered.length(); i++) {
+                String pd = toRender.get(i);
+                RenderOutput output = rendered.get(i);
+                if (output == null) {
+                    logger.warn("getCachedRenders did not render {} before its deadline", pd);
+                    output = new RenderOutputImpl(NOT_RENDERED, new HashMap<String, Object>(pageMap.get(pd).flags().toMap()));
+                    setPartial();
+                } else {
+                    numRenderedPages.addAndGet(1);
+                }
+                outputMap.put(pd, output);
+            }
             logger.info("getCachedRenders. {} pages. getPageData={}ms. getCachedPages={}ms. {} cachedPages. {} renderedPages. renderTime={}",
               pageDescriptors.size(), gotPageData - start, gotCacheData-gotPageData, numCachedPages.get(), numRenderedPages.get(), totalRenderTime.get());
             return outputMap;
@@ -221,6 +619,7 @@ public class MacroService {
 
         @Override
         public List<String> getPagesByNSAndTag(String ns, String tag) {
+            readSite();
             return pageService.searchPages(renderContext.host(), renderContext.user(), Map.of("tag", tag, "ns", ns)).
                     get("tag").
                     stream().map(SearchResult::getDescriptor).toList();
@@ -228,6 +627,7 @@ public class MacroService {
 
         @Override
         public List<String> getAllPages() {
+            readSite();
             return pageService.getAllPagesFlat(renderContext.host(), renderContext.user());
         }
 
@@ -238,6 +638,7 @@ public class MacroService {
 
         @Override
         public List<String> getLinksOnPage(String page) {
+            readPages(List.of(page));
             List<String> links = linkService.getLinksOnPage(renderContext.site(), page);
             Map<String,LinkOverride> overrides = linkOverrideService.getOverrides(renderContext.host(), page).
                     stream().collect(Collectors.toMap(link -> link.getTarget(), Function.identity()));
@@ -253,20 +654,51 @@ public class MacroService {
             return realLinks;
         }
 
+        @Override
+        public Map<String, List<String>> getLinkGraph() {
+            readSite();
+            return pageService.getLinkGraph(renderContext.host(), renderContext.user());
+        }
+
+        /**
+         * State for a sub-render, sharing this render's state until either modifies it.
+         */
+        private RenderState forkState() {
+            RenderState state = renderContext.state().fork();
+            // Allow inner page render to generate its own title
+            state.setTitle(null);
+            return state;
+        }
+
         @Override
         public RenderOutput renderMarkup(String markup) {
             RenderContext subrenderContext = new RenderContext(renderContext.host(), renderContext.site(), renderContext.page(),
-                    renderContext.user(), renderContext.renderer(), new HashMap<>());
-            subrenderContext.renderState().putAll(renderContext.renderState());
-            // Allow inner page render to generate its own title
-            subrenderContext.renderState().remove(RenderResult.RENDER_STATE_KEYS.TITLE.name());
+                    renderContext.user(), renderContext.renderer(), forkState());
             RenderResult res = renderContext.renderer().renderWithInfo(markup, subrenderContext);
             return new RenderOutputImpl(res.renderedText(), res.renderState());
         }
 
+        @Override
+        public boolean isOverBudget() {
+            RenderBudget budget = renderContext.state().getBudget();
+            return budget != null && budget.isExceeded();
+        }
+
         @Override
         public void setPageDontCache() {
-            renderContext.renderState().put(RenderResult.RENDER_STATE_KEYS.DONT_CACHE.name(), true);
+            renderContext.state().setDontCache(true);
+            if (cachedResult != null) {
+                cachedResult.dontCache = true;
+            }
+        }
+
+        // Part of the output was left out, so neither the page nor the macro's result can be kept
+        void setPartial() {
+            setPageDontCache();
+            MacroDependencies dependencies = (MacroDependencies) renderContext.renderState().get(DEPENDENCIES_KEY);
+            if (dependencies != null) {
+                dependencies.setPartial();
+            }
         }
 
         @Override
@@ -279,9 +711,58 @@ public class MacroService {
             if (newLinks == null) {
                 return;
             }
-            @SuppressWarnings("unchecked")
-            Collection<String> existingLinks = (Collection<String>) renderContext.renderState().computeIfAbsent(LINKS.name(), (k) -> new HashSet<>());
-            existingLinks.addAll(newLinks);
+            renderContext.state().addLinks(newLinks);
+            if (cachedResult != null) {
+                cachedResult.links.addAll(newLinks);
+            }
+        }
+    }
+
+    static class RenderBatch implements Runnable {
+        final MacroContextImpl context;
+        final Map<String, List<CompletableFuture<Macro.MacroContext.RenderOutput>>> requests = new LinkedHashMap<>();
+        boolean started = false;
+
+        RenderBatch(MacroContextImpl context) {
+            this.context = context;
+        }
+
+        // False once the batch has started fetching and can't take more
+        synchronized boolean add(String pageDescriptor, CompletableFuture<Macro.MacroContext.RenderOutput> future) {
+            if (started) {
+                return false;
+            }
+            requests.computeIfAbsent(pageDescriptor, k -> new ArrayList<>()).add(future);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                started = true;
+            }
+            try {
+                Map<String, Macro.MacroContext.RenderOutput> outputs = context.getCachedRenders(new ArrayList<>(requests.keySet()));
+                requests.forEach((pd, futures) -> futures.forEach(f -> f.complete(outputs.get(pd))));
+            } catch (RuntimeException e) {
+                requests.values().forEach(futures -> futures.forEach(f -> f.completeExceptionally(e)));
+            }
+        }
+    }
+
+    record RenderHelper(AtomicBoolean started, Future<?> future) {}
+
+    record SubRenderKey(String host, String page, String source, String aclClass, String inputs) {}
+
+    /**
+     * A sub-render's output, shared between the requests that waited for it. Each gets its own state to modify, with
+     * its own flags for the page.
+     */
+    record SubRender(String html, Map<String, Object> state, Set<String> pages, boolean siteWide, boolean complete) {
+        RenderOutputImpl output(PageData page) {
+            RenderState renderState = new RenderState(state).fork();
+            renderState.putAll(page.flags().toMap());
+            return new RenderOutputImpl(html, renderState);
         }
     }
 
@@ -33,6 +33,12 @@ public class NamespaceService {
     @Autowired
     UserService userService;
 
+    @Autowired
+    MacroResultCache macroResultCache;
+
+    @Autowired
+    SharedPageCache sharedPageCache;
+
     final Logger logger = LogManager.getLogger(getClass());
 
     public String parentNamespace(String namespace) {
@@ -117,6 +123,27 @@ public class NamespaceService {
         return !intersection.isEmpty() && canWriteNamespace(site, namespace, userName);
     }
 
+    /**
+     * Users in the same class can read, write, delete and upload in the same namespaces of the site, so can be shown the
+     * same pages. Only the site's roles and site-less roles count, so users differing in roles for other sites share a class.
+     * Users without a user record can do what guests can.
+     */
+    public String aclClass(String site, String userName) {
+        if (User.isGuest(userName)) {
+            return User.GUEST;
+        }
+        User user = userService.getUser(userName);
+        if (user == null || user.roles == null) {
+            return User.GUEST;
+        }
+        String siteRoles = user.roles.stream().map(role -> role.role).
+                filter(role -> {
+                    String[] parts = role.split(":", 3);
+                    return parts.length == 1 || parts[1].equals(site);
+                }).sorted().distinct().collect(Collectors.joining(","));
+        return "user:" + siteRoles;
+    }
+
     public List<PageDesc>  filterReadablePages(List<PageDesc> allValid, String site, String userName) {
         Set<String> unreadableNamespaces = allValid.stream().map(PageDesc::getNamespace).distinct().
                 filter(ns -> !canReadNamespace(site, ns, userName)).collect(Collectors.toSet());
@@ -155,6 +182,9 @@ public class NamespaceService {
     @CacheEvict(value = "FindBySiteAndNamespace", allEntries = true)
     public void setNSRestriction(String site, String namespace, Namespace.RESTRICTION_TYPE restrictionType) {
         Namespace nsObj = namespaceRepository.findBySiteAndNamespace(site, namespace);
+        // Cached macro output may show pages that are no longer readable
+        macroResultCache.clear();
+        sharedPageCache.clear();
         if (restrictionType == Namespace.RESTRICTION_TYPE.INHERIT) {
             if (nsObj != null) {
                 namespaceRepository.delete(nsObj);
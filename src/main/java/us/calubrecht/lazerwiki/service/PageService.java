@@ -5,7 +5,6 @@ import com.github.difflib.text.DiffRowGenerator;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Limit;
 import org.springframework.data.util.Pair;
-import org.apache.commons.text.StringEscapeUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,8 +17,10 @@ import us.calubrecht.lazerwiki.responses.PageData.PageFlags;
 import us.calubrecht.lazerwiki.service.exception.PageReadException;
 import us.calubrecht.lazerwiki.service.exception.PageWriteException;
 import us.calubrecht.lazerwiki.util.DbSupport;
+import us.calubrecht.lazerwiki.util.HtmlEscaper;
 
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -49,6 +50,9 @@ public class PageService {
     @Autowired
     PageCacheRepository pageCacheRepository;
 
+    @Autowired
+    RenderedPageCache renderedPageCache;
+
     @Autowired
     LinkOverrideService linkOverrideService;
 
@@ -73,6 +77,39 @@ public class PageService {
         return p == null ? pd.renderedName() : (p.getTitle() == null ? pd.renderedName() : p.getTitle());
     }
 
+    public record LinkTarget(boolean exists, String title) {}
+
+    /**
+     * exists and getTitle for many pages with a single query, keyed by the passed page names.
+     */
+    public Map<String, LinkTarget> getLinkTargets(String host, Collection<String> pageNames) {
+        Map<String, LinkTarget> targets = new HashMap<>();
+        if (pageNames.isEmpty()) {
+            return targets;
+        }
+        String site = siteService.getSiteForHostname(host);
+        Map<String, PageDescriptor> descriptors = new HashMap<>();
+        pageNames.forEach(name -> descriptors.put(name, decodeDescriptor(name)));
+        List<String> keys = descriptors.values().stream().map(pd -> pd.namespace() + ":" + pd.pageName()).distinct().toList();
+        // Titles may be null, so check containsKey for existence. The db may match names case insensitively, as a
+        // single page lookup would.
+        Map<String, String> titles = new HashMap<>();
+        Map<String, String> titlesIgnoreCase = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (PageTitle pageTitle : pageRepository.getTitlesBySiteAndNamespaceAndPagename(dbEngine, site, keys)) {
+            String key = pageTitle.getNamespace() + ":" + pageTitle.getPagename();
+            titles.put(key, pageTitle.getTitle());
+            titlesIgnoreCase.put(key, pageTitle.getTitle());
+        }
+        descriptors.forEach((name, pd) -> {
+            String key = pd.namespace() + ":" + pd.pageName();
+            Map<String, String> found = titles.containsKey(key) ? titles : titlesIgnoreCase;
+            boolean exists = found.containsKey(key);
+            String title = found.get(key);
+            targets.put(name, new LinkTarget(exists, title == null ? pd.renderedName() : title));
+        });
+        return targets;
+    }
+
     @Transactional
     public PageData getPageData(String host, String sPageDescriptor, String userName) {
         logger.info("fetch page: host=" + host + " sPageDescriptor=" + sPageDescriptor + " userName=" + userName);
@@ -162,6 +199,21 @@ public class PageService {
     }
 
 
+    /**
+     * Id and revision of the page as it is now, without loading its text. Null if it was never created.
+     */
+    public PageVersion getPageVersion(String host, String sPageDescriptor) {
+        String site = siteService.getSiteForHostname(host);
+        PageDescriptor pageDescriptor = decodeDescriptor(sPageDescriptor);
+        return pageRepository.getVersionBySiteAndNamespaceAndPagename(site, pageDescriptor.namespace(), pageDescriptor.pageName());
+    }
+
+    public PageVersion getPageVersion(String host, String sPageDescriptor, long revision) {
+        String site = siteService.getSiteForHostname(host);
+        PageDescriptor pageDescriptor = decodeDescriptor(sPageDescriptor);
+        return pageRepository.findBySiteAndNamespaceAndPagenameAndRevision(site, pageDescriptor.namespace(), pageDescriptor.pageName(), revision, PageVersion.class);
+    }
+
     public PageCache getCachedPage(String host, String sPageDescriptor) {
         String site = siteService.getSiteForHostname(host);
         PageDescriptor pageDescriptor = decodeDescriptor(sPageDescriptor);
@@ -194,6 +246,7 @@ public class PageService {
         newCache.source = adjustSource(source, rendered);
         newCache.title = (String)rendered.renderState().get(RenderResult.RENDER_STATE_KEYS.TITLE.name());
         pageCacheRepository.save(newCache);
+        renderedPageCache.invalidate(site, sPageDescriptor);
     }
 
     public String adjustSource(String source, RenderResult rendered) {
@@ -313,6 +366,25 @@ public class PageService {
         return namespaceService.canReadNamespace(site, pd.namespace(), userName);
     }
 
+    /**
+     * Links on every page in the site with overrides applied, keyed by source page. Pages and targets in namespaces the
+     * user can't read are left out, each namespace is checked once.
+     */
+    public Map<String, List<String>> getLinkGraph(String host, String userName) {
+        String site = siteService.getSiteForHostname(host);
+        Map<String, List<String>> graph = linkService.getLinkGraph(site);
+        Map<String, Boolean> readableNamespaces = new HashMap<>();
+        Predicate<String> readable = pd -> readableNamespaces.computeIfAbsent(PageDescriptor.fromFullName(pd).namespace(),
+                ns -> namespaceService.canReadNamespace(site, ns, userName));
+        Map<String, List<String>> readableGraph = new LinkedHashMap<>();
+        graph.forEach((source, targets) -> {
+            if (readable.test(source)) {
+                readableGraph.put(source, targets.stream().filter(readable).toList());
+            }
+        });
+        return readableGraph;
+    }
+
     public List<String> getAllTags(String host, String userName) {
         String site = siteService.getSiteForHostname(host);
         return tagRepository.getAllActiveTags(site);
@@ -373,7 +445,7 @@ public class PageService {
                         }
                     }
                     return false;
-                }).map(line -> StringEscapeUtils.escapeHtml4(line).replaceAll("&quot;", "\"")).findFirst();
+                }).map(HtmlEscaper::escape).findFirst();
         return new SearchResult(pc.getNamespace(), pc.getPagename(), pc.getTitle(), searchLine.orElse(null));
     }
 
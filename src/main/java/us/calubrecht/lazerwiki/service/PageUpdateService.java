@@ -58,6 +58,15 @@ public class PageUpdateService {
     @Autowired
     PageCacheRepository pageCacheRepository;
 
+    @Autowired
+    MacroResultCache macroResultCache;
+
+    @Autowired
+    RenderedPageCache renderedPageCache;
+
+    @Autowired
+    SharedPageCache sharedPageCache;
+
     @Autowired
     PageLockService pageLockService;
 
@@ -109,6 +118,9 @@ public class PageUpdateService {
         pageLockService.releaseAnyPageLock(host, sPageDescriptor);
         linkService.setLinksFromPage(site, pageDescriptor.namespace(), pageDescriptor.pageName(), links);
         imageRefService.setImageRefsFromPage(site, pageDescriptor.namespace(), pageDescriptor.pageName(), images);
+        macroResultCache.pageChanged(site, sPageDescriptor);
+        renderedPageCache.invalidate(site, sPageDescriptor);
+        sharedPageCache.siteChanged(site);
         if (p == null  || p.isDeleted()) {
             em.flush(); // Flush so regen can work?
             regenCacheService.regenCachesForBacklinks(site,sPageDescriptor);
@@ -154,7 +166,10 @@ public class PageUpdateService {
         linkService.deleteLinks(site, sPageDescriptor);
         PageCache.PageCacheKey key = new PageCache.PageCacheKey(site, pageDescriptor.namespace(), pageDescriptor.pageName());
         pageCacheRepository.deleteById(key);
+        renderedPageCache.invalidate(site, sPageDescriptor);
         activityLogService.log(ActivityType.ACTIVITY_PROTO_DELETE_PAGE, site, user, sPageDescriptor);
+        macroResultCache.pageChanged(site, sPageDescriptor);
+        sharedPageCache.siteChanged(site);
         em.flush(); // Flush so regen can work?
         regenCacheService.regenCachesForBacklinks(site,sPageDescriptor);
         linkOverrideService.deleteOverrides(host, sPageDescriptor);
@@ -0,0 +1,98 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * LRU cache of parse trees keyed by a hash of the markup they were parsed from. Bounded by the total length of the
+ * cached sources, which is a reasonable proxy for the size of the trees and tokens retained. Cached trees are shared
+ * between renders and must not be modified.
+ */
+public class ParseTreeCache {
+    public record Stats(long hits, long misses, long evictions, int entries, long weight, long maxWeight) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double)hits / total;
+        }
+    }
+
+    record Entry(ParseTree tree, int weight) {}
+
+    final long maxWeight;
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    long weight = 0;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+
+    public ParseTreeCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public ParseTree get(String markup, Function<String, ParseTree> parser) {
+        if (maxWeight <= 0) {
+            misses.incrementAndGet();
+            return parser.apply(markup);
+        }
+        String key = hash(markup);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.tree();
+            }
+        }
+        misses.incrementAndGet();
+        // Parse outside the lock, concurrent misses on the same source just parse twice.
+        ParseTree tree = parser.apply(markup);
+        put(key, new Entry(tree, markup.length()));
+        return tree;
+    }
+
+    synchronized void put(String key, Entry entry) {
+        // Don't let one huge page flush everything else.
+        if (entry.weight() > maxWeight / 4) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            weight -= old.weight();
+        }
+        weight += entry.weight();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            weight -= eldest.weight();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.get(), misses.get(), evictions.get(), entries.size(), weight, maxWeight);
+    }
+
+    static String hash(String markup) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(markup.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
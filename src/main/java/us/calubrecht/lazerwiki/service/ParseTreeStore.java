@@ -0,0 +1,106 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import us.calubrecht.lazerwiki.service.parser.doku.ParseTreeSerializer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the serialized parse tree of each page's current markup on disk, under the site's directory next to its media
+ * cache, so renders after a link target or override changes can read the tree back instead of parsing the page. One
+ * file per page, replaced when the page is parsed again. A file is only used if it was written from the same markup by
+ * the same grammar.
+ */
+public class ParseTreeStore {
+    final Logger logger = LogManager.getLogger(getClass());
+
+    public record Stats(long hits, long misses, long writes, long failures) {}
+
+    final String staticFileRoot;
+    final boolean enabled;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong writes = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+
+    public ParseTreeStore(String staticFileRoot, boolean enabled) {
+        this.staticFileRoot = staticFileRoot;
+        this.enabled = enabled && staticFileRoot != null;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    Path pathFor(String site, String page) {
+        return Paths.get(staticFileRoot, site, "parse-cache", ParseTreeCache.hash(page.toLowerCase()));
+    }
+
+    /**
+     * The stored tree for the page if it was parsed from this markup, read over input, which must be the char stream
+     * the markup is parsed from. Null if there is none.
+     */
+    public ParseTree load(String site, String page, String markup, CharStream input) {
+        if (!enabled) {
+            return null;
+        }
+        Path path = pathFor(site, page);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            ParseTree tree = in.readUTF().equals(ParseTreeCache.hash(markup)) ? ParseTreeSerializer.deserialize(in, input) : null;
+            (tree == null ? misses : hits).incrementAndGet();
+            return tree;
+        }
+        catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+        catch (IOException | RuntimeException e) {
+            logger.warn("Could not read stored parse tree for " + site + ":" + page, e);
+            failures.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void save(String site, String page, String markup, ParseTree tree) {
+        if (!enabled) {
+            return;
+        }
+        Path path = pathFor(site, page);
+        Path tmp = null;
+        try {
+            Files.createDirectories(path.getParent());
+            // Written aside and moved into place, so concurrent renders of the page never read half a file
+            tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeUTF(ParseTreeCache.hash(markup));
+                ParseTreeSerializer.serialize(tree, out);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writes.incrementAndGet();
+        }
+        catch (IOException | RuntimeException e) {
+            logger.warn("Could not store parse tree for " + site + ":" + page, e);
+            failures.incrementAndGet();
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.get(), misses.get(), writes.get(), failures.get());
+    }
+}
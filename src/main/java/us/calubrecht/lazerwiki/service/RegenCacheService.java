@@ -9,6 +9,7 @@ import us.calubrecht.lazerwiki.model.*;
 import us.calubrecht.lazerwiki.repository.PageCacheRepository;
 import us.calubrecht.lazerwiki.repository.PageRepository;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
+import us.calubrecht.lazerwiki.service.renderhelpers.doku.LinkResolver;
 
 import java.util.*;
 
@@ -37,6 +38,12 @@ public class RegenCacheService {
     @Autowired
     PageCacheRepository pageCacheRepository;
 
+    @Autowired
+    RenderedPageCache renderedPageCache;
+
+    @Autowired
+    SharedPageCache sharedPageCache;
+
     @Autowired
     SiteService siteService;
 
@@ -51,7 +58,8 @@ public class RegenCacheService {
             Page p = pageRepository.getBySiteAndNamespaceAndPagenameAndDeleted(siteKey, pd.getNamespace(), pd.getPagename(), false);
             PageDescriptor desc = new PageDescriptor(pd.getNamespace(), pd.getPagename());
             RenderContext renderContext = new RenderContext("", siteKey, desc.toString(), UserService.SYS_USER);
-            renderContext.renderState().put(RenderResult.RENDER_STATE_KEYS.FOR_CACHE.name(), Boolean.TRUE);
+            renderContext.state().setForCache(true);
+            renderContext.state().setPersistTree(true);
             RenderResult res = renderer.renderWithInfo(p.getText(), renderContext);
             Collection<String> links = (Collection<String>)res.renderState().getOrDefault(RenderResult.RENDER_STATE_KEYS.LINKS.name(), Collections.emptySet());
             Collection<String> images = (Collection<String>)res.renderState().getOrDefault(RenderResult.RENDER_STATE_KEYS.IMAGES.name(), Collections.emptySet());
@@ -60,6 +68,8 @@ public class RegenCacheService {
             logger.info("Setting " + links.size() + " images for " + pd.getNamespace() + ":" + pd.getPagename());
             imageRefService.setImageRefsFromPage(siteKey, pd.getNamespace(), pd.getPagename(), images);
         });
+        // Backlinks may have changed
+        sharedPageCache.siteChanged(siteKey);
     }
 
     @Transactional
@@ -68,12 +78,14 @@ public class RegenCacheService {
         String host = siteService.getHostForSitename(siteKey);
         logger.info("Regening cache table for " +siteKey + " " + host);
         pageCacheRepository.deleteBySite(siteKey);
+        renderedPageCache.invalidateSite(siteKey);
         List<PageDesc> pages = pageRepository.getAllValid(siteKey);
         pages.forEach(pd -> {
             Page p = pageRepository.getBySiteAndNamespaceAndPagenameAndDeleted(siteKey, pd.getNamespace(), pd.getPagename(), false);
             PageDescriptor desc = new PageDescriptor(pd.getNamespace(), pd.getPagename());
             RenderContext renderContext = new RenderContext(host, siteKey, desc.toString(), UserService.SYS_USER);
-            renderContext.renderState().put(RenderResult.RENDER_STATE_KEYS.FOR_CACHE.name(), Boolean.TRUE);
+            renderContext.state().setForCache(true);
+            renderContext.state().setPersistTree(true);
             logger.info("Render: " + desc.toString());
             RenderResult res = renderer.renderWithInfo(p.getText(), renderContext);
             PageCache newCache = new PageCache();
@@ -87,13 +99,17 @@ public class RegenCacheService {
             newCache.useCache = !(Boolean)res.renderState().getOrDefault(RenderResult.RENDER_STATE_KEYS.DONT_CACHE.name(), Boolean.FALSE);
             logger.info("Caching rendered page for " + pd.getNamespace() + ":" + pd.getPagename() + " useCache=" + newCache.useCache);
             pageCacheRepository.save(newCache);
+            renderedPageCache.invalidate(siteKey, desc.toString());
         });
+        sharedPageCache.siteChanged(siteKey);
     }
 
     public void regenCachesForBacklinks(String site, String linkedPage) {
         String host = siteService.getHostForSitename(site);
         logger.info("Regening cache for links to " +site + "-" + linkedPage);
-        List<String> backlinks = linkService.getBacklinks(site, linkedPage);
+        // Pages whose links to linkedPage are all still slots in their cache will show the change when served
+        List<String> backlinks = linkService.getBacklinks(site, linkedPage).stream().
+                filter(link -> !isLateBound(site, link, linkedPage)).toList();
         List<String> overrideBacklinks = linkOverrideService.getOverridesForNewTargetPage(host, linkedPage).stream().map(
                 LinkOverride::getSource
         ).toList();
@@ -104,7 +120,8 @@ public class RegenCacheService {
             PageDescriptor pd = PageService.decodeDescriptor(link);
             Page p = pageRepository.getBySiteAndNamespaceAndPagenameAndDeleted(site, pd.namespace(), pd.pageName(), false);
             RenderContext renderContext = new RenderContext(host, site, pd.toString(), UserService.SYS_USER);
-            renderContext.renderState().put(RenderResult.RENDER_STATE_KEYS.FOR_CACHE.name(), Boolean.TRUE);
+            renderContext.state().setForCache(true);
+            renderContext.state().setPersistTree(true);
             RenderResult res = renderer.renderWithInfo(p.getText(), renderContext);
             PageCache newCache = new PageCache();
             newCache.site = site;
@@ -117,7 +134,15 @@ public class RegenCacheService {
             newCache.useCache = !(Boolean)res.renderState().getOrDefault(RenderResult.RENDER_STATE_KEYS.DONT_CACHE.name(), Boolean.FALSE);
             logger.info("Caching rendered page for " + pd.namespace() + ":" + pd.pageName() + " useCache=" + newCache.useCache);
             pageCacheRepository.save(newCache);
+            renderedPageCache.invalidate(site, pd.toString());
         });
+        sharedPageCache.siteChanged(site);
+    }
+
+    boolean isLateBound(String site, String page, String linkedPage) {
+        PageDescriptor pd = PageService.decodeDescriptor(page);
+        return pageCacheRepository.findById(new PageCache.PageCacheKey(site, pd.namespace(), pd.pageName())).
+                map(pc -> pc.renderedCache != null && LinkResolver.isLateBound(pc.renderedCache, linkedPage)).orElse(false);
     }
 
     public void regenCachesForImageRefs(String site, String oldImageRef, String newImageRef) {
@@ -134,7 +159,8 @@ public class RegenCacheService {
             PageDescriptor pd = PageService.decodeDescriptor(link);
             Page p = pageRepository.getBySiteAndNamespaceAndPagenameAndDeleted(site, pd.namespace(), pd.pageName(), false);
             RenderContext renderContext = new RenderContext(host, site, pd.toString(), UserService.SYS_USER);
-            renderContext.renderState().put(RenderResult.RENDER_STATE_KEYS.FOR_CACHE.name(), Boolean.TRUE);
+            renderContext.state().setForCache(true);
+            renderContext.state().setPersistTree(true);
             RenderResult res = renderer.renderWithInfo(p.getText(), renderContext);
             PageCache newCache = new PageCache();
             newCache.site = site;
@@ -147,6 +173,8 @@ public class RegenCacheService {
             newCache.useCache = !(Boolean)res.renderState().getOrDefault(RenderResult.RENDER_STATE_KEYS.DONT_CACHE.name(), Boolean.FALSE);
             logger.info("Caching rendered page for " + pd.namespace() + ":" + pd.pageName() + " useCache=" + newCache.useCache);
             pageCacheRepository.save(newCache);
+            renderedPageCache.invalidate(site, pd.toString());
         });
+        sharedPageCache.siteChanged(site);
     }
 }
@@ -0,0 +1,84 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderBudget;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Hands out render budgets and keeps the pages that overran them, so admins can find pages or macros that are too
+ * expensive to render.
+ */
+@Service
+public class RenderBudgetService {
+    final Logger logger = LogManager.getLogger(getClass());
+
+    public record Overrun(String site, String page, String macro, RenderBudget.Limit limit, long elapsedMillis,
+                          long count, LocalDateTime lastSeen) {}
+
+    record OverrunKey(String site, String page, String macro) {}
+
+    // Limits of 0 or less are unlimited
+    @Value("${lazerwiki.render.budget.ms:10000}")
+    long renderMillis;
+
+    @Value("${lazerwiki.render.budget.nodes:500000}")
+    long renderNodes;
+
+    @Value("${lazerwiki.macro.budget.ms:5000}")
+    long macroMillis;
+
+    @Value("${lazerwiki.macro.budget.nodes:200000}")
+    long macroNodes;
+
+    static final int MAX_OVERRUNS = 500;
+
+    final LinkedHashMap<OverrunKey, Overrun> overruns = new LinkedHashMap<>(16, 0.75f, true);
+
+    public RenderBudget newRenderBudget() {
+        return new RenderBudget(renderMillis, renderNodes, null);
+    }
+
+    public RenderBudget newMacroBudget(RenderBudget parent) {
+        return new RenderBudget(macroMillis, macroNodes, parent);
+    }
+
+    /**
+     * Record the render if it skipped nodes because it ran out of budget. Macro is null for a page render.
+     */
+    public void checkBudget(RenderContext context, String macro, RenderBudget budget) {
+        if (budget == null || !budget.isRefused()) {
+            return;
+        }
+        RenderBudget.Limit limit = budget.getExceeded();
+        long elapsed = budget.elapsedMillis();
+        logger.warn("Render budget exceeded ({}) after {}ms. site={} page={} macro={}", limit, elapsed, context.site(), context.page(), macro);
+        OverrunKey key = new OverrunKey(context.site(), context.page(), macro);
+        synchronized (overruns) {
+            Overrun last = overruns.get(key);
+            overruns.put(key, new Overrun(context.site(), context.page(), macro, limit, elapsed,
+                    last == null ? 1 : last.count() + 1, LocalDateTime.now()));
+            Iterator<OverrunKey> it = overruns.keySet().iterator();
+            while (overruns.size() > MAX_OVERRUNS && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Overruns in a site, most recent first.
+     */
+    public List<Overrun> getOverruns(String site) {
+        synchronized (overruns) {
+            List<Overrun> siteOverruns = new ArrayList<>(overruns.values().stream().filter(o -> o.site().equals(site)).toList());
+            Collections.reverse(siteOverruns);
+            return siteOverruns;
+        }
+    }
+}
@@ -1,26 +1,34 @@
 package us.calubrecht.lazerwiki.service;
 
+import jakarta.annotation.PostConstruct;
 import org.apache.commons.lang3.time.StopWatch;
-import org.apache.commons.text.StringEscapeUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import us.calubrecht.lazerwiki.model.PageCache;
 import us.calubrecht.lazerwiki.model.PageDesc;
+import us.calubrecht.lazerwiki.model.PageVersion;
 import us.calubrecht.lazerwiki.model.RenderResult;
 import us.calubrecht.lazerwiki.responses.PageData;
 import us.calubrecht.lazerwiki.service.exception.PageWriteException;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderBudget;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderState;
+import us.calubrecht.lazerwiki.util.HtmlEscaper;
 
 import java.util.*;
-
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.ID_SUFFIX;
+import java.util.stream.Collectors;
 
 @Service
 public class RenderService {
     final Logger logger = LogManager.getLogger(getClass());
 
+    // Previews render as the page with this suffix, so they don't pick up what belongs to the saved page (overrides,
+    // macro results, budget overruns)
+    public static final String PREVIEW_SUFFIX = "<preview>";
+
     @Autowired
     IMarkupRenderer renderer;
 
@@ -36,7 +44,106 @@ public class RenderService {
     @Autowired
     SiteService siteService;
 
+    @Autowired
+    RenderBudgetService renderBudgetService;
+
+    @Autowired
+    RenderedPageCache renderedPageCache;
+
+    @Autowired
+    SharedPageCache sharedPageCache;
+
+    @Autowired
+    NamespaceService namespaceService;
+
+    // How long a view waits for another view's render of the same page before rendering it itself
+    @Value("${lazerwiki.render.coalesce.wait.ms:30000}")
+    long coalesceWaitMs;
+
+    SingleFlight<ColdRenderKey, ColdRender> coldRenders;
+
+    @PostConstruct
+    public void init() {
+        coldRenders = new SingleFlight<>(coalesceWaitMs);
+    }
+
     public PageData getRenderedPage(String host, String sPageDescriptor, String userName) {
+        return renderPage(host, sPageDescriptor, userName).page();
+    }
+
+    /**
+     * A page as the user sees it, as the JSON response. Users of the same ACL class see the same flags and backlinks, so
+     * unless macros ran for the view the page is served from the shared page cache for the class.
+     */
+    public PageJson getPageJson(String host, String sPageDescriptor, String userName) {
+        String site = siteService.getSiteForHostname(host);
+        SharedPageCache.Key key = new SharedPageCache.Key(site, host, sPageDescriptor, namespaceService.aclClass(site, userName));
+        byte[] cached = sharedPageCache.get(key);
+        if (cached != null) {
+            return new PageJson(cached, true);
+        }
+        long asOf = sharedPageCache.now();
+        RenderedPage rendered = renderPage(host, sPageDescriptor, userName);
+        return new PageJson(sharedPageCache.put(key, rendered.page(), rendered.shareable(), asOf), rendered.shareable());
+    }
+
+    /**
+     * Strong ETag for the page as getPageJson returns it now, found without loading or rendering the page. It changes
+     * with the page's revision, with any change in the site (which can change its links, backlinks and macro output) and
+     * with the user's ACL class. Only valid for shareable responses.
+     */
+    public String getPageETag(String host, String sPageDescriptor, String userName) {
+        String site = siteService.getSiteForHostname(host);
+        PageVersion version = pageService.getPageVersion(host, sPageDescriptor);
+        return eTag("page", site, RenderedPageCache.key(site, sPageDescriptor).page(), version == null ? null : version.getId(),
+                version == null ? null : version.getRevision(), sharedPageCache.generation(site), namespaceService.aclClass(site, userName));
+    }
+
+    /**
+     * ETag for a revision of the page. Its source doesn't change once written, but its links and macros show the site as
+     * it is now, so the tag changes with any change in the site as getPageETag's does. Null if the revision doesn't exist
+     * or the user can't read it.
+     */
+    public String getHistoricalPageETag(String host, String sPageDescriptor, long revision, String userName) {
+        String site = siteService.getSiteForHostname(host);
+        if (!namespaceService.canReadNamespace(site, PageService.decodeDescriptor(sPageDescriptor).namespace(), userName)) {
+            return null;
+        }
+        PageVersion version = pageService.getPageVersion(host, sPageDescriptor, revision);
+        return version == null ? null : eTag("historical", site, version.getId(), revision,
+                sharedPageCache.generation(site), namespaceService.aclClass(site, userName));
+    }
+
+    /**
+     * ETag for the diff between two revisions of the page, which doesn't change. Null if the page doesn't exist or the
+     * user can't read it.
+     */
+    public String getPageDiffETag(String host, String sPageDescriptor, long rev1, long rev2, String userName) {
+        String site = siteService.getSiteForHostname(host);
+        if (!namespaceService.canReadNamespace(site, PageService.decodeDescriptor(sPageDescriptor).namespace(), userName)) {
+            return null;
+        }
+        PageVersion version = pageService.getPageVersion(host, sPageDescriptor);
+        return version == null ? null : eTag("diff", site, version.getId(), rev1, rev2);
+    }
+
+    static String eTag(Object... parts) {
+        return "\"" + ParseTreeCache.hash(Arrays.stream(parts).map(String::valueOf).collect(Collectors.joining("/"))) + "\"";
+    }
+
+    public record PageJson(byte[] json, boolean shareable) {}
+
+    /**
+     * A rendered page, and whether it is the same on every view until something in the site changes (or, for a
+     * historical revision, ever): no macros were run for this view, and the render wasn't cut short.
+     */
+    public record RenderedPage(PageData page, boolean shareable) {}
+
+    static boolean runsMacros(String renderedCache) {
+        return renderedCache != null && renderedCache.contains(MacroService.MACRO_START);
+    }
+
+    RenderedPage renderPage(String host, String sPageDescriptor, String userName) {
         StopWatch sw = StopWatch.createStarted();
         String site = siteService.getSiteForHostname(host);
         PageData d = pageService.getPageData(host, sPageDescriptor, userName);
@@ -44,75 +151,139 @@ public class RenderService {
           XXX:Could make these renderable templates;
          */
         if (!d.flags().userCanRead()) {
-            return d;
+            return new RenderedPage(d, true);
         }
         if (d.flags().moved()) {
             RenderResult rendered = renderer.renderWithInfo(d.source(), host, site, sPageDescriptor, userName);
             PageData pd = new PageData(rendered.renderedText(), d.source(), d.title(), d.tags(), d.backlinks(), d.flags(), d.id(), d.revision());
-            return pd;
+            return new RenderedPage(pd, false);
         }
         if (!d.flags().exists()) {
-            return d;
+            return new RenderedPage(d, true);
         }
         sw.split();
         long queryMillis = sw.getSplitTime();
-        PageCache cachedPage = pageService.getCachedPage(host, sPageDescriptor);
+        PageCache cachedPage = getCachedPage(host, site, sPageDescriptor, d.revision());
+        RenderBudget budget = renderBudgetService.newRenderBudget();
         if (cachedPage != null && cachedPage.useCache) {
-            RenderContext macroRenderContext = new RenderContext(host, site, sPageDescriptor, userName, renderer, new HashMap<>());
+            RenderContext macroRenderContext = new RenderContext(host, site, sPageDescriptor, userName, renderer, new RenderState());
+            macroRenderContext.state().setBudget(budget);
             String rendered = macroService.postRender(cachedPage.renderedCache, macroRenderContext);
+            renderBudgetService.checkBudget(macroRenderContext, null, budget);
             PageData pd = new PageData(rendered, cachedPage.source, d.title(), d.tags(), d.backlinks(), d.flags(), d.id(), d.revision());
             sw.stop();
             long totalMillis = sw.getTime();
             logger.info("Render " + sPageDescriptor + " took (" + totalMillis + "," + queryMillis + "," + (totalMillis-queryMillis) + ")ms (Total,Query,QueryCache)");
-            return pd;
+            return new RenderedPage(pd, !runsMacros(cachedPage.renderedCache) && (budget == null || !budget.isSpent()));
         }
         try {
-            RenderContext renderContext = new RenderContext(host, site, sPageDescriptor, userName);
-            renderContext.renderState().put(RenderResult.RENDER_STATE_KEYS.FOR_CACHE.name(), Boolean.TRUE);
-            RenderResult cacheRender = renderer.renderWithInfo(d.source(), renderContext);
-            RenderContext macroRenderContext = new RenderContext(host, site, sPageDescriptor, userName, renderer, new HashMap<>());
-            String rendered = macroService.postRender(cacheRender.renderedText(), macroRenderContext);
-            String source = pageService.adjustSource(d.source(), cacheRender);
-            PageData pd = new PageData(rendered, source, d.title(), d.tags(), d.backlinks(), d.flags(), d.id(), d.revision());
+            // Views of a page that isn't cached yet all need the same render for the cache, so only one of them does it
+            boolean[] leader = {false};
+            ColdRender cold = coldRenders.run(new ColdRenderKey(site, RenderedPageCache.key(site, sPageDescriptor).page(), d.revision()),
+                    () -> {
+                        leader[0] = true;
+                        return renderForCache(host, site, sPageDescriptor, userName, d.source(), budget);
+                    });
+            if (!leader[0] && !cold.complete()) {
+                // Cut short by the other view's budget
+                cold = renderForCache(host, site, sPageDescriptor, userName, d.source(), budget);
+            }
+            RenderContext macroRenderContext = new RenderContext(host, site, sPageDescriptor, userName, renderer, new RenderState());
+            macroRenderContext.state().setBudget(budget);
+            String rendered = macroService.postRender(cold.renderedText(), macroRenderContext);
+            renderBudgetService.checkBudget(macroRenderContext, null, budget);
+            PageData pd = new PageData(rendered, cold.source(), d.title(), d.tags(), d.backlinks(), d.flags(), d.id(), d.revision());
             sw.stop();
             long totalMillis = sw.getTime();
-            pageService.saveCache(host, sPageDescriptor, d.source(), cacheRender);
             logger.info("Render " + sPageDescriptor + " took (" + totalMillis + "," + queryMillis + "," + (totalMillis-queryMillis) + ")ms (Total,Query,Render)");
-            return pd;
+            boolean complete = cold.complete() && (budget == null || !budget.isSpent());
+            return new RenderedPage(pd, complete && !cold.dontCache() && !runsMacros(cold.renderedText()));
         }
         catch (Exception e) {
             logger.error("Render failed! host= " + host + " sPageDescriptor= " + sPageDescriptor + " user=" + userName + ".", e);
-            String sanitizedSource =  StringEscapeUtils.escapeHtml4(d.source()).replaceAll("&quot;", "\"");
+            String sanitizedSource =  HtmlEscaper.escape(d.source());
 
-            return new PageData("<h1>Error</h1>\n<div>There was an error rendering this page! Please contact an admin, or correct the markup</div>\n<code>%s</code>".formatted(sanitizedSource),
-                    d.source(), d.tags(), d.backlinks(),d.flags());
+            return new RenderedPage(new PageData("<h1>Error</h1>\n<div>There was an error rendering this page! Please contact an admin, or correct the markup</div>\n<code>%s</code>".formatted(sanitizedSource),
+                    d.source(), d.tags(), d.backlinks(),d.flags()), false);
 
         }
 
     }
 
+    record ColdRenderKey(String site, String page, Long revision) {}
+
+    /**
+     * A page rendered for the cache, shared by the views waiting on it. Each view still finishes it for its user.
+     */
+    record ColdRender(String renderedText, String source, boolean dontCache, boolean complete) {}
+
+    ColdRender renderForCache(String host, String site, String sPageDescriptor, String userName, String markup, RenderBudget budget) {
+        RenderContext renderContext = new RenderContext(host, site, sPageDescriptor, userName);
+        renderContext.state().setForCache(true);
+        renderContext.state().setPersistTree(true);
+        renderContext.state().setBudget(budget);
+        RenderResult cacheRender = renderer.renderWithInfo(markup, renderContext);
+        // A partial render is only shown, it isn't kept
+        boolean complete = budget == null || !budget.isSpent();
+        if (complete) {
+            pageService.saveCache(host, sPageDescriptor, markup, cacheRender);
+        }
+        boolean dontCache = (Boolean)cacheRender.renderState().getOrDefault(RenderResult.RENDER_STATE_KEYS.DONT_CACHE.name(), Boolean.FALSE);
+        return new ColdRender(cacheRender.renderedText(), pageService.adjustSource(markup, cacheRender), dontCache, complete);
+    }
+
+    /**
+     * The page's cache row, from the in-heap cache if it was cached at this revision.
+     */
+    PageCache getCachedPage(String host, String site, String sPageDescriptor, Long revision) {
+        if (revision == null) {
+            return pageService.getCachedPage(host, sPageDescriptor);
+        }
+        RenderedPageCache.Key key = RenderedPageCache.key(site, sPageDescriptor);
+        RenderedPageCache.Entry entry = renderedPageCache.get(key, revision);
+        if (entry != null) {
+            PageCache cachedPage = new PageCache(site, null, null, null, entry.renderedCache(), null, entry.useCache());
+            cachedPage.source = entry.source();
+            return cachedPage;
+        }
+        long asOf = renderedPageCache.now();
+        PageCache cachedPage = pageService.getCachedPage(host, sPageDescriptor);
+        if (cachedPage != null) {
+            renderedPageCache.put(key, new RenderedPageCache.Entry(revision, cachedPage.renderedCache, cachedPage.source, cachedPage.useCache), asOf);
+        }
+        return cachedPage;
+    }
+
     public PageData getHistoricalRenderedPage(String host, String sPageDescriptor, long revision, String userName) {
+        return renderHistoricalPage(host, sPageDescriptor, revision, userName).page();
+    }
+
+    public RenderedPage renderHistoricalPage(String host, String sPageDescriptor, long revision, String userName) {
         String site = siteService.getSiteForHostname(host);
         PageData d = pageService.getHistoricalPageData(host, sPageDescriptor, revision, userName);
         if (!d.flags().exists()) {
-            return d;
+            return new RenderedPage(d, false);
         }
         if (!d.flags().userCanRead()) {
-            return d;
+            return new RenderedPage(d, false);
         }
         try {
             RenderContext context = new RenderContext(host, site, sPageDescriptor, userName);
-            context.renderState().put(ID_SUFFIX.name(), "_historyView");
+            context.state().setIdSuffix("_historyView");
+            RenderBudget budget = renderBudgetService.newRenderBudget();
+            context.state().setBudget(budget);
             RenderResult rendered = renderer.renderWithInfo(d.source(), context);
+            renderBudgetService.checkBudget(context, null, budget);
             PageData pd = new PageData(rendered.renderedText(), d.source(), d.title(), d.tags(), d.backlinks(), d.flags());
-            return pd;
+            boolean dontCache = (Boolean)rendered.renderState().getOrDefault(RenderResult.RENDER_STATE_KEYS.DONT_CACHE.name(), Boolean.FALSE);
+            return new RenderedPage(pd, (budget == null || !budget.isSpent()) && !dontCache);
         }
         catch (Exception e) {
             logger.error("Render failed! host= " + host + " sPageDescriptor= " + sPageDescriptor + " user=" + userName + ".", e);
-            String sanitizedSource =  StringEscapeUtils.escapeHtml4(d.source()).replaceAll("&quot;", "\"");
+            String sanitizedSource =  HtmlEscaper.escape(d.source());
 
-            return new PageData("<h1>Error</h1>\n<div>There was an error rendering this page! Please contact an admin, or correct the markup</div>\n<code>%s</code>".formatted(sanitizedSource),
-                    d.source(), d.tags(), d.backlinks(),d.flags());
+            return new RenderedPage(new PageData("<h1>Error</h1>\n<div>There was an error rendering this page! Please contact an admin, or correct the markup</div>\n<code>%s</code>".formatted(sanitizedSource),
+                    d.source(), d.tags(), d.backlinks(),d.flags()), false);
         }
     }
 
@@ -120,7 +291,9 @@ public class RenderService {
     public void savePage(String host, String sPageDescriptor,String text, List<String> tags, long revision, boolean force, String userName) throws PageWriteException {
         String site = siteService.getSiteForHostname(host);
         RenderContext renderContext = new RenderContext(host, site, sPageDescriptor, userName);
-        renderContext.renderState().put(RenderResult.RENDER_STATE_KEYS.FOR_CACHE.name(), Boolean.TRUE);
+        renderContext.state().setForCache(true);
+        renderContext.state().setMemoizeBlocks(true);
+        renderContext.state().setPersistTree(true);
         RenderResult res = renderer.renderWithInfo(text, renderContext);
         Collection<String> links = (Collection<String>)res.renderState().getOrDefault(RenderResult.RENDER_STATE_KEYS.LINKS.name(), Collections.emptySet());
         Collection<String> images = (Collection<String>)res.renderState().getOrDefault(RenderResult.RENDER_STATE_KEYS.IMAGES.name(), Collections.emptySet());
@@ -132,9 +305,13 @@ public class RenderService {
         StopWatch sw = StopWatch.createStarted();
         String site = siteService.getSiteForHostname(host);
         try {
-            RenderContext context = new RenderContext(host, site, sPageDescriptor+"<preview>", userName);
-            context.renderState().put(ID_SUFFIX.name(), "_previewPage");
+            RenderContext context = new RenderContext(host, site, sPageDescriptor + PREVIEW_SUFFIX, userName);
+            context.state().setIdSuffix("_previewPage");
+            context.state().setMemoizeBlocks(true);
+            RenderBudget budget = renderBudgetService.newRenderBudget();
+            context.state().setBudget(budget);
             PageData pd = new PageData(renderer.renderToString(text, context), text, null, null, null);
+            renderBudgetService.checkBudget(context, null, budget);
             sw.stop();
             long totalMillis = sw.getTime();
             logger.info("Render preview for " + sPageDescriptor + " took " + totalMillis + "ms");
@@ -143,7 +320,7 @@ public class RenderService {
         catch (Exception e) {
             sw.stop();
             logger.error("Render preview failed! host= " + host + " sPageDescriptor= " + sPageDescriptor + " user=" + userName + ".", e);
-            String sanitizedSource =  StringEscapeUtils.escapeHtml4(text).replaceAll("&quot;", "\"");
+            String sanitizedSource =  HtmlEscaper.escape(text);
 
             return new PageData("<h1>Error</h1>\n<div>There was an error rendering this page! Please contact an admin, or correct the markup</div>\n<code>%s</code>".formatted(sanitizedSource),
                     text, null, null, null);
@@ -0,0 +1,137 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import us.calubrecht.lazerwiki.util.DbSupport;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-heap copy of the parts of page cache rows that views use (the rendered html with its link slots, and the adjusted
+ * source), in front of PageCacheRepository, so views of hot pages don't fetch the row. An entry is only used for the
+ * revision it was cached at. Bounded by the total length of what it holds, evicting the least recently used pages.
+ * <p>
+ * Whatever writes or deletes a page cache row invalidates the page. Like MacroResultCache, each invalidation stamps the
+ * page with a version from a clock, and a row fetched before the page's latest invalidation isn't cached. Rows are
+ * mostly written in transactions, so an invalidation counts again once its transaction completes.
+ */
+@Service
+public class RenderedPageCache {
+    public record Key(String site, String page) {}
+
+    public record Entry(long revision, String renderedCache, String source, boolean useCache) {
+        long weight() {
+            return (renderedCache == null ? 0 : renderedCache.length()) + (source == null ? 0 : source.length());
+        }
+    }
+
+    public record Stats(long hits, long misses, long evictions, long invalidations, int entries, long weight, long maxWeight) {}
+
+    // Total length of cached html and source, 0 to disable
+    @Value("${lazerwiki.render.page.cache.max.chars:20000000}")
+    long maxWeight;
+
+    final AtomicLong clock = new AtomicLong();
+    final Map<Key, Long> pageVersions = new ConcurrentHashMap<>();
+    final Map<String, Long> siteVersions = new ConcurrentHashMap<>();
+    final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    long weight = 0;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+    final AtomicLong invalidations = new AtomicLong();
+
+    public static Key key(String site, String pageDescriptor) {
+        return new Key(site, PageService.decodeDescriptor(pageDescriptor).toString().toLowerCase());
+    }
+
+    /**
+     * Version to pass to put for a row about to be fetched.
+     */
+    public long now() {
+        return clock.get();
+    }
+
+    public Entry get(Key key, long revision) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null || entry.revision() != revision) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    public void put(Key key, Entry entry, long asOf) {
+        if (maxWeight <= 0 || entry.weight() > maxWeight / 4) {
+            return;
+        }
+        synchronized (this) {
+            // Invalidated while the row was being fetched, it may already be out of date.
+            if (pageVersions.getOrDefault(key, 0L) > asOf || siteVersions.getOrDefault(key.site(), 0L) > asOf) {
+                return;
+            }
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                weight -= old.weight();
+            }
+            weight += entry.weight();
+            Iterator<Entry> it = entries.values().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                weight -= eldest.weight();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Called when a page's cache row is written or deleted.
+     */
+    public void invalidate(String site, String pageDescriptor) {
+        Key key = key(site, pageDescriptor);
+        purge(key);
+        DbSupport.afterCompletion(() -> purge(key));
+        invalidations.incrementAndGet();
+    }
+
+    synchronized void purge(Key key) {
+        pageVersions.put(key, clock.incrementAndGet());
+        Entry old = entries.remove(key);
+        if (old != null) {
+            weight -= old.weight();
+        }
+    }
+
+    /**
+     * Called when all of a site's cache rows are regenerated or deleted.
+     */
+    public void invalidateSite(String site) {
+        purgeSite(site);
+        DbSupport.afterCompletion(() -> purgeSite(site));
+        invalidations.incrementAndGet();
+    }
+
+    synchronized void purgeSite(String site) {
+        siteVersions.put(site, clock.incrementAndGet());
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getKey().site().equals(site)) {
+                weight -= e.getValue().weight();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.get(), misses.get(), evictions.get(), invalidations.get(), entries.size(), weight, maxWeight);
+    }
+}
@@ -1,37 +1,118 @@
 package us.calubrecht.lazerwiki.service;
 
 import jakarta.annotation.PostConstruct;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ErrorNodeImpl;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import us.calubrecht.lazerwiki.service.renderhelpers.TreeRenderer;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class RendererRegistrar {
+    final Logger logger = LogManager.getLogger(getClass());
+
     @Autowired
     Set<TreeRenderer> renderers;
     Map<Class, TreeRenderer> renderersForClass;
     Map<String, TreeRenderer> renderersForAdditiveClass;
 
+    // Resolved at startup so per node dispatch is an array index, see getRenderer(ParseTree)
+    TreeRenderer[] renderersForRule = new TreeRenderer[0];
+    boolean[] ruleHasSpecificRenderer = new boolean[0];
+    TreeRenderer[] renderersForAdditiveId = new TreeRenderer[0];
+    TreeRenderer terminalRenderer;
+    TreeRenderer errorRenderer;
+
     final TreeRenderer DEFAULT_RENDERER = new TreeRenderer.DefaultRenderer();
 
     @PostConstruct
     public void linkBeans() {
         renderersForClass = new ConcurrentHashMap<>();
         renderersForAdditiveClass = new ConcurrentHashMap<>();
+        Map<String, Integer> additiveIds = new HashMap<>();
         for (TreeRenderer renderer : renderers) {
             renderer.getTargets().forEach(cl -> renderersForClass.put(cl, renderer));
             if (renderer.isAdditive()) {
                 renderersForAdditiveClass.put(renderer.getAdditiveClass(), renderer);
+                renderer.setAdditiveId(additiveIds.computeIfAbsent(renderer.getAdditiveClass(), k -> additiveIds.size()));
             }
             renderer.setRenderers(this);
         }
         DEFAULT_RENDERER.setRenderers(this);
 
+        renderersForAdditiveId = new TreeRenderer[additiveIds.size()];
+        additiveIds.forEach((additiveClass, id) -> renderersForAdditiveId[id] = renderersForAdditiveClass.get(additiveClass));
+
+        Map<Integer, TreeRenderer> ruleRenderers = new HashMap<>();
+        renderersForClass.forEach((cl, renderer) -> {
+            int ruleIndex = getRuleIndex(cl);
+            if (ruleIndex >= 0) {
+                ruleRenderers.put(ruleIndex, renderer);
+            }
+        });
+        int ruleCount = ruleRenderers.keySet().stream().mapToInt(i -> i + 1).max().orElse(0);
+        renderersForRule = new TreeRenderer[ruleCount];
+        ruleHasSpecificRenderer = new boolean[ruleCount];
+        Arrays.fill(renderersForRule, DEFAULT_RENDERER);
+        ruleRenderers.forEach((ruleIndex, renderer) -> {
+            renderersForRule[ruleIndex] = renderer;
+            ruleHasSpecificRenderer[ruleIndex] = hasSpecificRenderer(renderer);
+        });
+        terminalRenderer = renderersForClass.getOrDefault(TerminalNodeImpl.class, DEFAULT_RENDERER);
+        errorRenderer = renderersForClass.getOrDefault(ErrorNodeImpl.class, DEFAULT_RENDERER);
+    }
+
+    /**
+     * The rule index of a generated parser context class, or -1 if it isn't one.
+     */
+    int getRuleIndex(Class<?> cl) {
+        if (!ParserRuleContext.class.isAssignableFrom(cl)) {
+            return -1;
+        }
+        try {
+            return ((ParserRuleContext)cl.getConstructor(ParserRuleContext.class, int.class).newInstance(null, 0)).getRuleIndex();
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Cannot determine rule index for {}", cl.getName());
+            return -1;
+        }
+    }
+
+    static boolean hasSpecificRenderer(TreeRenderer renderer) {
+        try {
+            return renderer.getClass().getMethod("getSpecificRenderer", ParseTree.class).getDeclaringClass() != TreeRenderer.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    public TreeRenderer getRenderer(ParseTree tree) {
+        if (tree instanceof ParserRuleContext ctx) {
+            int ruleIndex = ctx.getRuleIndex();
+            if (ruleIndex < 0 || ruleIndex >= renderersForRule.length) {
+                return DEFAULT_RENDERER;
+            }
+            TreeRenderer renderer = renderersForRule[ruleIndex];
+            return ruleHasSpecificRenderer[ruleIndex] ? renderer.getSpecificRenderer(tree) : renderer;
+        }
+        if (tree instanceof ErrorNode) {
+            return errorRenderer;
+        }
+        if (tree instanceof TerminalNode) {
+            return terminalRenderer;
+        }
+        return getRenderer(tree.getClass(), tree);
     }
 
     public TreeRenderer getRenderer(Class forClass, ParseTree tree) {
@@ -43,4 +124,8 @@ public class RendererRegistrar {
         TreeRenderer renderer = renderersForAdditiveClass.getOrDefault(additiveClass, DEFAULT_RENDERER);
         return renderer.getSpecificRenderer(tree);
     }
+
+    public TreeRenderer getAdditiveRenderer(int additiveId, ParseTree tree) {
+        return renderersForAdditiveId[additiveId].getSpecificRenderer(tree);
+    }
 }
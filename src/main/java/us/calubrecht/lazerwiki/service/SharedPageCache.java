@@ -0,0 +1,159 @@
+package us.calubrecht.lazerwiki.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import us.calubrecht.lazerwiki.responses.PageData;
+import us.calubrecht.lazerwiki.util.DbSupport;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serialized page responses, shared by every user of an ACL class (see NamespaceService.aclClass), so views by guests
+ * and by users with the same roles in a site are a map lookup. A page also shows other pages (link targets, backlinks,
+ * macros reading the site), so any change to a page in the site drops every entry for the site, and an ACL change drops
+ * everything. Pages with macros that run on each view, whose output may depend on the user, or that can't be cached,
+ * aren't kept. Entries also expire, as a bound on anything else that changes a page.
+ * <p>
+ * The version of a site also serves as the generation in page ETags. Changes count again once their transaction
+ * completes (see DbSupport.afterCompletion).
+ */
+@Service
+public class SharedPageCache {
+    public record Key(String site, String host, String page, String aclClass) {}
+
+    record Entry(byte[] json, long expires) {}
+
+    public record Stats(long hits, long misses, long purges, int entries, long weight, long maxWeight) {}
+
+    // Total size of cached responses, 0 to disable
+    @Value("${lazerwiki.shared.page.cache.max.bytes:20000000}")
+    long maxWeight;
+
+    @Value("${lazerwiki.shared.page.cache.seconds:600}")
+    long ttlSeconds;
+
+    final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Versions start over on restart, so generations carry the start time too
+    final long started = System.currentTimeMillis();
+    final AtomicLong clock = new AtomicLong();
+    final Map<String, Long> siteVersions = new ConcurrentHashMap<>();
+    volatile long clearedAt = 0;
+    final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    long weight = 0;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong purges = new AtomicLong();
+
+    /**
+     * Version to pass to put for a page about to be rendered.
+     */
+    public long now() {
+        return clock.get();
+    }
+
+    public byte[] get(Key key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() >= entry.expires()) {
+                remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.json();
+    }
+
+    /**
+     * Serialize the page, keeping it if it can be shared and nothing in the site changed since asOf.
+     */
+    public byte[] put(Key key, PageData page, boolean shareable, long asOf) {
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(page);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+        if (!shareable || maxWeight <= 0 || json.length > maxWeight / 4) {
+            return json;
+        }
+        synchronized (this) {
+            if (clearedAt > asOf || siteVersions.getOrDefault(key.site(), 0L) > asOf) {
+                return json;
+            }
+            remove(key);
+            entries.put(key, new Entry(json, System.currentTimeMillis() + ttlSeconds * 1000));
+            weight += json.length;
+            Iterator<Entry> it = entries.values().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                weight -= it.next().json().length;
+                it.remove();
+            }
+        }
+        return json;
+    }
+
+    void remove(Key key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            weight -= old.json().length;
+        }
+    }
+
+    /**
+     * Called when a page in the site is saved, deleted, moved or re-rendered.
+     */
+    public void siteChanged(String site) {
+        purgeSite(site);
+        DbSupport.afterCompletion(() -> purgeSite(site));
+    }
+
+    synchronized void purgeSite(String site) {
+        siteVersions.put(site, clock.incrementAndGet());
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getKey().site().equals(site)) {
+                weight -= e.getValue().json().length;
+                it.remove();
+            }
+        }
+        purges.incrementAndGet();
+    }
+
+    /**
+     * Called when what an ACL class can read or write changes.
+     */
+    public void clear() {
+        purgeAll();
+        DbSupport.afterCompletion(this::purgeAll);
+    }
+
+    synchronized void purgeAll() {
+        clearedAt = clock.incrementAndGet();
+        entries.clear();
+        weight = 0;
+        purges.incrementAndGet();
+    }
+
+    /**
+     * Changes whenever a cached page of the site would be dropped, including across restarts.
+     */
+    public String generation(String site) {
+        return started + "." + Math.max(clearedAt, siteVersions.getOrDefault(site, 0L));
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.get(), misses.get(), purges.get(), entries.size(), weight, maxWeight);
+    }
+}
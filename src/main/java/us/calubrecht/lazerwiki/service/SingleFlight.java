@@ -0,0 +1,81 @@
+package us.calubrecht.lazerwiki.service;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs at most one computation per key at a time: callers asking for a key that is already being computed wait for
+ * that computation and share its result instead of repeating it.
+ * <p>
+ * Renders nest, so flights could end up waiting on each other. A thread that is computing a key never waits on
+ * another flight, it computes what it needs itself, and waits are bounded, with a caller that gives up computing the
+ * result itself.
+ */
+public class SingleFlight<K, V> {
+    public record Stats(long computed, long shared, long timeouts) {}
+
+    final long waitMs;
+    final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    final ThreadLocal<Integer> leading = ThreadLocal.withInitial(() -> 0);
+
+    final AtomicLong computed = new AtomicLong();
+    final AtomicLong shared = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+
+    public SingleFlight(long waitMs) {
+        this.waitMs = waitMs;
+    }
+
+    public V run(K key, Supplier<V> compute) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            if (leading.get() > 0) {
+                computed.incrementAndGet();
+                return compute.get();
+            }
+            return await(existing, compute);
+        }
+        leading.set(leading.get() + 1);
+        try {
+            computed.incrementAndGet();
+            V value = compute.get();
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            leading.set(leading.get() - 1);
+            inFlight.remove(key, flight);
+        }
+    }
+
+    V await(CompletableFuture<V> existing, Supplier<V> compute) {
+        try {
+            V value = existing.get(waitMs, TimeUnit.MILLISECONDS);
+            shared.incrementAndGet();
+            return value;
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            if (e.getCause() instanceof Error err) {
+                throw err;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        computed.incrementAndGet();
+        return compute.get();
+    }
+
+    public Stats getStats() {
+        return new Stats(computed.get(), shared.get(), timeouts.get());
+    }
+}
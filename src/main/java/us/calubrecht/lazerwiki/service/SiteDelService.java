@@ -46,6 +46,12 @@ public class SiteDelService {
     @Autowired
     PageCacheRepository pageCacheRepository;
 
+    @Autowired
+    RenderedPageCache renderedPageCache;
+
+    @Autowired
+    SharedPageCache sharedPageCache;
+
     @Autowired
     PageLockRepository pageLockRepository;
 
@@ -68,6 +74,8 @@ public class SiteDelService {
         linkRepository.deleteBySite(name);
         namespaceRepository.deleteBySite(name);
         pageCacheRepository.deleteBySite(name);
+        renderedPageCache.invalidateSite(name);
+        sharedPageCache.siteChanged(name);
         pageLockRepository.deleteBySite(name);
         pageRepository.deleteBySite(name);
 
@@ -0,0 +1,380 @@
+package us.calubrecht.lazerwiki.service.parser.doku;
+
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+
+import java.util.List;
+
+import static us.calubrecht.lazerwiki.service.parser.doku.DokuwikiParser.*;
+
+/**
+ * A hand-written, single pass parser over the lexer's tokens for the markup most pages use: headers, paragraphs,
+ * lists, bold, italic, links and images. Builds the same tree DokuwikiParser would for those, without adaptive
+ * prediction. Anything else, including spans across lines, makes parse() return null so the caller can fall back to
+ * DokuwikiParser.
+ */
+public class FastPathParser {
+    static class UnsupportedMarkupException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedMarkupException() {
+            super(null, null, false, false);
+        }
+    }
+
+    static final UnsupportedMarkupException UNSUPPORTED = new UnsupportedMarkupException();
+
+    final List<Token> tokens;
+    int pos = 0;
+
+    public FastPathParser(CommonTokenStream tokenStream) {
+        tokenStream.fill();
+        tokens = tokenStream.getTokens();
+    }
+
+    public ParseTree parse() {
+        try {
+            return page();
+        }
+        catch (UnsupportedMarkupException e) {
+            return null;
+        }
+    }
+
+    Token lt(int i) {
+        return tokens.get(Math.min(pos + i - 1, tokens.size() - 1));
+    }
+
+    int la(int i) {
+        return lt(i).getType();
+    }
+
+    void match(ParserRuleContext ctx, int type) {
+        if (la(1) != type || pos >= tokens.size()) {
+            throw UNSUPPORTED;
+        }
+        ctx.addChild(new TerminalNodeImpl(tokens.get(pos++)));
+    }
+
+    <T extends ParserRuleContext> T enter(T ctx) {
+        ctx.start = lt(1);
+        if (ctx.getParent() != null) {
+            ctx.getParent().addChild(ctx);
+        }
+        return ctx;
+    }
+
+    <T extends ParserRuleContext> T exit(T ctx) {
+        ctx.stop = tokens.get(pos - 1);
+        return ctx;
+    }
+
+    static boolean isAllChar(int type) {
+        return type == WORD || type == NUM || type == CHARACTER || type == DASH || type == STAR || type == WS || type == BLOCKQUOTE_START;
+    }
+
+    static boolean isHeaderTok(int type) {
+        return type == HEADER1 || type == HEADER2 || type == HEADER3 || type == HEADER4 || type == HEADER5;
+    }
+
+    static boolean isSpanStart(int type) {
+        return type == BOLD_TOKEN || type == ITALIC_TOKEN;
+    }
+
+    PageContext page() {
+        PageContext page = enter(new PageContext(null, -1));
+        while (la(1) != Token.EOF) {
+            if (la(1) == NEWLINE) {
+                Just_newlineContext justNewline = enter(new Just_newlineContext(page, 0));
+                match(justNewline, NEWLINE);
+                exit(justNewline);
+            }
+            else if (isHeaderTok(la(1)) || (la(1) == WS && isHeaderTok(la(2)))) {
+                header(page);
+            }
+            else {
+                row(page);
+            }
+        }
+        match(page, Token.EOF);
+        return exit(page);
+    }
+
+    void header(ParserRuleContext parent) {
+        HeaderContext header = enter(new HeaderContext(parent, 0));
+        if (la(1) == WS) {
+            match(header, WS);
+        }
+        headerTok(header);
+        Inner_text_extContext inner = enter(new Inner_text_extContext(header, 0));
+        while (!isHeaderTok(la(1))) {
+            if (isAllChar(la(1))) {
+                allChar(inner);
+            }
+            else if (la(1) == LINK_START) {
+                link(inner);
+            }
+            else {
+                match(inner, PIPE);
+            }
+        }
+        if (inner.getChildCount() == 0) {
+            throw UNSUPPORTED;
+        }
+        exit(inner);
+        headerTok(header);
+        while (la(1) == WS) {
+            match(header, WS);
+        }
+        match(header, NEWLINE);
+        exit(header);
+    }
+
+    void headerTok(ParserRuleContext parent) {
+        Header_tokContext headerTok = enter(new Header_tokContext(parent, 0));
+        if (!isHeaderTok(la(1))) {
+            throw UNSUPPORTED;
+        }
+        match(headerTok, la(1));
+        exit(headerTok);
+    }
+
+    void row(ParserRuleContext parent) {
+        RowContext row = enter(new RowContext(parent, 0));
+        line(row);
+        match(row, NEWLINE);
+        exit(row);
+    }
+
+    void line(ParserRuleContext parent) {
+        LineContext line = enter(new LineContext(parent, 0));
+        int leadingWS = 0;
+        while (la(leadingWS + 1) == WS) {
+            leadingWS++;
+        }
+        int first = la(leadingWS + 1);
+        if (leadingWS > 0 && (first == STAR || first == DASH)) {
+            listItem(line, leadingWS, first);
+            exit(line);
+            return;
+        }
+        // Two or more leading spaces is a code box
+        if (leadingWS > 1) {
+            throw UNSUPPORTED;
+        }
+        if (isSpanStart(first)) {
+            if (leadingWS == 1) {
+                match(line, WS);
+            }
+            styledSpan(line);
+        }
+        else if (first == WORD || first == NUM || first == CHARACTER || first == LINK_START) {
+            // Could be a table
+            if (leadingWS == 0 && lt(1).getText().equals("^")) {
+                throw UNSUPPORTED;
+            }
+            Inner_text_nowsstartContext innerText = enter(new Inner_text_nowsstartContext(line, 0));
+            if (leadingWS == 1) {
+                match(innerText, WS);
+            }
+            if (first == LINK_START) {
+                link(innerText);
+            }
+            else {
+                All_char_nowsContext allCharNows = enter(new All_char_nowsContext(innerText, 0));
+                match(allCharNows, first);
+                exit(allCharNows);
+            }
+            exit(innerText);
+        }
+        else if (leadingWS == 0 && first == IMG_START_TOKEN) {
+            image(line);
+        }
+        else {
+            throw UNSUPPORTED;
+        }
+        while (la(1) != NEWLINE) {
+            lineItem(line);
+        }
+        exit(line);
+    }
+
+    void listItem(ParserRuleContext parent, int leadingWS, int listToken) {
+        ParserRuleContext item = enter(listToken == STAR ? new Ulist_itemContext(parent, 0) : new Olist_itemContext(parent, 0));
+        for (int i = 0; i < leadingWS; i++) {
+            match(item, WS);
+        }
+        match(item, listToken);
+        // Numbered items, {{n}}
+        if (la(1) == IMG_START_TOKEN) {
+            throw UNSUPPORTED;
+        }
+        int contentStart = item.getChildCount();
+        while (la(1) != NEWLINE) {
+            if (isSpanStart(la(1))) {
+                styledSpan(item);
+            }
+            else {
+                innerText(item);
+            }
+        }
+        if (item.getChildCount() == contentStart) {
+            throw UNSUPPORTED;
+        }
+        exit(item);
+    }
+
+    void lineItem(ParserRuleContext parent) {
+        Line_itemContext lineItem = enter(new Line_itemContext(parent, 0));
+        if (isSpanStart(la(1))) {
+            styledSpan(lineItem);
+        }
+        else if (la(1) == IMG_START_TOKEN) {
+            image(lineItem);
+        }
+        else {
+            innerText(lineItem);
+        }
+        exit(lineItem);
+    }
+
+    void innerText(ParserRuleContext parent) {
+        Inner_textContext innerText = enter(new Inner_textContext(parent, 0));
+        if (la(1) == LINK_START) {
+            link(innerText);
+        }
+        else if (la(1) == PIPE) {
+            match(innerText, PIPE);
+        }
+        else {
+            allChar(innerText);
+        }
+        exit(innerText);
+    }
+
+    void allChar(ParserRuleContext parent) {
+        int type = la(1);
+        if (!isAllChar(type)) {
+            throw UNSUPPORTED;
+        }
+        All_charContext allChar = enter(new All_charContext(parent, 0));
+        if (type == WORD || type == NUM || type == CHARACTER) {
+            All_char_nowsContext allCharNows = enter(new All_char_nowsContext(allChar, 0));
+            match(allCharNows, type);
+            exit(allCharNows);
+        }
+        else {
+            match(allChar, type);
+        }
+        exit(allChar);
+    }
+
+    void link(ParserRuleContext parent) {
+        LinkContext link = enter(new LinkContext(parent, 0));
+        match(link, LINK_START);
+        Link_targetContext target = enter(new Link_targetContext(link, 0));
+        while (la(1) == WORD || la(1) == NUM || la(1) == CHARACTER || la(1) == WS || la(1) == ITALIC_TOKEN || la(1) == DASH || la(1) == UNDERLINE_TOKEN) {
+            match(target, la(1));
+        }
+        if (target.getChildCount() == 0) {
+            throw UNSUPPORTED;
+        }
+        exit(target);
+        if (la(1) == PIPE) {
+            Link_displayContext display = enter(new Link_displayContext(link, 0));
+            match(display, PIPE);
+            while (isAllChar(la(1))) {
+                allChar(display);
+            }
+            exit(display);
+        }
+        match(link, LINK_END);
+        exit(link);
+    }
+
+    void styledSpan(ParserRuleContext parent) {
+        Styled_spanContext styledSpan = enter(new Styled_spanContext(parent, 0));
+        if (la(1) == BOLD_TOKEN) {
+            boldSpan(styledSpan);
+        }
+        else {
+            italicSpan(styledSpan);
+        }
+        exit(styledSpan);
+    }
+
+    void boldSpan(ParserRuleContext parent) {
+        Bold_spanContext bold = enter(new Bold_spanContext(parent, 0));
+        match(bold, BOLD_TOKEN);
+        while (la(1) != BOLD_TOKEN) {
+            if (la(1) == ITALIC_TOKEN) {
+                No_bold_spanContext noBold = enter(new No_bold_spanContext(bold, 0));
+                italicSpan(noBold);
+                exit(noBold);
+            }
+            else {
+                spanContent(bold);
+            }
+        }
+        if (bold.getChildCount() == 1) {
+            throw UNSUPPORTED;
+        }
+        match(bold, BOLD_TOKEN);
+        exit(bold);
+    }
+
+    void italicSpan(ParserRuleContext parent) {
+        Italic_spanContext italic = enter(new Italic_spanContext(parent, 0));
+        match(italic, ITALIC_TOKEN);
+        while (la(1) != ITALIC_TOKEN) {
+            if (la(1) == BOLD_TOKEN) {
+                No_italic_spanContext noItalic = enter(new No_italic_spanContext(italic, 0));
+                boldSpan(noItalic);
+                exit(noItalic);
+            }
+            else {
+                spanContent(italic);
+            }
+        }
+        if (italic.getChildCount() == 1) {
+            throw UNSUPPORTED;
+        }
+        match(italic, ITALIC_TOKEN);
+        exit(italic);
+    }
+
+    void spanContent(ParserRuleContext span) {
+        if (la(1) == LINK_START) {
+            link(span);
+        }
+        else if (la(1) == PIPE) {
+            match(span, PIPE);
+        }
+        else {
+            allChar(span);
+        }
+    }
+
+    void image(ParserRuleContext parent) {
+        ImageContext image = enter(new ImageContext(parent, 0));
+        match(image, IMG_START_TOKEN);
+        while (la(1) != IMG_END_TOKEN) {
+            Inner_textContext innerText = enter(new Inner_textContext(image, 0));
+            if (la(1) == PIPE) {
+                match(innerText, PIPE);
+            }
+            else {
+                allChar(innerText);
+            }
+            exit(innerText);
+        }
+        if (image.getChildCount() == 1) {
+            throw UNSUPPORTED;
+        }
+        match(image, IMG_END_TOKEN);
+        exit(image);
+    }
+}
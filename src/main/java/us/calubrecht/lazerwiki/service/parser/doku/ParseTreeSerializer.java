@@ -0,0 +1,243 @@
+package us.calubrecht.lazerwiki.service.parser.doku;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ErrorNodeImpl;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Compact binary form of a parse tree, so a page's tree can be kept and read back without lexing and parsing its
+ * markup again. Tokens are stored as offsets into the markup, so the char stream the tree was parsed from has to be
+ * passed back in to read it. Trees are tagged with a hash of the grammar, and ones written by another grammar are not
+ * read.
+ */
+public class ParseTreeSerializer {
+    static final int FORMAT_VERSION = 1;
+
+    public static final String GRAMMAR_HASH = grammarHash();
+
+    static final int RULE = 0;
+    static final int TERMINAL = 1;
+    static final int ERROR = 2;
+
+    static final Map<String, Constructor<? extends ParserRuleContext>> CONTEXTS = contextConstructors();
+
+    public static void serialize(ParseTree tree, DataOutputStream out) throws IOException {
+        if (!(tree instanceof ParserRuleContext root)) {
+            throw new IllegalArgumentException("Not a parse tree root: " + tree.getClass());
+        }
+        Map<String, Integer> classes = new LinkedHashMap<>();
+        Map<Token, Integer> tokens = new IdentityHashMap<>();
+        List<Token> tokenList = new ArrayList<>();
+        collect(root, classes, tokens, tokenList);
+
+        out.writeUTF(GRAMMAR_HASH);
+        writeVarint(out, classes.size());
+        for (String name : classes.keySet()) {
+            out.writeUTF(name);
+        }
+        writeVarint(out, tokenList.size());
+        for (Token token : tokenList) {
+            writeToken(out, token);
+        }
+        writeNode(out, root, classes, tokens);
+    }
+
+    /**
+     * Read a tree back, over the char stream it was parsed from. Null if it was written for another grammar.
+     */
+    public static ParseTree deserialize(DataInputStream in, CharStream input) throws IOException {
+        if (!GRAMMAR_HASH.equals(in.readUTF())) {
+            return null;
+        }
+        int classCount = readVarint(in);
+        List<Constructor<? extends ParserRuleContext>> classes = new ArrayList<>(classCount);
+        for (int i = 0; i < classCount; i++) {
+            String name = in.readUTF();
+            Constructor<? extends ParserRuleContext> constructor = CONTEXTS.get(name);
+            if (constructor == null) {
+                throw new IOException("Unknown context " + name);
+            }
+            classes.add(constructor);
+        }
+        Pair<TokenSource, CharStream> source = new Pair<>(null, input);
+        int tokenCount = readVarint(in);
+        List<Token> tokens = new ArrayList<>(tokenCount);
+        for (int i = 0; i < tokenCount; i++) {
+            tokens.add(readToken(in, source));
+        }
+        return readNode(in, null, classes, tokens);
+    }
+
+    static void collect(ParseTree node, Map<String, Integer> classes, Map<Token, Integer> tokens, List<Token> tokenList) {
+        if (node instanceof TerminalNode terminal) {
+            addToken(terminal.getSymbol(), tokens, tokenList);
+            return;
+        }
+        ParserRuleContext ctx = (ParserRuleContext)node;
+        classes.putIfAbsent(ctx.getClass().getSimpleName(), classes.size());
+        addToken(ctx.start, tokens, tokenList);
+        addToken(ctx.stop, tokens, tokenList);
+        for (int i = 0; i < ctx.getChildCount(); i++) {
+            collect(ctx.getChild(i), classes, tokens, tokenList);
+        }
+    }
+
+    static void addToken(Token token, Map<Token, Integer> tokens, List<Token> tokenList) {
+        if (token != null && !tokens.containsKey(token)) {
+            tokens.put(token, tokenList.size());
+            tokenList.add(token);
+        }
+    }
+
+    static void writeToken(DataOutputStream out, Token token) throws IOException {
+        // EOF is -1, and tokens conjured by error recovery have no position
+        writeVarint(out, token.getType() + 1);
+        writeVarint(out, token.getChannel());
+        writeVarint(out, token.getStartIndex() + 1);
+        writeVarint(out, token.getStopIndex() + 1);
+        writeVarint(out, token.getLine());
+        writeVarint(out, token.getCharPositionInLine() + 1);
+        writeVarint(out, token.getTokenIndex() + 1);
+        // Only keep the text if it isn't what the markup has at the token's position. Conjured tokens have no
+        // position to read it back from.
+        boolean explicitText = token.getInputStream() == null || token.getStartIndex() < 0
+                || token.getStopIndex() < token.getStartIndex();
+        if (!explicitText) {
+            CommonToken plain = new CommonToken(new Pair<>(null, token.getInputStream()), token.getType(), token.getChannel(),
+                    token.getStartIndex(), token.getStopIndex());
+            explicitText = !Objects.equals(plain.getText(), token.getText());
+        }
+        out.writeBoolean(explicitText);
+        if (explicitText) {
+            out.writeUTF(token.getText() == null ? "" : token.getText());
+        }
+    }
+
+    static Token readToken(DataInputStream in, Pair<TokenSource, CharStream> source) throws IOException {
+        int type = readVarint(in) - 1;
+        int channel = readVarint(in);
+        int start = readVarint(in) - 1;
+        int stop = readVarint(in) - 1;
+        CommonToken token = new CommonToken(source, type, channel, start, stop);
+        token.setLine(readVarint(in));
+        token.setCharPositionInLine(readVarint(in) - 1);
+        token.setTokenIndex(readVarint(in) - 1);
+        if (in.readBoolean()) {
+            token.setText(in.readUTF());
+        }
+        return token;
+    }
+
+    static void writeNode(DataOutputStream out, ParseTree node, Map<String, Integer> classes, Map<Token, Integer> tokens) throws IOException {
+        if (node instanceof TerminalNode terminal) {
+            writeVarint(out, tokens.get(terminal.getSymbol()) << 2 | (node instanceof ErrorNode ? ERROR : TERMINAL));
+            return;
+        }
+        ParserRuleContext ctx = (ParserRuleContext)node;
+        writeVarint(out, classes.get(ctx.getClass().getSimpleName()) << 2 | RULE);
+        writeVarint(out, ctx.start == null ? 0 : tokens.get(ctx.start) + 1);
+        writeVarint(out, ctx.stop == null ? 0 : tokens.get(ctx.stop) + 1);
+        writeVarint(out, ctx.getChildCount());
+        for (int i = 0; i < ctx.getChildCount(); i++) {
+            writeNode(out, ctx.getChild(i), classes, tokens);
+        }
+    }
+
+    static ParseTree readNode(DataInputStream in, ParserRuleContext parent, List<Constructor<? extends ParserRuleContext>> classes,
+                              List<Token> tokens) throws IOException {
+        int tag = readVarint(in);
+        int kind = tag & 3;
+        int index = tag >>> 2;
+        if (kind == TERMINAL || kind == ERROR) {
+            if (parent == null) {
+                throw new IOException("Terminal at root");
+            }
+            Token token = tokens.get(index);
+            return kind == ERROR ? parent.addErrorNode(new ErrorNodeImpl(token)) : parent.addChild(new TerminalNodeImpl(token));
+        }
+        ParserRuleContext ctx;
+        try {
+            ctx = classes.get(index).newInstance(parent, -1);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException(e);
+        }
+        int start = readVarint(in);
+        int stop = readVarint(in);
+        ctx.start = start == 0 ? null : tokens.get(start - 1);
+        ctx.stop = stop == 0 ? null : tokens.get(stop - 1);
+        if (parent != null) {
+            parent.addChild(ctx);
+        }
+        int childCount = readVarint(in);
+        for (int i = 0; i < childCount; i++) {
+            readNode(in, ctx, classes, tokens);
+        }
+        return ctx;
+    }
+
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Constructor<? extends ParserRuleContext>> contextConstructors() {
+        // Only the parser's own contexts can be read back
+        Map<String, Constructor<? extends ParserRuleContext>> constructors = new HashMap<>();
+        for (Class<?> cls : DokuwikiParser.class.getClasses()) {
+            if (!ParserRuleContext.class.isAssignableFrom(cls)) {
+                continue;
+            }
+            try {
+                constructors.put(cls.getSimpleName(), (Constructor<? extends ParserRuleContext>)cls.getConstructor(ParserRuleContext.class, int.class));
+            } catch (NoSuchMethodException e) {
+                // Not a rule context
+            }
+        }
+        return constructors;
+    }
+
+    static String grammarHash() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(DokuwikiLexer._serializedATN.getBytes(StandardCharsets.UTF_8));
+            digest.update(DokuwikiParser._serializedATN.getBytes(StandardCharsets.UTF_8));
+            digest.update(Integer.toString(FORMAT_VERSION).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -12,6 +12,24 @@ public abstract class AdditiveTreeRenderer extends TreeRenderer {
 
     public abstract StringBuilder render(List<ParseTree> trees, RenderContext renderContext);
 
+    /**
+     * Render a merged group into the passed sink, the default appends the result of render().
+     */
+    public void render(List<ParseTree> trees, RenderContext renderContext, StringBuilder out) {
+        out.append(render(trees, renderContext));
+    }
+
+    /**
+     * Render a merged group to html, and each tree of the group to plaintext.
+     */
+    public void renderWithPlainText(List<ParseTree> trees, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        // Plaintext first, some renderers consume the list as they render.
+        for (ParseTree tree : trees) {
+            plainText.append(renderers.getRenderer(tree).renderToPlainText(tree, renderContext));
+        }
+        render(trees, renderContext, html);
+    }
+
     @Override
     public StringBuilder render(ParseTree tree, RenderContext renderContext) {
         throw new RuntimeException("Not Implemented");
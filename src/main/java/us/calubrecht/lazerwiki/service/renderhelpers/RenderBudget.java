@@ -0,0 +1,110 @@
+package us.calubrecht.lazerwiki.service.renderhelpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time and node limits for a render. Renderers charge one node for each child they render and stop rendering children
+ * once the budget is spent, so the output is partial. A macro's budget has the page's budget as parent, and is spent
+ * when either is.
+ * <p>
+ * Shared by forks of the render state, so sub-renders (includes, getCachedRenders workers) draw on the same budget.
+ */
+public class RenderBudget {
+    public enum Limit { TIME, NODES }
+
+    final RenderBudget parent;
+    final long start;
+    final long deadline;
+    final boolean hasDeadline;
+    final AtomicLong nodesLeft;
+    volatile Limit exceeded;
+    volatile boolean partial;
+
+    /**
+     * @param millis time allowed, 0 or less for no limit
+     * @param nodes nodes allowed, 0 or less for no limit
+     */
+    public RenderBudget(long millis, long nodes, RenderBudget parent) {
+        this.parent = parent;
+        this.start = System.nanoTime();
+        this.hasDeadline = millis > 0;
+        this.deadline = start + millis * 1_000_000;
+        this.nodesLeft = new AtomicLong(nodes > 0 ? nodes : Long.MAX_VALUE);
+    }
+
+    public RenderBudget getParent() {
+        return parent;
+    }
+
+    /**
+     * Charge for rendering a node, false if the budget is spent and the node should be skipped.
+     */
+    public boolean charge() {
+        if (exceeded != null) {
+            return false;
+        }
+        // Own limits first, so a node this budget refuses isn't charged to the parent
+        if (pastDeadline()) {
+            return refuse(Limit.TIME);
+        }
+        if (nodesLeft.decrementAndGet() < 0) {
+            return refuse(Limit.NODES);
+        }
+        if (parent != null && !parent.charge()) {
+            nodesLeft.incrementAndGet();
+            return refuse(parent.exceeded);
+        }
+        return true;
+    }
+
+    boolean refuse(Limit limit) {
+        exceeded = limit;
+        for (RenderBudget budget = this; budget != null; budget = budget.parent) {
+            budget.partial = true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether a node has been refused, by this budget or one drawing on it, in which case output rendered with this
+     * budget is partial.
+     */
+    public boolean isSpent() {
+        return partial;
+    }
+
+    /**
+     * Whether this budget has refused a node itself.
+     */
+    public boolean isRefused() {
+        return exceeded != null;
+    }
+
+    /**
+     * Whether a limit has passed, even if nothing has been refused yet.
+     */
+    public boolean isExceeded() {
+        return exceeded != null || (parent != null && parent.isExceeded()) || pastDeadline();
+    }
+
+    boolean pastDeadline() {
+        return hasDeadline && System.nanoTime() - deadline > 0;
+    }
+
+    /**
+     * Which limit was hit, null if none has been.
+     */
+    public Limit getExceeded() {
+        if (exceeded != null) {
+            return exceeded;
+        }
+        if (parent != null && parent.isExceeded()) {
+            return parent.getExceeded();
+        }
+        return pastDeadline() ? Limit.TIME : null;
+    }
+
+    public long elapsedMillis() {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+}
@@ -0,0 +1,467 @@
+package us.calubrecht.lazerwiki.service.renderhelpers;
+
+import us.calubrecht.lazerwiki.model.HeaderRef;
+import us.calubrecht.lazerwiki.model.LinkOverride;
+import us.calubrecht.lazerwiki.model.LinkOverrideInstance;
+import us.calubrecht.lazerwiki.model.MediaOverride;
+import us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS;
+import us.calubrecht.lazerwiki.service.PageService.LinkTarget;
+
+import java.util.*;
+
+/**
+ * State collected during a render, with typed fields for the RENDER_STATE_KEYS and a plain map for anything else
+ * (macro guards, page flags). Also usable as a Map keyed by the RENDER_STATE_KEYS names, for macros and callers that
+ * read RenderResult.renderState().
+ * <p>
+ * fork() makes a cheap copy for a sub-render: collections are shared with the parent until either side modifies
+ * them. The override maps are loaded once per page and never modified, so are always shared.
+ */
+public class RenderState extends AbstractMap<String, Object> {
+    static final Map<String, RENDER_STATE_KEYS> KEYS = new HashMap<>();
+    static {
+        for (RENDER_STATE_KEYS key : RENDER_STATE_KEYS.values()) {
+            KEYS.put(key.name(), key);
+        }
+    }
+
+    static final int SHARED_LINKS = 1;
+    static final int SHARED_IMAGES = 2;
+    static final int SHARED_HEADERS = 4;
+    static final int SHARED_OVERRIDE_STATS = 8;
+    static final int SHARED_OTHER = 16;
+
+    Set<String> links;
+    Set<String> images;
+    List<HeaderRef> headers;
+    List<LinkOverrideInstance> overrideStats;
+    Map<String, LinkOverride> linkOverrides;
+    Map<String, MediaOverride> mediaOverrides;
+    String title;
+    Boolean toc;
+    Boolean dontCache;
+    Boolean forCache;
+    String idSuffix;
+    Map<String, Object> other;
+    // Not part of the map view, shared with forks
+    RenderBudget budget;
+    // Not part of the map view, shared with forks. Link targets looked up for this render pass, see LinkResolver.
+    Map<String, LinkTarget> linkTargets;
+    // Not part of the map view or copied to forks, sub-renders aren't memoized
+    boolean memoizeBlocks;
+    // Not part of the map view or copied to forks
+    boolean persistTree;
+    // Not part of the map view, set on forks
+    boolean subRender;
+    int shared = 0;
+
+    public RenderState() {
+    }
+
+    public RenderState(Map<String, Object> initial) {
+        if (initial != null) {
+            putAll(initial);
+        }
+    }
+
+    /**
+     * The passed map if it is already a RenderState, else a RenderState with a copy of its entries.
+     */
+    public static RenderState of(Map<String, Object> state) {
+        return state instanceof RenderState renderState ? renderState : new RenderState(state);
+    }
+
+    public RenderState fork() {
+        RenderState fork = new RenderState();
+        fork.links = links;
+        fork.images = images;
+        fork.headers = headers;
+        fork.overrideStats = overrideStats;
+        fork.linkOverrides = linkOverrides;
+        fork.mediaOverrides = mediaOverrides;
+        fork.title = title;
+        fork.toc = toc;
+        fork.dontCache = dontCache;
+        fork.forCache = forCache;
+        fork.idSuffix = idSuffix;
+        fork.other = other;
+        fork.budget = budget;
+        fork.linkTargets = linkTargets;
+        fork.subRender = true;
+        fork.shared = SHARED_LINKS | SHARED_IMAGES | SHARED_HEADERS | SHARED_OVERRIDE_STATS | SHARED_OTHER;
+        // The parent must also copy before modifying what it now shares.
+        shared = fork.shared;
+        return fork;
+    }
+
+    /**
+     * A state to render one top-level block in. It has this state's inputs (headers so far, title, id suffix,
+     * overrides, budget) but none of its other output, so what the block adds can be read off it.
+     */
+    public RenderState forBlock() {
+        RenderState block = new RenderState();
+        block.headers = headers;
+        block.linkOverrides = linkOverrides;
+        block.mediaOverrides = mediaOverrides;
+        block.title = title;
+        block.forCache = forCache;
+        block.idSuffix = idSuffix;
+        block.budget = budget;
+        block.linkTargets = linkTargets;
+        block.subRender = subRender;
+        block.shared = SHARED_HEADERS;
+        shared |= SHARED_HEADERS;
+        return block;
+    }
+
+    Set<String> ownLinks() {
+        if (links == null) {
+            links = new HashSet<>();
+        } else if ((shared & SHARED_LINKS) != 0) {
+            links = new HashSet<>(links);
+        }
+        shared &= ~SHARED_LINKS;
+        return links;
+    }
+
+    Set<String> ownImages() {
+        if (images == null) {
+            images = new HashSet<>();
+        } else if ((shared & SHARED_IMAGES) != 0) {
+            images = new HashSet<>(images);
+        }
+        shared &= ~SHARED_IMAGES;
+        return images;
+    }
+
+    List<HeaderRef> ownHeaders() {
+        if (headers == null) {
+            headers = new ArrayList<>();
+        } else if ((shared & SHARED_HEADERS) != 0) {
+            headers = new ArrayList<>(headers);
+        }
+        shared &= ~SHARED_HEADERS;
+        return headers;
+    }
+
+    List<LinkOverrideInstance> ownOverrideStats() {
+        if (overrideStats == null) {
+            overrideStats = new ArrayList<>();
+        } else if ((shared & SHARED_OVERRIDE_STATS) != 0) {
+            overrideStats = new ArrayList<>(overrideStats);
+        }
+        shared &= ~SHARED_OVERRIDE_STATS;
+        return overrideStats;
+    }
+
+    Map<String, Object> ownOther() {
+        if (other == null) {
+            other = new HashMap<>(8);
+        } else if ((shared & SHARED_OTHER) != 0) {
+            other = new HashMap<>(other);
+        }
+        shared &= ~SHARED_OTHER;
+        return other;
+    }
+
+    public void addLink(String link) {
+        ownLinks().add(link);
+    }
+
+    public void addLinks(Collection<String> newLinks) {
+        ownLinks().addAll(newLinks);
+    }
+
+    public Set<String> getLinks() {
+        return links == null ? Collections.emptySet() : Collections.unmodifiableSet(links);
+    }
+
+    public void addImage(String image) {
+        ownImages().add(image);
+    }
+
+    public Set<String> getImages() {
+        return images == null ? Collections.emptySet() : Collections.unmodifiableSet(images);
+    }
+
+    public void addHeader(HeaderRef header) {
+        ownHeaders().add(header);
+    }
+
+    public List<HeaderRef> getHeaders() {
+        return headers == null ? Collections.emptyList() : Collections.unmodifiableList(headers);
+    }
+
+    public void addOverrideStat(LinkOverrideInstance override) {
+        ownOverrideStats().add(override);
+    }
+
+    public Map<String, LinkOverride> getLinkOverrides() {
+        return linkOverrides;
+    }
+
+    public void setLinkOverrides(Map<String, LinkOverride> linkOverrides) {
+        this.linkOverrides = linkOverrides;
+    }
+
+    public Map<String, MediaOverride> getMediaOverrides() {
+        return mediaOverrides;
+    }
+
+    public void setMediaOverrides(Map<String, MediaOverride> mediaOverrides) {
+        this.mediaOverrides = mediaOverrides;
+    }
+
+    public boolean hasTitle() {
+        return title != null;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public Boolean getToc() {
+        return toc;
+    }
+
+    public void setToc(Boolean toc) {
+        this.toc = toc;
+    }
+
+    public boolean isDontCache() {
+        return Boolean.TRUE.equals(dontCache);
+    }
+
+    public void setDontCache(boolean dontCache) {
+        this.dontCache = dontCache;
+    }
+
+    public boolean isForCache() {
+        return Boolean.TRUE.equals(forCache);
+    }
+
+    public void setForCache(boolean forCache) {
+        this.forCache = forCache;
+    }
+
+    public String getIdSuffix() {
+        return idSuffix == null ? "" : idSuffix;
+    }
+
+    public void setIdSuffix(String idSuffix) {
+        this.idSuffix = idSuffix;
+    }
+
+    public RenderBudget getBudget() {
+        return budget;
+    }
+
+    public void setBudget(RenderBudget budget) {
+        this.budget = budget;
+    }
+
+    public Map<String, LinkTarget> getLinkTargets() {
+        return linkTargets;
+    }
+
+    public void setLinkTargets(Map<String, LinkTarget> linkTargets) {
+        this.linkTargets = linkTargets;
+    }
+
+    /**
+     * Whether this is the state of a render nested in another, such as a macro rendering a page.
+     */
+    public boolean isSubRender() {
+        return subRender;
+    }
+
+    public boolean isMemoizeBlocks() {
+        return memoizeBlocks;
+    }
+
+    /**
+     * Reuse top-level blocks rendered by earlier renders of the page, for renders of markup that is being edited.
+     */
+    public void setMemoizeBlocks(boolean memoizeBlocks) {
+        this.memoizeBlocks = memoizeBlocks;
+    }
+
+    public boolean isPersistTree() {
+        return persistTree;
+    }
+
+    /**
+     * Keep the page's parse tree on disk and reuse it if the page is rendered again with the same markup, for renders
+     * of a page's current markup.
+     */
+    public void setPersistTree(boolean persistTree) {
+        this.persistTree = persistTree;
+    }
+
+    /**
+     * What a render in this state reads from it (title, headers so far, flags, macro guards), so renders of the same
+     * markup in states with equal keys render the same. Null if the state has overrides, which belong to the page they
+     * were loaded for. Keys in ignored aren't counted.
+     */
+    public String inputKey(Set<String> ignored) {
+        if ((linkOverrides != null && !linkOverrides.isEmpty()) || (mediaOverrides != null && !mediaOverrides.isEmpty())) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(title != null ? "T" : "");
+        key.append('\n').append(toc).append('\n').append(dontCache).append('\n').append(forCache).append('\n').append(idSuffix);
+        if (headers != null) {
+            headers.forEach(h -> key.append("\nH").append(h.id()));
+        }
+        if (other != null) {
+            new TreeMap<>(other).forEach((k, v) -> {
+                if (!ignored.contains(k)) {
+                    key.append('\n').append(k).append('=').append(v);
+                }
+            });
+        }
+        return key.toString();
+    }
+
+    /**
+     * Charge the budget for rendering a node, false if it is spent and the node should be skipped.
+     */
+    public boolean chargeBudget() {
+        return budget == null || budget.charge();
+    }
+
+    // Map view
+
+    @Override
+    public Object get(Object key) {
+        RENDER_STATE_KEYS k = KEYS.get(key);
+        if (k == null) {
+            return other == null ? null : other.get(key);
+        }
+        // Callers of the map view may modify collections they get, so hand out an unshared one.
+        return switch (k) {
+            case TITLE -> title;
+            case LINKS -> links == null ? null : ownLinks();
+            case IMAGES -> images == null ? null : ownImages();
+            case HEADERS -> headers == null ? null : ownHeaders();
+            case OVERRIDE_STATS -> overrideStats == null ? null : ownOverrideStats();
+            case LINK_OVERRIDES -> linkOverrides;
+            case MEDIA_OVERRIDES -> mediaOverrides;
+            case TOC -> toc;
+            case DONT_CACHE -> dontCache;
+            case FOR_CACHE -> forCache;
+            case ID_SUFFIX -> idSuffix;
+        };
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        RENDER_STATE_KEYS k = KEYS.get(key);
+        if (k == null) {
+            return other != null && other.containsKey(key);
+        }
+        return getField(k) != null;
+    }
+
+    Object getField(RENDER_STATE_KEYS k) {
+        return switch (k) {
+            case TITLE -> title;
+            case LINKS -> links;
+            case IMAGES -> images;
+            case HEADERS -> headers;
+            case OVERRIDE_STATS -> overrideStats;
+            case LINK_OVERRIDES -> linkOverrides;
+            case MEDIA_OVERRIDES -> mediaOverrides;
+            case TOC -> toc;
+            case DONT_CACHE -> dontCache;
+            case FOR_CACHE -> forCache;
+            case ID_SUFFIX -> idSuffix;
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Object put(String key, Object value) {
+        RENDER_STATE_KEYS k = KEYS.get(key);
+        if (k == null) {
+            return ownOther().put(key, value);
+        }
+        Object old = getField(k);
+        switch (k) {
+            case TITLE -> title = (String) value;
+            case LINKS -> {
+                links = (Set<String>) value;
+                shared &= ~SHARED_LINKS;
+            }
+            case IMAGES -> {
+                images = (Set<String>) value;
+                shared &= ~SHARED_IMAGES;
+            }
+            case HEADERS -> {
+                headers = (List<HeaderRef>) value;
+                shared &= ~SHARED_HEADERS;
+            }
+            case OVERRIDE_STATS -> {
+                overrideStats = (List<LinkOverrideInstance>) value;
+                shared &= ~SHARED_OVERRIDE_STATS;
+            }
+            case LINK_OVERRIDES -> linkOverrides = (Map<String, LinkOverride>) value;
+            case MEDIA_OVERRIDES -> mediaOverrides = (Map<String, MediaOverride>) value;
+            case TOC -> toc = (Boolean) value;
+            case DONT_CACHE -> dontCache = (Boolean) value;
+            case FOR_CACHE -> forCache = (Boolean) value;
+            case ID_SUFFIX -> idSuffix = (String) value;
+        }
+        return old;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        RENDER_STATE_KEYS k = KEYS.get(key);
+        if (k == null) {
+            return other == null || !other.containsKey(key) ? null : ownOther().remove(key);
+        }
+        return put(k.name(), null);
+    }
+
+    @Override
+    public void clear() {
+        for (RENDER_STATE_KEYS k : RENDER_STATE_KEYS.values()) {
+            put(k.name(), null);
+        }
+        other = null;
+        shared &= ~SHARED_OTHER;
+    }
+
+    @Override
+    public int size() {
+        int size = other == null ? 0 : other.size();
+        for (RENDER_STATE_KEYS k : RENDER_STATE_KEYS.values()) {
+            if (getField(k) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * A snapshot of the entries, modifying the returned set does not modify the state.
+     */
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        Set<Entry<String, Object>> entries = new LinkedHashSet<>();
+        for (RENDER_STATE_KEYS k : RENDER_STATE_KEYS.values()) {
+            Object value = getField(k);
+            if (value != null) {
+                entries.add(new SimpleImmutableEntry<>(k.name(), value));
+            }
+        }
+        if (other != null) {
+            other.forEach((key, value) -> entries.add(new SimpleImmutableEntry<>(key, value)));
+        }
+        return entries;
+    }
+}
@@ -1,21 +1,42 @@
 package us.calubrecht.lazerwiki.service.renderhelpers;
 
 import org.antlr.v4.runtime.tree.ParseTree;
-import org.apache.commons.text.StringEscapeUtils;
 import us.calubrecht.lazerwiki.service.RendererRegistrar;
+import us.calubrecht.lazerwiki.util.HtmlEscaper;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 public abstract class TreeRenderer {
     protected RendererRegistrar renderers;
+    int additiveId = -1;
 
     public abstract List<Class<? extends ParseTree>> getTargets();
 
     public abstract StringBuilder render(ParseTree tree, RenderContext renderContext);
 
+    /**
+     * Render html into the passed sink. Renderers with children should override this and render their children into
+     * the same sink, so a subtree's output is written once rather than copied up through each level. The default
+     * appends the result of render().
+     */
+    public void render(ParseTree tree, RenderContext renderContext, StringBuilder out) {
+        out.append(render(tree, renderContext));
+    }
+
     public abstract StringBuilder renderToPlainText(ParseTree tree, RenderContext renderContext);
 
+    /**
+     * Render html and plaintext together, appending to the passed buffers. Renderers which can produce both in a
+     * single walk of their subtree should override this, the default walks the subtree once for each.
+     */
+    public void renderWithPlainText(ParseTree tree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        html.append(render(tree, renderContext));
+        plainText.append(renderToPlainText(tree, renderContext));
+    }
+
     public boolean isAdditive() {
         return false;
     }
@@ -24,6 +45,18 @@ public abstract class TreeRenderer {
         return null;
     }
 
+    /**
+     * Integer id of the additive class, assigned by the registrar at startup so that grouping children doesn't
+     * compare strings. -1 if not additive.
+     */
+    public int getAdditiveId() {
+        return additiveId;
+    }
+
+    public void setAdditiveId(int additiveId) {
+        this.additiveId = additiveId;
+    }
+
     public boolean shouldParentSanitize() {
         return true;
     }
@@ -31,7 +64,11 @@ public abstract class TreeRenderer {
     public TreeRenderer getSpecificRenderer(ParseTree tree) { return this;}
 
     public static String sanitize(String input) {
-        return StringEscapeUtils.escapeHtml4(input).replaceAll("&quot;", "\"");
+        return HtmlEscaper.escape(input);
+    }
+
+    public static void sanitize(CharSequence input, StringBuilder out) {
+        HtmlEscaper.escape(input, out);
     }
 
     public void setRenderers(RendererRegistrar renderers) {
@@ -52,35 +89,84 @@ public abstract class TreeRenderer {
 
     protected StringBuilder renderChildren(List<ParseTree> trees, RenderContext renderContext) {
         StringBuilder outBuffer = new StringBuilder();
+        renderChildren(trees, renderContext, outBuffer);
+        return outBuffer;
+    }
+
+    protected void renderChildren(List<ParseTree> trees, RenderContext renderContext, StringBuilder outBuffer) {
         List<ParseTree> childrenToMerge = new ArrayList<>();
-        String lastChildClass = null;
+        int lastAdditiveId = -1;
         for(ParseTree child: trees) {
-            TreeRenderer renderer = renderers.getRenderer(child.getClass(), child);
-            if (lastChildClass != null && !lastChildClass.equals(renderer.getAdditiveClass()) )
+            if (!renderContext.state().chargeBudget()) {
+                break;
+            }
+            TreeRenderer renderer = renderers.getRenderer(child);
+            if (lastAdditiveId != -1 && lastAdditiveId != renderer.getAdditiveId())
             {
-                AdditiveTreeRenderer aRenderer = (AdditiveTreeRenderer)renderers.getRenderer(lastChildClass, childrenToMerge.get(0));
-                outBuffer.append(aRenderer.render(childrenToMerge, renderContext));
-                lastChildClass = null;
+                AdditiveTreeRenderer aRenderer = (AdditiveTreeRenderer)renderers.getAdditiveRenderer(lastAdditiveId, childrenToMerge.get(0));
+                aRenderer.render(childrenToMerge, renderContext, outBuffer);
+                lastAdditiveId = -1;
                 childrenToMerge.clear();
             }
             if (renderer.isAdditive()) {
-                lastChildClass = renderer.getAdditiveClass();
+                lastAdditiveId = renderer.getAdditiveId();
                 childrenToMerge.add(child);
                 continue;
             }
-            outBuffer.append(renderer.render(child, renderContext));
+            renderer.render(child, renderContext, outBuffer);
         }
-        if (lastChildClass != null) {
-            AdditiveTreeRenderer aRenderer = (AdditiveTreeRenderer) renderers.getRenderer(lastChildClass, childrenToMerge.get(0));
-            outBuffer.append(aRenderer.render(childrenToMerge, renderContext));
+        if (lastAdditiveId != -1) {
+            AdditiveTreeRenderer aRenderer = (AdditiveTreeRenderer) renderers.getAdditiveRenderer(lastAdditiveId, childrenToMerge.get(0));
+            aRenderer.render(childrenToMerge, renderContext, outBuffer);
+        }
+    }
+
+    protected void renderChildrenWithPlainText(List<ParseTree> trees, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        renderChildrenWithPlainText(trees, Collections.emptySet(), renderContext, html, plainText);
+    }
+
+    /**
+     * Trees in plainTextOnly contribute only to the plaintext, e.g. line ends which are dropped from html so that
+     * additive trees on consecutive lines can merge.
+     */
+    protected void renderChildrenWithPlainText(List<ParseTree> trees, Set<ParseTree> plainTextOnly, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        List<ParseTree> childrenToMerge = new ArrayList<>();
+        int lastAdditiveId = -1;
+        for(ParseTree child: trees) {
+            if (!renderContext.state().chargeBudget()) {
+                break;
+            }
+            TreeRenderer renderer = renderers.getRenderer(child);
+            if (plainTextOnly.contains(child)) {
+                plainText.append(renderer.renderToPlainText(child, renderContext));
+                continue;
+            }
+            if (lastAdditiveId != -1 && lastAdditiveId != renderer.getAdditiveId())
+            {
+                AdditiveTreeRenderer aRenderer = (AdditiveTreeRenderer)renderers.getAdditiveRenderer(lastAdditiveId, childrenToMerge.get(0));
+                aRenderer.render(childrenToMerge, renderContext, html);
+                lastAdditiveId = -1;
+                childrenToMerge.clear();
+            }
+            if (renderer.isAdditive()) {
+                lastAdditiveId = renderer.getAdditiveId();
+                childrenToMerge.add(child);
+                // Plaintext is not merged, so emit it now to keep it in order with any plainTextOnly trees
+                plainText.append(renderer.renderToPlainText(child, renderContext));
+                continue;
+            }
+            renderer.renderWithPlainText(child, renderContext, html, plainText);
+        }
+        if (lastAdditiveId != -1) {
+            AdditiveTreeRenderer aRenderer = (AdditiveTreeRenderer) renderers.getAdditiveRenderer(lastAdditiveId, childrenToMerge.get(0));
+            aRenderer.render(childrenToMerge, renderContext, html);
         }
-        return outBuffer;
     }
 
     protected StringBuilder renderChildrenToPlainText(List<ParseTree> trees, RenderContext renderContext) {
         StringBuilder outBuffer = new StringBuilder();
         for(ParseTree child: trees) {
-            TreeRenderer renderer = renderers.getRenderer(child.getClass(), child);
+            TreeRenderer renderer = renderers.getRenderer(child);
             outBuffer.append(renderer.renderToPlainText(child, renderContext));
         }
         return outBuffer;
@@ -103,9 +189,19 @@ public abstract class TreeRenderer {
             return renderChildren(getChildren(tree), renderContext);
         }
 
+        @Override
+        public void render(ParseTree tree, RenderContext renderContext, StringBuilder out) {
+            renderChildren(getChildren(tree), renderContext, out);
+        }
+
         @Override
         public StringBuilder renderToPlainText(ParseTree tree, RenderContext renderContext) {
             return renderChildrenToPlainText(getChildren(tree), renderContext);
         }
+
+        @Override
+        public void renderWithPlainText(ParseTree tree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+            renderChildrenWithPlainText(getChildren(tree), renderContext, html, plainText);
+        }
     }
 }
@@ -15,12 +15,17 @@ public abstract class AbstractSpanRenderer extends TreeRenderer {
 
     public StringBuilder render(ParseTree tree, RenderContext renderContext) {
         StringBuilder sb = new StringBuilder();
-        sb.append(startTag);
-        sb.append(renderChildren(getChildren(tree, 1, tree.getChildCount()-1), renderContext));
-        sb.append(endTag);
+        render(tree, renderContext, sb);
         return sb;
     }
 
+    @Override
+    public void render(ParseTree tree, RenderContext renderContext, StringBuilder out) {
+        out.append(startTag);
+        renderChildren(getChildren(tree, 1, tree.getChildCount()-1), renderContext, out);
+        out.append(endTag);
+    }
+
     @Override
     public StringBuilder renderToPlainText(ParseTree tree, RenderContext renderContext) {
         StringBuilder sb = new StringBuilder();
@@ -28,4 +33,11 @@ public abstract class AbstractSpanRenderer extends TreeRenderer {
         return sb;
     }
 
+    @Override
+    public void renderWithPlainText(ParseTree tree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        html.append(startTag);
+        renderChildrenWithPlainText(getChildren(tree, 1, tree.getChildCount()-1), renderContext, html, plainText);
+        html.append(endTag);
+    }
+
 }
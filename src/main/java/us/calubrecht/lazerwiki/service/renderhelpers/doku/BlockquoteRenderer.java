@@ -44,8 +44,7 @@ public class BlockquoteRenderer extends AdditiveTreeRenderer {
         return i;
     }
 
-    StringBuilder renderBlockquote(List<ParseTree> trees, RenderContext renderContext, int level) {
-        StringBuilder ret = new StringBuilder();
+    void renderBlockquote(List<ParseTree> trees, RenderContext renderContext, int level, StringBuilder ret) {
         ret.append("<blockquote>");
           ParseTree nextTree = trees.get(0);
         boolean firstLine = true;
@@ -54,12 +53,12 @@ public class BlockquoteRenderer extends AdditiveTreeRenderer {
                 ret.append("<br>");
             }
             if (getLevel(nextTree) > level) {
-                ret.append(renderBlockquote(trees, renderContext,level+1));
+                renderBlockquote(trees, renderContext,level+1, ret);
                 firstLine = false;
             }
             else {
                 trees.remove(0);
-                ret.append(renderChildren(getChildren(nextTree), renderContext));
+                renderChildren(getChildren(nextTree), renderContext, ret);
                 firstLine = false;
             }
             if (trees.size() == 0) {
@@ -68,11 +67,17 @@ public class BlockquoteRenderer extends AdditiveTreeRenderer {
             nextTree = trees.get(0);
         }
         ret.append("</blockquote>");
-        return ret;
     }
 
     @Override
     public StringBuilder render(List<ParseTree> trees, RenderContext renderContext) {
-        return renderBlockquote(new ArrayList<>(trees), renderContext, 1);
+        StringBuilder ret = new StringBuilder();
+        render(trees, renderContext, ret);
+        return ret;
+    }
+
+    @Override
+    public void render(List<ParseTree> trees, RenderContext renderContext, StringBuilder out) {
+        renderBlockquote(new ArrayList<>(trees), renderContext, 1, out);
     }
 }
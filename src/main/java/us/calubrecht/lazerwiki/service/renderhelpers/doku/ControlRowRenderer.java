@@ -2,7 +2,6 @@ package us.calubrecht.lazerwiki.service.renderhelpers.doku;
 
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.springframework.stereotype.Component;
-import us.calubrecht.lazerwiki.model.RenderResult;
 import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiParser;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
 import us.calubrecht.lazerwiki.service.renderhelpers.TypedRenderer;
@@ -20,10 +19,10 @@ public class ControlRowRenderer extends TypedRenderer<DokuwikiParser.Control_row
     @Override
     public StringBuilder renderContext(DokuwikiParser.Control_rowContext context, RenderContext renderContext) {
         if (!context.YES_TOC_TOKEN().isEmpty()) {
-            renderContext.renderState().put(RenderResult.RENDER_STATE_KEYS.TOC.name(), true);
+            renderContext.state().setToc(true);
         } else //if (!context.NO_TOC_TOKEN().isEmpty()) {
         {
-            renderContext.renderState().put(RenderResult.RENDER_STATE_KEYS.TOC.name(), false);
+            renderContext.state().setToc(false);
         }
         return new StringBuilder();
     }
@@ -13,6 +13,13 @@ public abstract class FlatteningRenderer extends AdditiveTreeRenderer {
     abstract Set<Class<? extends ParseTree>> getTreesToFlatten();
 
     List<ParseTree> flattenChildren(ParseTree tree, boolean recursive) {
+        return flattenChildren(tree, recursive, null);
+    }
+
+    /**
+     * If plainTextOnly is passed, trees which would be skipped are kept in place and added to it instead.
+     */
+    List<ParseTree> flattenChildren(ParseTree tree, boolean recursive, Set<ParseTree> plainTextOnly) {
         List<ParseTree> trees = new ArrayList<>();
         TreeRenderer lastRenderer = null;
         for (int i = 0; i < tree.getChildCount(); i++) {
@@ -21,22 +28,26 @@ public abstract class FlatteningRenderer extends AdditiveTreeRenderer {
                 for (int j = 0; j < t.getChildCount(); j++) {
                     ParseTree child = t.getChild(j);
                     if (recursive && getTreesToFlatten().contains(child.getClass())) {
-                        trees.addAll(flattenChildren(child, true));
+                        trees.addAll(flattenChildren(child, true, plainTextOnly));
                     }
                     else {
                         trees.add(child);
                     }
-                    lastRenderer = renderers.getRenderer(child.getClass(), child);
+                    lastRenderer = renderers.getRenderer(child);
                 }
             } else {
                 if (lastRenderer != null && lastRenderer.isAdditive()) {
                     // Additive renders are always alone in the row, so the following is alwayas an EOL
                     //if (isEOL(t)) {
+                    if (plainTextOnly != null) {
+                        plainTextOnly.add(t);
+                        trees.add(t);
+                    }
                     continue;
                     //}
                 }
                 trees.add(t);
-                lastRenderer = renderers.getRenderer(t.getClass(), t);
+                lastRenderer = renderers.getRenderer(t);
             }
         }
         return trees;
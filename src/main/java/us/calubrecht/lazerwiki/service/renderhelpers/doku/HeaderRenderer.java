@@ -1,10 +1,11 @@
 package us.calubrecht.lazerwiki.service.renderhelpers.doku;
 
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import us.calubrecht.lazerwiki.model.HeaderRef;
-import us.calubrecht.lazerwiki.model.RenderResult;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderState;
 import us.calubrecht.lazerwiki.service.renderhelpers.TreeRenderer;
 import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiParser;
 
@@ -14,11 +15,12 @@ import java.util.List;
 import java.util.Set;
 import java.util.stream.IntStream;
 
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.HEADERS;
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.ID_SUFFIX;
 
 @Component
 public class HeaderRenderer extends TreeRenderer {
+    @Autowired
+    LinkResolver linkResolver;
+
     @Override
     public List<Class<? extends ParseTree>> getTargets() {
         return List.of(DokuwikiParser.HeaderContext.class);
@@ -51,21 +53,36 @@ public class HeaderRenderer extends TreeRenderer {
 
     @Override
     public StringBuilder render(ParseTree tree, RenderContext renderContext) {
+        List<ParseTree> children = getChildren(tree);
+        return renderHeader(tree, renderChildren(children, renderContext), renderChildrenToPlainText(children, renderContext), renderContext);
+    }
+
+    @Override
+    public void renderWithPlainText(ParseTree tree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        StringBuilder innerHtml = new StringBuilder();
+        StringBuilder innerPlainText = new StringBuilder();
+        renderChildrenWithPlainText(getChildren(tree), renderContext, innerHtml, innerPlainText);
+        html.append(renderHeader(tree, innerHtml, innerPlainText, renderContext));
+        plainText.append(innerPlainText).append("\n");
+    }
+
+    StringBuilder renderHeader(ParseTree tree, StringBuilder innerHtml, StringBuilder innerPlainText, RenderContext renderContext) {
+        // Header text is used for ids, the TOC and the page title, so links in it can't wait to be resolved with the page.
+        // The render looked up the targets of all its headers' links up front.
+        linkResolver.resolve(renderContext.host(), renderContext.state().getLinkTargets(), innerHtml, innerPlainText);
         int headerSize  = getHeaderTok(tree).getText().length();
         String hTag = "h" + (7 - headerSize);
-        String plainTextHeader = renderChildrenToPlainText(getChildren(tree), renderContext).toString().trim();
-        List<HeaderRef> headers = ((List<HeaderRef>)renderContext.renderState().computeIfAbsent(HEADERS.name(), (k) -> new ArrayList<>()));
-        HeaderRef headerRef = new HeaderRef(7 - headerSize, plainTextHeader, toId(plainTextHeader, headers));
-        headers.add(headerRef);
+        String plainTextHeader = innerPlainText.toString().trim();
+        RenderState state = renderContext.state();
+        HeaderRef headerRef = new HeaderRef(7 - headerSize, plainTextHeader, toId(plainTextHeader, state.getHeaders()));
+        state.addHeader(headerRef);
         StringBuilder outBuffer = new StringBuilder();
-        String id = headerRef.id() + renderContext.renderState().getOrDefault(ID_SUFFIX.name(), "").toString();
+        String id = headerRef.id() + state.getIdSuffix();
         outBuffer.append("<").append(hTag).append(" id=\"").append(id).append("\">");
-        outBuffer.append(renderChildren(getChildren(tree), renderContext).toString().strip());
+        outBuffer.append(innerHtml.toString().strip());
         outBuffer.append("</").append(hTag).append(">\n");
-        if (!renderContext.renderState().containsKey(RenderResult.RENDER_STATE_KEYS.TITLE.name())) {
-            renderContext.renderState().put(
-                    RenderResult.RENDER_STATE_KEYS.TITLE.name(),
-                    renderChildrenToPlainText(getChildren(tree), renderContext).toString().strip());
+        if (!state.hasTitle()) {
+            state.setTitle(innerPlainText.toString().strip());
         }
         return outBuffer;
 
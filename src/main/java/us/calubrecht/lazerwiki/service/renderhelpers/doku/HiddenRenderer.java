@@ -40,16 +40,28 @@ public class HiddenRenderer extends TreeRenderer {
 
     public StringBuilder render(ParseTree tree, RenderContext renderContext) {
         StringBuilder sb = new StringBuilder();
-        sb.append(getStartTags());
-        sb.append(renderChildren(getChildren(tree, 1, tree.getChildCount()-1), renderContext));
-        sb.append(endTag);
+        render(tree, renderContext, sb);
         return sb;
     }
 
+    @Override
+    public void render(ParseTree tree, RenderContext renderContext, StringBuilder out) {
+        out.append(getStartTags());
+        renderChildren(getChildren(tree, 1, tree.getChildCount()-1), renderContext, out);
+        out.append(endTag);
+    }
+
     @Override
     public StringBuilder renderToPlainText(ParseTree tree, RenderContext renderContext) {
         StringBuilder sb = new StringBuilder();
         sb.append(renderChildrenToPlainText(getChildren(tree, 1, tree.getChildCount()-1), renderContext));
         return sb;
     }
+
+    @Override
+    public void renderWithPlainText(ParseTree tree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        html.append(getStartTags());
+        renderChildrenWithPlainText(getChildren(tree, 1, tree.getChildCount()-1), renderContext, html, plainText);
+        html.append(endTag);
+    }
 }
@@ -21,9 +21,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.IMAGES;
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.MEDIA_OVERRIDES;
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.OVERRIDE_STATS;
 
 @Component
 public class ImageRenderer  extends TypedRenderer<ImageContext> {
@@ -47,21 +44,20 @@ public class ImageRenderer  extends TypedRenderer<ImageContext> {
     }
 
     String doOverrides(String file, ImageContext tree, RenderContext renderContext) {
-        Map<String, MediaOverride> overrides = (Map<String, MediaOverride>) renderContext.renderState().get(MEDIA_OVERRIDES.name());
+        Map<String, MediaOverride> overrides = renderContext.state().getMediaOverrides();
         if (overrides == null) {
             List<MediaOverride> mediaOverrideList = mediaOverrideService.getOverrides(renderContext.host(), renderContext.page());
             overrides = mediaOverrideList.stream().collect(
                     Collectors.toMap(MediaOverride::getTarget, Function.identity(), (a, b) -> b)
             );
-            renderContext.renderState().put(MEDIA_OVERRIDES.name(), overrides);
+            renderContext.state().setMediaOverrides(overrides);
         }
         if (overrides.containsKey(file)) {
             String override = overrides.get(file).getNewTarget();
             int startIndex = tree.inner_text(0).getStart().getStartIndex();
             String linkText = tree.inner_text(0).getText();
             startIndex += linkText.indexOf(file);
-            ((List<LinkOverrideInstance>)renderContext.renderState().computeIfAbsent(OVERRIDE_STATS.name(),
-                    (k) -> new ArrayList<>())).add(
+            renderContext.state().addOverrideStat(
                     new LinkOverrideInstance(file, override, startIndex, startIndex + file.length()));
             return override;
         }
@@ -182,7 +178,7 @@ public class ImageRenderer  extends TypedRenderer<ImageContext> {
             String titleText = Strings.isBlank(innards.get(INNARD_TOKEN.TITLE)) ? fileName : innards.get(INNARD_TOKEN.TITLE).trim();
             sb.append(titleText);
             sb.append("</a>");
-            ((Set<String>)renderContext.renderState().computeIfAbsent(IMAGES.name(), (k) -> new HashSet<>())).add(fileName);
+            renderContext.state().addImage(fileName);
             return sb;
         }
         if (imageTok.startsWith(" ") && imageTok.endsWith(" ")) {
@@ -206,7 +202,7 @@ public class ImageRenderer  extends TypedRenderer<ImageContext> {
         sb.append(fileName).append(getSizeTok(innards.get(INNARD_TOKEN.OPTIONS)));
         String titleText = Strings.isBlank(innards.get(INNARD_TOKEN.TITLE)) ? "" : " title=\"" + innards.get(INNARD_TOKEN.TITLE).trim() + "\"";
         sb.append("\" class=\"").append(className).append("\"").append(titleText).append(inlineStyle).append(" loading=\"lazy\">");
-        ((Set<String>)renderContext.renderState().computeIfAbsent(IMAGES.name(), (k) -> new HashSet<>())).add(fileName);
+        renderContext.state().addImage(fileName);
         return sb;
     }
 }
\ No newline at end of file
@@ -18,26 +18,48 @@ public class InnerTextRenderer extends TreeRenderer {
     @Override
     public StringBuilder render(ParseTree tree, RenderContext renderContext) {
         StringBuilder outBuffer = new StringBuilder();
+        render(tree, renderContext, outBuffer);
+        return outBuffer;
+    }
+
+    @Override
+    public void render(ParseTree tree, RenderContext renderContext, StringBuilder out) {
         StringBuilder currentBuffer = new StringBuilder();
         for(int i = 0; i < tree.getChildCount(); i++) {
             ParseTree child = tree.getChild(i);
-            TreeRenderer renderer = renderers.getRenderer(child.getClass(), child);
-            StringBuilder currentRender = renderer.render(child, renderContext);
+            TreeRenderer renderer = renderers.getRenderer(child);
             if (renderer.shouldParentSanitize()) {
-                currentBuffer.append(currentRender);
+                renderer.render(child, renderContext, currentBuffer);
             } else {
-                outBuffer.append(sanitize(currentBuffer.toString()));
+                sanitize(currentBuffer, out);
                 currentBuffer.setLength(0);
-                outBuffer.append(currentRender);
+                renderer.render(child, renderContext, out);
             }
         }
-        outBuffer.append(sanitize(currentBuffer.toString()));
-        return outBuffer;
-
+        sanitize(currentBuffer, out);
     }
 
     @Override
     public StringBuilder renderToPlainText(ParseTree tree, RenderContext context) {
         return renderChildrenToPlainText(getChildren(tree), context);
     }
+
+    @Override
+    public void renderWithPlainText(ParseTree tree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        StringBuilder currentBuffer = new StringBuilder();
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            ParseTree child = tree.getChild(i);
+            TreeRenderer renderer = renderers.getRenderer(child);
+            StringBuilder currentRender = new StringBuilder();
+            renderer.renderWithPlainText(child, renderContext, currentRender, plainText);
+            if (renderer.shouldParentSanitize()) {
+                currentBuffer.append(currentRender);
+            } else {
+                sanitize(currentBuffer, html);
+                currentBuffer.setLength(0);
+                html.append(currentRender);
+            }
+        }
+        sanitize(currentBuffer, html);
+    }
 }
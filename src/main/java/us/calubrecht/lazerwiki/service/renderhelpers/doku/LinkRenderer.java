@@ -8,7 +8,6 @@ import org.springframework.stereotype.Component;
 import us.calubrecht.lazerwiki.model.LinkOverride;
 import us.calubrecht.lazerwiki.model.LinkOverrideInstance;
 import us.calubrecht.lazerwiki.service.LinkOverrideService;
-import us.calubrecht.lazerwiki.service.PageService;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
 import us.calubrecht.lazerwiki.service.renderhelpers.TreeRenderer;
 import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiParser;
@@ -21,9 +20,6 @@ import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.LINKS;
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.LINK_OVERRIDES;
-import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.OVERRIDE_STATS;
 
 @Component
 public class LinkRenderer extends TypedRenderer<LinkContext> {
@@ -32,9 +28,6 @@ public class LinkRenderer extends TypedRenderer<LinkContext> {
     static final String LINK_CLASS ="wikiLink";
     static final String EXTERNAL_LINK_CLASS ="wikiLinkExternal";
 
-    @Autowired
-    private PageService pageService;
-
     @Autowired
     LinkOverrideService linkOverrideService;
 
@@ -70,21 +63,24 @@ public class LinkRenderer extends TypedRenderer<LinkContext> {
             // Fall through
         }
         if (isInternal(linkTarget)) {
-            return pageService.getTitle(renderContext.host(), linkTarget);
+            return LinkResolver.titlePlaceholder(linkTarget);
         }
         return linkTarget;
     }
 
-    protected String getCssClass(String targetName, String host) {
+    // Existence and titles of internal links are looked up for the whole page at once, see LinkResolver
+    protected String getCssClass(String targetName) {
         if (isInternal(targetName)) {
-            boolean exists =  pageService.exists(host, targetName);
-            return exists? LINK_CLASS : MISSING_LINK_CLASS;
-
+            return LinkResolver.cssClassPlaceholder(targetName);
         }
         return EXTERNAL_LINK_CLASS;
     }
 
-    protected boolean isInternal(String link) {
+    static String linkUrl(String linkTarget) {
+        return linkTarget.isBlank() ? "/" : ( isInternal(linkTarget) ? "/page/" + linkTarget : linkTarget);
+    }
+
+    protected static boolean isInternal(String link) {
         return !(link.toLowerCase().startsWith("https://") || link.toLowerCase().startsWith("http://"));
     }
 
@@ -93,11 +89,11 @@ public class LinkRenderer extends TypedRenderer<LinkContext> {
     public StringBuilder renderContext(LinkContext tree, RenderContext renderContext) {
         String linkTarget = getLinkTarget(tree);
         linkTarget = doOverrides(linkTarget, tree, renderContext);
-        String linkURL = linkTarget.isBlank() ? "/" : ( isInternal(linkTarget) ? "/page/" + linkTarget : linkTarget);
+        String linkURL = linkUrl(linkTarget);
         if (isInternal(linkTarget)) {
-            ((Set<String>)renderContext.renderState().computeIfAbsent(LINKS.name(), (k) -> new HashSet<>())).add(linkTarget);
+            renderContext.state().addLink(linkTarget);
         }
-        String cssClass = getCssClass(linkTarget, renderContext.host());
+        String cssClass = getCssClass(linkTarget);
         return new StringBuilder("<a class=\"%s\" href=\"%s\">%s</a>".
                 formatted(cssClass, linkURL, getLinkDisplay(tree, linkTarget, renderContext)));
     }
@@ -113,24 +109,74 @@ public class LinkRenderer extends TypedRenderer<LinkContext> {
             // Fall through
         }
         if (isInternal(linkTarget)) {
-            return new StringBuilder(pageService.getTitle(renderContext.host(), linkTarget));
+            return new StringBuilder(LinkResolver.titlePlaceholder(linkTarget));
         }
         return new StringBuilder(linkTarget);
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public void renderWithPlainText(ParseTree ptree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        LinkContext tree = toContext(ptree);
+        String rawTarget = getLinkTarget(tree);
+        String linkTarget = doOverrides(rawTarget, tree, renderContext);
+        String linkURL = linkUrl(linkTarget);
+        if (isInternal(linkTarget)) {
+            renderContext.state().addLink(linkTarget);
+        }
+        String cssClass = getCssClass(linkTarget);
+        StringBuilder displayHtml = new StringBuilder();
+        StringBuilder displayPlainText = new StringBuilder();
+        if (tree.link_display() != null) {
+            renderChildrenWithPlainText(List.of(tree.link_display()), renderContext, displayHtml, displayPlainText);
+        }
+        String display = displayHtml.toString();
+        if (display.isBlank()) {
+            // Fall through
+            if (isInternal(linkTarget)) {
+                display = LinkResolver.titlePlaceholder(linkTarget);
+            } else {
+                display = linkTarget;
+            }
+        }
+        html.append("<a class=\"%s\" href=\"%s\">%s</a>".formatted(cssClass, linkURL, display));
+        if (!displayPlainText.toString().isBlank()) {
+            plainText.append(displayPlainText);
+        }
+        // Plaintext shows the link as written, before any overrides
+        else if (isInternal(rawTarget)) {
+            plainText.append(LinkResolver.titlePlaceholder(rawTarget));
+        }
+        else {
+            plainText.append(rawTarget);
+        }
+    }
+
+    /**
+     * The internal pages the link may show the title or existence of: its target as written, and after any override.
+     */
+    public List<String> internalTargets(LinkContext tree, RenderContext renderContext) {
+        String rawTarget = getLinkTarget(tree);
+        if (!isInternal(rawTarget)) {
+            return List.of();
+        }
+        Map<String, LinkOverride> overrides = renderContext.state().getLinkOverrides();
+        LinkOverride override = overrides == null ? null : overrides.get(rawTarget);
+        return override == null ? List.of(rawTarget) : List.of(rawTarget, override.getNewTarget());
+    }
+
     String doOverrides(String page, LinkContext tree, RenderContext renderContext) {
-        Map<String, LinkOverride> overrides = (Map<String, LinkOverride>) renderContext.renderState().get(LINK_OVERRIDES.name());
+        Map<String, LinkOverride> overrides = renderContext.state().getLinkOverrides();
         if (overrides == null) {
             List<LinkOverride> overrideList = linkOverrideService.getOverrides(renderContext.host(), renderContext.page());
             overrides = overrideList.stream().collect(
                     Collectors.toMap(LinkOverride::getTarget, Function.identity(), (a,b) -> b)
             );
-            renderContext.renderState().put(LINK_OVERRIDES.name(), overrides);
+            renderContext.state().setLinkOverrides(overrides);
         }
         if (overrides.containsKey(page)) {
             String override = overrides.get(page).getNewTarget();
-            ((List<LinkOverrideInstance>)renderContext.renderState().computeIfAbsent(OVERRIDE_STATS.name(),
-                    (k) -> new ArrayList<>())).add(
+            renderContext.state().addOverrideStat(
                     new LinkOverrideInstance(page, override, tree.link_target().getStart().getStartIndex(), tree.link_target().getStop().getStopIndex()+1));
             return override;
         }
@@ -154,9 +200,19 @@ public class LinkRenderer extends TypedRenderer<LinkContext> {
             return renderChildren(getChildren(tree, 1, tree.getChildCount()), renderContext);
         }
 
+        @Override
+        public void render(ParseTree tree, RenderContext renderContext, StringBuilder out) {
+            renderChildren(getChildren(tree, 1, tree.getChildCount()), renderContext, out);
+        }
+
         @Override
         public StringBuilder renderToPlainText(ParseTree tree, RenderContext renderContext) {
             return renderChildrenToPlainText(getChildren(tree, 1, tree.getChildCount()), renderContext);
         }
+
+        @Override
+        public void renderWithPlainText(ParseTree tree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+            renderChildrenWithPlainText(getChildren(tree, 1, tree.getChildCount()), renderContext, html, plainText);
+        }
     }
 }
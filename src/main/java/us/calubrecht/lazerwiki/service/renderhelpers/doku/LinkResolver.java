@@ -0,0 +1,166 @@
+package us.calubrecht.lazerwiki.service.renderhelpers.doku;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import us.calubrecht.lazerwiki.service.PageService;
+import us.calubrecht.lazerwiki.service.PageService.LinkTarget;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Internal links need to know whether their target exists and its title. Rather than look up each page as the link is
+ * rendered, LinkRenderer writes placeholders, and once the page is rendered resolve() looks up all the targets with a
+ * single query and fills them in.
+ * <p>
+ * Placeholders are delimited by private use chars, which can't be confused with markup and are left alone by html
+ * escaping. Markup is passed through stripDelimiters before it is parsed, so an author can't write a placeholder.
+ */
+@Component
+public class LinkResolver {
+    static final char PLACEHOLDER_START = '\uE000';
+    static final char PLACEHOLDER_END = '\uE001';
+    static final char CSS_CLASS = 'C';
+    static final char TITLE = 'T';
+    static final String START = String.valueOf(PLACEHOLDER_START);
+    static final String END = String.valueOf(PLACEHOLDER_END);
+
+    @Autowired
+    PageService pageService;
+
+    public static String cssClassPlaceholder(String target) {
+        return placeholder(CSS_CLASS, target);
+    }
+
+    public static String titlePlaceholder(String target) {
+        return placeholder(TITLE, target);
+    }
+
+    static String placeholder(char type, String target) {
+        return new StringBuilder(target.length() + 3).append(PLACEHOLDER_START).append(type).append(target).append(PLACEHOLDER_END).toString();
+    }
+
+    /**
+     * Text with any placeholder delimiters replaced by U+FFFD, keeping its length so offsets into it still hold.
+     */
+    public static String stripDelimiters(String text) {
+        if (text.indexOf(PLACEHOLDER_START) == -1 && text.indexOf(PLACEHOLDER_END) == -1) {
+            return text;
+        }
+        return text.replace(PLACEHOLDER_START, '\uFFFD').replace(PLACEHOLDER_END, '\uFFFD');
+    }
+
+    /**
+     * Whether every link to target in html is still a placeholder, in which case it will be correct once filled in even
+     * if target has been created, deleted or retitled since html was rendered.
+     */
+    public static boolean isLateBound(String html, String target) {
+        String href = "\" href=\"" + LinkRenderer.linkUrl(target) + "\"";
+        return count(html, href) == count(html, cssClassPlaceholder(target) + href);
+    }
+
+    static int count(String html, String find) {
+        int count = 0;
+        for (int i = html.indexOf(find); i != -1; i = html.indexOf(find, i + find.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Fill in the placeholders in all the buffers, with one lookup for all of them.
+     */
+    public void resolve(String host, StringBuilder... buffers) {
+        resolve(host, null, buffers);
+    }
+
+    /**
+     * As resolve(host, buffers), only looking up the targets that aren't in known.
+     */
+    public void resolve(String host, Map<String, LinkTarget> known, StringBuilder... buffers) {
+        Set<String> targets = new HashSet<>();
+        for (StringBuilder buffer : buffers) {
+            collectTargets(buffer, targets);
+        }
+        Map<String, LinkTarget> resolved = known == null ? Map.of() : known;
+        targets.removeAll(resolved.keySet());
+        if (!targets.isEmpty()) {
+            resolved = new HashMap<>(resolved);
+            resolved.putAll(pageService.getLinkTargets(host, targets));
+        } else if (resolved.isEmpty()) {
+            return;
+        }
+        for (StringBuilder buffer : buffers) {
+            fill(buffer, resolved);
+        }
+    }
+
+    /**
+     * Look up the targets, for filling in placeholders later with resolve(host, known, buffers).
+     */
+    public Map<String, LinkTarget> lookup(String host, Collection<String> targets) {
+        return targets.isEmpty() ? Map.of() : pageService.getLinkTargets(host, targets);
+    }
+
+    /**
+     * As resolve(host, buffers), html is returned as is if it has no placeholders.
+     */
+    public String resolve(String host, String html) {
+        if (html.indexOf(PLACEHOLDER_START) == -1) {
+            return html;
+        }
+        StringBuilder buffer = new StringBuilder(html);
+        resolve(host, buffer);
+        return buffer.toString();
+    }
+
+    static void collectTargets(StringBuilder buffer, Set<String> targets) {
+        for (int start = buffer.indexOf(START); start != -1; start = buffer.indexOf(START, start + 1)) {
+            int end = placeholderEnd(buffer, start);
+            if (end != -1) {
+                targets.add(buffer.substring(start + 2, end));
+            }
+        }
+    }
+
+    // Index of the end of the placeholder at start, or -1 if this isn't one
+    static int placeholderEnd(StringBuilder buffer, int start) {
+        if (start + 1 >= buffer.length() || (buffer.charAt(start + 1) != CSS_CLASS && buffer.charAt(start + 1) != TITLE)) {
+            return -1;
+        }
+        return buffer.indexOf(END, start + 2);
+    }
+
+    static void fill(StringBuilder buffer, Map<String, LinkTarget> resolved) {
+        int start = buffer.indexOf(START);
+        if (start == -1) {
+            return;
+        }
+        StringBuilder filled = new StringBuilder(buffer.length());
+        int copied = 0;
+        for (; start != -1; start = buffer.indexOf(START, Math.max(start + 1, copied))) {
+            int end = placeholderEnd(buffer, start);
+            if (end == -1) {
+                continue;
+            }
+            String target = buffer.substring(start + 2, end);
+            LinkTarget linkTarget = resolved.get(target);
+            if (linkTarget == null) {
+                linkTarget = new LinkTarget(false, PageService.decodeDescriptor(target).renderedName());
+            }
+            filled.append(buffer, copied, start);
+            if (buffer.charAt(start + 1) == CSS_CLASS) {
+                filled.append(linkTarget.exists() ? LinkRenderer.LINK_CLASS : LinkRenderer.MISSING_LINK_CLASS);
+            } else {
+                filled.append(linkTarget.title());
+            }
+            copied = end + 1;
+        }
+        filled.append(buffer, copied, buffer.length());
+        buffer.setLength(0);
+        buffer.append(filled);
+    }
+}
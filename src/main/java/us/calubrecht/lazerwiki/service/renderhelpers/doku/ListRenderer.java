@@ -43,20 +43,26 @@ public abstract class ListRenderer extends AdditiveTreeRenderer {
     @Override
     public StringBuilder render(List<ParseTree> trees, RenderContext renderContext) {
         StringBuilder sb = new StringBuilder();
+        render(trees, renderContext, sb);
+        return sb;
+    }
+
+    @Override
+    public void render(List<ParseTree> trees, RenderContext renderContext, StringBuilder sb) {
         ListSpec currentSpec = getListSpec(trees.get(0));
         sb.append("<%s>\n".formatted(currentSpec.listType()));
         while (!trees.isEmpty()) {
             ParseTree current = trees.get(0);
             ListSpec newSpec = getListSpec(current);
             if (newSpec.equals(currentSpec)) {
-                sb.append(render(current, renderContext));
+                render(current, renderContext, sb);
                 trees.remove(0);
                 continue;
             }
             if (newSpec.depth() == currentSpec.depth()) {
                 sb.append("</%s>\n".formatted(currentSpec.listType()));
                 sb.append("<%s>\n".formatted(newSpec.listType()));
-                sb.append(render(current, renderContext));
+                render(current, renderContext, sb);
                 trees.remove(0);
                 currentSpec = newSpec;
                 continue;
@@ -65,10 +71,9 @@ public abstract class ListRenderer extends AdditiveTreeRenderer {
                 break;
             }
             // Start nested list
-            sb.append(render(trees, renderContext));
+            render(trees, renderContext, sb);
         }
         sb.append("</%s>\n".formatted(currentSpec.listType()));
-        return sb;
     }
 
     Set<Class<? extends ParseTree>> innerTreesToRender = Set.of(DokuwikiParser.Inner_textContext.class, DokuwikiParser.Styled_spanContext.class, DokuwikiParser.MacroContext.class);
@@ -86,8 +91,8 @@ public abstract class ListRenderer extends AdditiveTreeRenderer {
         StringBuilder innerContent = new StringBuilder();
         List<ParseTree> content = getChildren(tree).stream().filter(t -> innerTreesToRender.contains(t.getClass())).toList();
         content.forEach(pt -> {
-            TreeRenderer renderer = renderers.getRenderer(pt.getClass(), pt);
-            innerContent.append(renderer.render(pt, renderContext)); }
+            TreeRenderer renderer = renderers.getRenderer(pt);
+            renderer.render(pt, renderContext, innerContent); }
         );
         sb.append(innerContent.toString().trim());
         sb.append("</li>\n");
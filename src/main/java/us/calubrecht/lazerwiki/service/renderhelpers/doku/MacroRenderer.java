@@ -32,4 +32,9 @@ public class MacroRenderer extends TreeRenderer {
     public StringBuilder renderToPlainText(ParseTree tree, RenderContext renderContext) {
         return new StringBuilder();
     }
+
+    @Override
+    public void renderWithPlainText(ParseTree tree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        html.append(render(tree, renderContext));
+    }
 }
@@ -7,6 +7,7 @@ import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
 import us.calubrecht.lazerwiki.service.renderhelpers.TreeRenderer;
 import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiParser;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -42,14 +43,31 @@ public class RowRenderer extends FlatteningRenderer {
     @Override
     public StringBuilder render(List<ParseTree> trees, RenderContext renderContext) {
         StringBuilder ret = new StringBuilder();
-        ret.append("<%s>".formatted(getTagName()));
+        render(trees, renderContext, ret);
+        return ret;
+    }
+
+    @Override
+    public void render(List<ParseTree> trees, RenderContext renderContext, StringBuilder out) {
+        out.append("<%s>".formatted(getTagName()));
         List<ParseTree> children = trees.stream().flatMap(
                 (t) -> flattenChildren(t, false).stream()).collect(Collectors.toList());
-        ret.append(renderChildren(children, renderContext));
+        renderChildren(children, renderContext, out);
         // Remove trailing new line
-        ret.deleteCharAt(ret.length() -1);
-        ret.append("</%s>".formatted(getTagName()));
-        return ret;
+        out.deleteCharAt(out.length() -1);
+        out.append("</%s>".formatted(getTagName()));
+    }
+
+    @Override
+    public void renderWithPlainText(List<ParseTree> trees, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        html.append("<%s>".formatted(getTagName()));
+        Set<ParseTree> plainTextOnly = new HashSet<>();
+        List<ParseTree> children = trees.stream().flatMap(
+                (t) -> flattenChildren(t, false, plainTextOnly).stream()).collect(Collectors.toList());
+        renderChildrenWithPlainText(children, plainTextOnly, renderContext, html, plainText);
+        // Remove trailing new line
+        html.deleteCharAt(html.length() -1);
+        html.append("</%s>".formatted(getTagName()));
     }
 
     @Override
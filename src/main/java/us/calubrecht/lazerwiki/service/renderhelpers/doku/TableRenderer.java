@@ -21,6 +21,12 @@ public class TableRenderer extends FlatteningRenderer {
     @Override
     public StringBuilder render(List<ParseTree> trees, RenderContext renderContext) {
         StringBuilder sb = new StringBuilder();
+        render(trees, renderContext, sb);
+        return sb;
+    }
+
+    @Override
+    public void render(List<ParseTree> trees, RenderContext renderContext, StringBuilder sb) {
         sb.append("<table class=\"lazerTable\"><tbody>");
         List<ParseTree> children = trees.stream().flatMap(
                 (t) -> flattenChildren(t, true).stream()).toList();
@@ -67,12 +73,11 @@ public class TableRenderer extends FlatteningRenderer {
             }
             sb.append("<tr>");
             row.forEach(data -> {
-                sb.append(data.toString());
+                data.render(sb);
             });
             sb.append("</tr>\n");
         });
         sb.append("</tbody></table>");
-        return sb;
     }
 
     @Override
@@ -112,12 +117,20 @@ public class TableRenderer extends FlatteningRenderer {
             internal.add(tree);
         }
 
-        public String toString() {
-            String colspanAttr = " colspan=\"%s\"".formatted(colspan);
-            if (colspan ==1) {
-                colspanAttr = "";
+        void render(StringBuilder out) {
+            out.append("<").append(tagType);
+            if (colspan != 1) {
+                out.append(" colspan=\"%s\"".formatted(colspan));
             }
-            return "<%s%s>%s</%s>".formatted(tagType, colspanAttr, renderChildren(internal, renderContext), tagType);
+            out.append(">");
+            renderChildren(internal, renderContext, out);
+            out.append("</").append(tagType).append(">");
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            render(sb);
+            return sb.toString();
         }
     }
 }
@@ -23,8 +23,27 @@ public class TerminalRenderer extends TreeRenderer {
         return node.getSymbol().getType() == Token.EOF ? new StringBuilder() : new StringBuilder(tree.getText());
     }
 
+    @Override
+    public void render(ParseTree tree, RenderContext renderContext, StringBuilder out) {
+        TerminalNodeImpl node = (TerminalNodeImpl)tree;
+        if (node.getSymbol().getType() != Token.EOF) {
+            out.append(tree.getText());
+        }
+    }
+
     @Override
     public StringBuilder renderToPlainText(ParseTree tree, RenderContext renderContext) {
         return render(tree, renderContext);
     }
+
+    @Override
+    public void renderWithPlainText(ParseTree tree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        TerminalNodeImpl node = (TerminalNodeImpl)tree;
+        if (node.getSymbol().getType() == Token.EOF) {
+            return;
+        }
+        String text = tree.getText();
+        html.append(text);
+        plainText.append(text);
+    }
 }
@@ -29,4 +29,11 @@ public class UnformatRenderer extends TreeRenderer {
     public StringBuilder renderToPlainText(ParseTree tree, RenderContext renderContext) {
         return render(tree, renderContext);
     }
+
+    @Override
+    public void renderWithPlainText(ParseTree tree, RenderContext renderContext, StringBuilder html, StringBuilder plainText) {
+        StringBuilder rendered = render(tree, renderContext);
+        html.append(rendered);
+        plainText.append(rendered);
+    }
 }
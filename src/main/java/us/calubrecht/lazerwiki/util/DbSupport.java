@@ -1,5 +1,8 @@
 package us.calubrecht.lazerwiki.util;
 
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
 import java.util.List;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -13,4 +16,20 @@ public class DbSupport {
     public static <T> Stream<T> toStream(Iterable<T> iterable) {
         return StreamSupport.stream(iterable.spliterator(), false);
     }
+
+    /**
+     * Runs change again when the current transaction, if any, completes. In-heap caches purge as soon as something
+     * changes, but a read between the change and the commit still sees what was there before and may cache it. On
+     * rollback the change is repeated too, as the transaction's own reads may have cached what it wrote.
+     */
+    public static void afterCompletion(Runnable change) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    change.run();
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,86 @@
+package us.calubrecht.lazerwiki.util;
+
+import org.apache.commons.text.translate.EntityArrays;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Escapes text for html, producing the same output as StringEscapeUtils.escapeHtml4 except that double quotes are
+ * left alone. Replacements come from a table indexed by char, and text with nothing to escape is passed through
+ * without copying.
+ */
+public class HtmlEscaper {
+    static final String[] ESCAPES;
+
+    static {
+        Map<CharSequence, CharSequence> html4 = new HashMap<>();
+        html4.putAll(EntityArrays.BASIC_ESCAPE);
+        html4.putAll(EntityArrays.ISO8859_1_ESCAPE);
+        html4.putAll(EntityArrays.HTML40_EXTENDED_ESCAPE);
+        html4.remove("\"");
+        int max = html4.keySet().stream().mapToInt(k -> k.charAt(0)).max().orElse(0);
+        ESCAPES = new String[max + 1];
+        html4.forEach((k, v) -> ESCAPES[k.charAt(0)] = v.toString());
+    }
+
+    private HtmlEscaper() {}
+
+    static boolean needsEscape(char c) {
+        return c < ESCAPES.length && ESCAPES[c] != null;
+    }
+
+    public static String escape(String input) {
+        int first = firstToEscape(input);
+        if (first < 0) {
+            return input;
+        }
+        StringBuilder out = new StringBuilder(input.length() + 16);
+        out.append(input, 0, first);
+        escapeFrom(input, first, out);
+        return out.toString();
+    }
+
+    public static String escape(CharSequence input) {
+        if (firstToEscape(input) < 0) {
+            return input.toString();
+        }
+        StringBuilder out = new StringBuilder(input.length() + 16);
+        escapeFrom(input, 0, out);
+        return out.toString();
+    }
+
+    /**
+     * Append the escaped input to out.
+     */
+    public static void escape(CharSequence input, StringBuilder out) {
+        int first = firstToEscape(input);
+        if (first < 0) {
+            out.append(input);
+            return;
+        }
+        out.append(input, 0, first);
+        escapeFrom(input, first, out);
+    }
+
+    static int firstToEscape(CharSequence input) {
+        for (int i = 0; i < input.length(); i++) {
+            if (needsEscape(input.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static void escapeFrom(CharSequence input, int start, StringBuilder out) {
+        int runStart = start;
+        for (int i = start; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (needsEscape(c)) {
+                out.append(input, runStart, i).append(ESCAPES[c]);
+                runStart = i + 1;
+            }
+        }
+        out.append(input, runStart, input.length());
+    }
+}
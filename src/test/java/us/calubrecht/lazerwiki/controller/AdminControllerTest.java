@@ -15,6 +15,7 @@ import us.calubrecht.lazerwiki.responses.NsNode;
 import us.calubrecht.lazerwiki.responses.PageListResponse;
 import us.calubrecht.lazerwiki.service.*;
 import us.calubrecht.lazerwiki.service.exception.SiteSettingsException;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderBudget;
 
 import java.util.Collections;
 import java.util.List;
@@ -56,6 +57,12 @@ class AdminControllerTest {
     @MockBean
     GlobalSettingsService globalSettingsService;
 
+    @MockBean
+    RenderBudgetService renderBudgetService;
+
+    @MockBean
+    RenderedPageCache renderedPageCache;
+
     @Test
     void regenLinkTable() throws Exception {
         User adminUser = new User();
@@ -100,6 +107,40 @@ class AdminControllerTest {
         verify(regenCacheService, times(2)).regenCache("default");
     }
 
+    @Test
+    void getRenderOverruns() throws Exception {
+        User adminUser = new User();
+        adminUser.roles = List.of(new UserRole(adminUser, "ROLE_ADMIN"));
+        User regularUser = new User();
+        regularUser.roles = List.of(new UserRole(regularUser, "ROLE_USER"));
+        when(userService.getUser("bob")).thenReturn(adminUser);
+        when(userService.getUser("frank")).thenReturn(regularUser);
+        when(renderBudgetService.getOverruns("default")).thenReturn(List.of(
+                new RenderBudgetService.Overrun("default", "bigPage", "include", RenderBudget.Limit.TIME, 5001, 2, null)));
+
+        this.mockMvc.perform(get("/api/admin/renderOverruns/default").principal(new UsernamePasswordAuthenticationToken("bob", ""))).
+                andExpect(status().isOk()).andExpect(content().json("[{\"page\":\"bigPage\", \"macro\":\"include\", \"limit\":\"TIME\", \"count\":2}]"));
+        this.mockMvc.perform(get("/api/admin/renderOverruns/default").principal(new UsernamePasswordAuthenticationToken("frank", ""))).
+                andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    void getRenderedPageCacheStats() throws Exception {
+        User adminUser = new User();
+        adminUser.roles = List.of(new UserRole(adminUser, "ROLE_ADMIN"));
+        User siteAdmin = new User();
+        siteAdmin.roles = List.of(new UserRole(siteAdmin, "ROLE_ADMIN:default"));
+        when(userService.getUser("bob")).thenReturn(adminUser);
+        when(userService.getUser("celia")).thenReturn(siteAdmin);
+        when(renderedPageCache.getStats()).thenReturn(new RenderedPageCache.Stats(10, 2, 1, 3, 5, 1000, 20000000));
+
+        this.mockMvc.perform(get("/api/admin/renderedPageCacheStats").principal(new UsernamePasswordAuthenticationToken("bob", ""))).
+                andExpect(status().isOk()).andExpect(content().json("{\"hits\":10, \"misses\":2, \"evictions\":1, \"entries\":5}"));
+        // Stats are for every site
+        this.mockMvc.perform(get("/api/admin/renderedPageCacheStats").principal(new UsernamePasswordAuthenticationToken("celia", ""))).
+                andExpect(status().isUnauthorized());
+    }
+
     @Test
     void getUsers() throws Exception {
         when(userService.getUsers()).thenReturn(List.of(new UserDTO("Bob",null, List.of("ROLE_ADMIN","ROLE_USER"), Map.of()), new UserDTO("Frank", null, List.of("ROLE_USER"), Map.of())));
@@ -11,6 +11,7 @@ import org.springframework.security.authentication.UsernamePasswordAuthenticatio
 import org.springframework.security.core.Authentication;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
+import us.calubrecht.lazerwiki.responses.PageData;
 import us.calubrecht.lazerwiki.service.PageLockService;
 import us.calubrecht.lazerwiki.service.PageService;
 import us.calubrecht.lazerwiki.service.PageUpdateService;
@@ -20,10 +21,13 @@ import us.calubrecht.lazerwiki.service.exception.PageRevisionException;
 
 import java.util.List;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(controllers = {PageController.class, VersionController.class})
@@ -48,20 +52,50 @@ public class PageControllerTest {
 
     @Test
     public void testGetPage() throws Exception {
+        when(renderService.getPageJson("localhost", "testPage", "Bob")).thenReturn(new RenderService.PageJson("{\"rendered\":\"Bob's page\"}".getBytes(), true));
         Authentication auth = new UsernamePasswordAuthenticationToken("Bob", "password1");
         this.mockMvc.perform(get("/api/page/get/testPage").
                         principal(auth)).
-                andExpect(status().isOk());
+                andExpect(status().isOk()).andExpect(content().contentType(MediaType.APPLICATION_JSON)).
+                andExpect(content().json("{\"rendered\":\"Bob's page\"}"));
 
-        verify(renderService).getRenderedPage(eq("localhost"), eq("testPage"), eq("Bob"));
+        verify(renderService).getPageJson(eq("localhost"), eq("testPage"), eq("Bob"));
     }
 
     @Test
     public void testGetPageAnon() throws Exception {
+        when(renderService.getPageJson("localhost", "testPage", "Guest")).thenReturn(new RenderService.PageJson("{\"rendered\":\"Guest page\"}".getBytes(), true));
+        this.mockMvc.perform(get("/api/page/get/testPage")).
+                andExpect(status().isOk()).andExpect(content().contentType(MediaType.APPLICATION_JSON)).
+                andExpect(content().json("{\"rendered\":\"Guest page\"}"));
+
+        verify(renderService).getPageJson(eq("localhost"), eq("testPage"), eq("Guest"));
+        verify(renderService, never()).getRenderedPage(any(), any(), any());
+    }
+
+    @Test
+    public void testGetPageETag() throws Exception {
+        when(renderService.getPageETag("localhost", "testPage", "Guest")).thenReturn("\"tag1\"");
+        when(renderService.getPageJson("localhost", "testPage", "Guest")).thenReturn(new RenderService.PageJson("{\"rendered\":\"Guest page\"}".getBytes(), true));
         this.mockMvc.perform(get("/api/page/get/testPage")).
+                andExpect(status().isOk()).andExpect(header().string("ETag", "\"tag1\"")).
+                andExpect(header().string("Cache-Control", "no-cache, private"));
+
+        this.mockMvc.perform(get("/api/page/get/testPage").header("If-None-Match", "\"other\", \"tag1\"")).
+                andExpect(status().isNotModified()).andExpect(header().string("ETag", "\"tag1\"")).
+                andExpect(content().string(""));
+        verify(renderService, times(1)).getPageJson(any(), any(), any());
+
+        // Changed since
+        this.mockMvc.perform(get("/api/page/get/testPage").header("If-None-Match", "\"tag0\"")).
                 andExpect(status().isOk());
+        verify(renderService, times(2)).getPageJson(any(), any(), any());
 
-        verify(renderService).getRenderedPage(eq("localhost"), eq("testPage"), eq("Guest"));
+        // Pages that run macros aren't tagged
+        when(renderService.getPageJson("localhost", "macroPage", "Guest")).thenReturn(new RenderService.PageJson("{\"rendered\":\"Random\"}".getBytes(), false));
+        when(renderService.getPageETag("localhost", "macroPage", "Guest")).thenReturn("\"tag2\"");
+        this.mockMvc.perform(get("/api/page/get/macroPage")).
+                andExpect(status().isOk()).andExpect(header().doesNotExist("ETag"));
     }
 
     @Test
@@ -109,8 +143,13 @@ public class PageControllerTest {
                 andExpect(status().isOk());
         verify(pageService).getPageDiff(eq("localhost"), eq("testPage"), eq(1L), eq(2L), eq("Guest"));
 
-
-
+        when(renderService.getPageDiffETag("localhost", "testPage", 1L, 3L, "Guest")).thenReturn("\"diff\"");
+        this.mockMvc.perform(get("/api/page/diff/testPage/1/3")).
+                andExpect(status().isOk()).andExpect(header().string("ETag", "\"diff\"")).
+                andExpect(header().string("Cache-Control", containsString("immutable")));
+        this.mockMvc.perform(get("/api/page/diff/testPage/1/3").header("If-None-Match", "W/\"diff\"")).
+                andExpect(status().isNotModified());
+        verify(pageService, times(1)).getPageDiff(eq("localhost"), eq("testPage"), eq(1L), eq(3L), eq("Guest"));
     }
 
     @Test
@@ -242,17 +281,30 @@ public class PageControllerTest {
 
     @Test
     public void testGetPageHistorical() throws Exception {
+        PageData page = new PageData("Rendered", "Source", null, null, PageData.ALL_RIGHTS);
+        when(renderService.renderHistoricalPage(any(), any(), anyLong(), any())).thenReturn(new RenderService.RenderedPage(page, false));
         Authentication auth = new UsernamePasswordAuthenticationToken("Bob", "password1");
         this.mockMvc.perform(get("/api/page/getHistorical/testPage/1").
                         principal(auth)).
-                andExpect(status().isOk());
+                andExpect(status().isOk()).andExpect(header().doesNotExist("ETag"));
 
-        verify(renderService).getHistoricalRenderedPage(eq("localhost"), eq("testPage"), eq(1L), eq("Bob"));
+        verify(renderService).renderHistoricalPage(eq("localhost"), eq("testPage"), eq(1L), eq("Bob"));
 
         this.mockMvc.perform(get("/api/page/getHistorical/testPage/1")).
                 andExpect(status().isOk());
 
-        verify(renderService).getHistoricalRenderedPage(eq("localhost"), eq("testPage"), eq(1L), eq("Guest"));
+        verify(renderService).renderHistoricalPage(eq("localhost"), eq("testPage"), eq(1L), eq("Guest"));
+
+        // Revisions are checked again on each view, as their links and macros show the site as it is now
+        when(renderService.getHistoricalPageETag("localhost", "testPage", 2L, "Guest")).thenReturn("\"rev2\"");
+        when(renderService.renderHistoricalPage("localhost", "testPage", 2L, "Guest")).thenReturn(new RenderService.RenderedPage(page, true));
+        this.mockMvc.perform(get("/api/page/getHistorical/testPage/2")).
+                andExpect(status().isOk()).andExpect(header().string("ETag", "\"rev2\"")).
+                andExpect(header().string("Cache-Control", containsString("no-cache"))).
+                andExpect(header().string("Cache-Control", not(containsString("immutable"))));
+        this.mockMvc.perform(get("/api/page/getHistorical/testPage/2").header("If-None-Match", "\"rev2\"")).
+                andExpect(status().isNotModified());
+        verify(renderService, times(1)).renderHistoricalPage(eq("localhost"), eq("testPage"), eq(2L), eq("Guest"));
     }
 
     @Test
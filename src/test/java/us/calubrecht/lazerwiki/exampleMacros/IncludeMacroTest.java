@@ -1,11 +1,13 @@
 package us.calubrecht.lazerwiki.exampleMacros;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.test.context.ActiveProfiles;
+import us.calubrecht.lazerwiki.macro.Macro;
 import us.calubrecht.lazerwiki.model.RenderResult;
 import us.calubrecht.lazerwiki.responses.PageData;
 import us.calubrecht.lazerwiki.responses.PageData.PageFlags;
@@ -14,10 +16,13 @@ import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest(classes = {MacroService.class, DokuWikiRenderer.class, RendererRegistrar.class, us.calubrecht.lazerwiki.service.DokuWikiRendererTest.TestConfig.class})
@@ -52,6 +57,20 @@ class IncludeMacroTest {
     @MockBean
     TOCRenderService tocRenderService;
 
+    @MockBean
+    MacroResultCache macroResultCache;
+
+    @MockBean
+    NamespaceService namespaceService;
+
+    @MockBean
+    RenderBudgetService renderBudgetService;
+
+    @BeforeEach
+    void stubLinkLookups() {
+        us.calubrecht.lazerwiki.service.DokuWikiRendererTest.stubLinkTargets(pageService);
+    }
+
     @Test
     public void testIncludeMacro() {
         RenderContext renderContext = new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>());
@@ -86,4 +105,22 @@ class IncludeMacroTest {
         assertNull((Boolean)renderContext.renderState().get(RenderResult.RENDER_STATE_KEYS.DONT_CACHE.name()));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testLinksAreDependencies() {
+        Macro.MacroContext context = mock(Macro.MacroContext.class);
+        Map<String, Object> state = new HashMap<>(Map.of(RenderResult.RENDER_STATE_KEYS.LINKS.name(), Set.of("linked1", "ns:linked2"), "userCanWrite", false));
+        when(context.renderPage("includedPage")).thenReturn(new Macro.MacroContext.RenderOutput() {
+            public String getHtml() {
+                return "Included";
+            }
+
+            public Map<String, Object> getState() {
+                return state;
+            }
+        });
+        assertEquals("<div class=\"include\">Included</div>", new IncludeMacro().render(context, "includedPage"));
+        // Cached output goes when a page it links to is created, deleted or retitled
+        verify(context).addDependency("linked1");
+        verify(context).addDependency("ns:linked2");
+    }
+}
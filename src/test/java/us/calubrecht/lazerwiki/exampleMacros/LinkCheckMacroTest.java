@@ -1,12 +1,12 @@
 package us.calubrecht.lazerwiki.exampleMacros;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.test.context.ActiveProfiles;
-import us.calubrecht.lazerwiki.model.LinkOverride;
 import us.calubrecht.lazerwiki.model.RenderResult;
 import us.calubrecht.lazerwiki.repository.PageCacheRepository;
 import us.calubrecht.lazerwiki.responses.PageData;
@@ -52,14 +52,28 @@ public class LinkCheckMacroTest {
     @MockBean
     TOCRenderService tocRenderService;
 
+    @MockBean
+    MacroResultCache macroResultCache;
+
+    @MockBean
+    NamespaceService namespaceService;
+
+    @MockBean
+    RenderBudgetService renderBudgetService;
+
+    @BeforeEach
+    void stubLinkLookups() {
+        us.calubrecht.lazerwiki.service.DokuWikiRendererTest.stubLinkTargets(pageService);
+    }
+
     @Test
     public void testChecklinks() {
         RenderContext renderContext = new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>());
         when(pageService.getAllPagesFlat("localhost", "user")).thenReturn(List.of("", "page2", "page3"));
-        when(pageService.isReadable(eq("localhost"), anyString(), anyString())).thenReturn(true);
-        when(linkService.getLinksOnPage("default","")).thenReturn(List.of("page2", "page5"));
-        when(linkService.getLinksOnPage("default","page2")).thenReturn(List.of("ns:page8"));
-        when(linkService.getLinksOnPage("default","page3")).thenReturn(List.of("page2"));
+        when(pageService.getLinkGraph("localhost", "user")).thenReturn(Map.of(
+                "", List.of("page2", "page5"),
+                "page2", List.of("ns:page8"),
+                "page3", List.of("page2")));
 
         String rendered = macroService.renderMacro("linkCheck", "", renderContext);
         String[] split = rendered.split("Orphaned Pages");
@@ -87,13 +101,13 @@ public class LinkCheckMacroTest {
     public void testChecklinks_Filering() {
         RenderContext renderContext = new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>());
         when(pageService.getAllPagesFlat("localhost", "user")).thenReturn(List.of("_meta:metaPage", "ns1:nsPage", "ns2:ns2Page", "anyNS:_template", "_template","notOrphan:notorpahn","noPage10"));
-        when(linkService.getLinksOnPage("default","_meta:metaPage")).thenReturn(List.of("noPage1"));
-        when(linkService.getLinksOnPage("default","anyNS:_template")).thenReturn(List.of("noPage4"));
-        when(linkService.getLinksOnPage("default","_template")).thenReturn(List.of("noPage5"));
-        when(linkService.getLinksOnPage("default","ns1:nsPage")).thenReturn(List.of("noPage2","noPage3"));
-        when(linkService.getLinksOnPage("default","ns2:ns2Page")).thenReturn(List.of("noPage3"));
-        when(linkService.getLinksOnPage("default", "notOrphan:notorpahn")).thenReturn(List.of("noPage10", "missingPage"));
-        when(pageService.isReadable(eq("localhost"), anyString(), anyString())).thenReturn(true);
+        when(pageService.getLinkGraph("localhost", "user")).thenReturn(Map.of(
+                "_meta:metaPage", List.of("noPage1"),
+                "anyNS:_template", List.of("noPage4"),
+                "_template", List.of("noPage5"),
+                "ns1:nsPage", List.of("noPage2","noPage3"),
+                "ns2:ns2Page", List.of("noPage3"),
+                "notOrphan:notorpahn", List.of("noPage10", "missingPage")));
 
         String rendered = macroService.renderMacro("linkCheck", "", renderContext);
         String[] split = rendered.split("Orphaned Pages");
@@ -154,10 +168,11 @@ public class LinkCheckMacroTest {
     public void testChecklinksForReadable() {
         RenderContext renderContext = new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>());
         when(pageService.getAllPagesFlat("localhost", "user")).thenReturn(List.of("", "page2", "page3"));
-        when(pageService.isReadable(eq("localhost"), eq("page5"), anyString())).thenReturn(true);
-        when(linkService.getLinksOnPage("default","")).thenReturn(List.of("page2", "page5"));
-        when(linkService.getLinksOnPage("default","page2")).thenReturn(List.of("ns:page8"));
-        when(linkService.getLinksOnPage("default","page3")).thenReturn(List.of("page2"));
+        // ns:page8 is not readable, so isn't in the graph
+        when(pageService.getLinkGraph("localhost", "user")).thenReturn(Map.of(
+                "", List.of("page2", "page5"),
+                "page2", List.of(),
+                "page3", List.of("page2")));
 
         String rendered = macroService.renderMacro("linkCheck", "", renderContext);
         String[] split = rendered.split("Orphaned Pages");
@@ -171,11 +186,9 @@ public class LinkCheckMacroTest {
     public void testChecklinksWoverrides() {
         RenderContext renderContext = new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>());
         when(pageService.getAllPagesFlat("localhost", "user")).thenReturn(List.of("", "ns1:movePage2", "page3"));
-        when(pageService.isReadable(eq("localhost"), anyString(), anyString())).thenReturn(true);
-        when(linkService.getLinksOnPage("default","")).thenReturn(List.of("page2", "page5"));
-        when(linkOverrideService.getOverrides("localhost", "")).thenReturn(List.of(
-                new LinkOverride("default", "", "", "", "page2", "ns1", "MovePage2")
-                ));
+        // Override of page2 to ns1:MovePage2 is applied in the graph
+        when(pageService.getLinkGraph("localhost", "user")).thenReturn(Map.of(
+                "", List.of("ns1:MovePage2", "page5")));
 
         String rendered = macroService.renderMacro("linkCheck", "", renderContext);
         String[] split = rendered.split("Orphaned Pages");
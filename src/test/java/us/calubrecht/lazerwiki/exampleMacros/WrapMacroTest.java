@@ -1,5 +1,6 @@
 package us.calubrecht.lazerwiki.exampleMacros;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -50,10 +51,24 @@ class WrapMacroTest {
     @MockBean
     TOCRenderService tocRenderService;
 
+    @MockBean
+    MacroResultCache macroResultCache;
+
+    @MockBean
+    NamespaceService namespaceService;
+
+    @MockBean
+    RenderBudgetService renderBudgetService;
+
     RenderContext context() {
         return new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>());
     }
 
+    @BeforeEach
+    void stubLinkLookups() {
+        us.calubrecht.lazerwiki.service.DokuWikiRendererTest.stubLinkTargets(pageService);
+    }
+
     @Test
     void render() {
         RenderContext renderContext = context();
@@ -0,0 +1,78 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.junit.jupiter.api.Test;
+import us.calubrecht.lazerwiki.model.HeaderRef;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockRenderCacheTest {
+
+    BlockRenderCache.Block block(String html, String plainText, String headerContext) {
+        List<HeaderRef> headers = headerContext == null ? List.of() : List.of(new HeaderRef(1, html, "header_" + html));
+        return new BlockRenderCache.Block(html, plainText, Set.of(), Set.of(), headers, null, null, false, headerContext);
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        BlockRenderCache cache = new BlockRenderCache(1000);
+        String key = BlockRenderCache.key("host", "page", "Some markup");
+        assertNotEquals(key, BlockRenderCache.key("host", "otherPage", "Some markup"));
+        // Previews share the page's blocks
+        assertEquals(key, BlockRenderCache.key("host", "page" + RenderService.PREVIEW_SUFFIX, "Some markup"));
+
+        assertNull(cache.get(key, () -> "", false));
+        cache.put(key, block("<div>html</div>", null, null));
+        assertEquals("<div>html</div>", cache.get(key, () -> "", false).html());
+        // Rendered without plaintext
+        assertNull(cache.get(key, () -> "", true));
+
+        BlockRenderCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.hits());
+        assertEquals(2, stats.misses());
+        assertEquals(1, stats.entries());
+        assertEquals("<div>html</div>".length(), stats.weight());
+    }
+
+    @Test
+    public void testHeaderContext() {
+        BlockRenderCache cache = new BlockRenderCache(1000);
+        cache.put("header", block("Header", "Header", "T\nheader_First"));
+        assertNotNull(cache.get("header", () -> "T\nheader_First", true));
+        assertNull(cache.get("header", () -> "", true));
+        assertNull(cache.get("header", () -> "T\nheader_First\nheader_Header", true));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        BlockRenderCache cache = new BlockRenderCache(40);
+        cache.put("a", block("aaaaaaaaaa", null, null));
+        cache.put("b", block("bbbbbbbbbb", null, null));
+        cache.put("c", block("cccccccccc", null, null));
+        cache.put("d", block("dddddddddd", null, null));
+        // Touch a so b is eldest
+        cache.get("a", () -> "", false);
+        cache.put("e", block("eeeeeeeeee", null, null));
+        assertEquals(1, cache.getStats().evictions());
+        assertNotNull(cache.get("a", () -> "", false));
+        assertNull(cache.get("b", () -> "", false));
+
+        // Too big for the cache
+        cache.put("big", block("a much longer block than the cache wants", null, null));
+        assertNull(cache.get("big", () -> "", false));
+
+        cache.clear();
+        assertEquals(0, cache.getStats().weight());
+        assertNull(cache.get("a", () -> "", false));
+    }
+
+    @Test
+    public void testDisabled() {
+        BlockRenderCache cache = new BlockRenderCache(0);
+        assertFalse(cache.isEnabled());
+        cache.put("a", block("a", null, null));
+        assertNull(cache.get("a", () -> "", false));
+    }
+}
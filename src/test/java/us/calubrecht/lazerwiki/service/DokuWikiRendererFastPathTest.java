@@ -0,0 +1,166 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.ActiveProfiles;
+import us.calubrecht.lazerwiki.model.RenderResult;
+import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiLexer;
+import us.calubrecht.lazerwiki.service.parser.doku.FastPathParser;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+/**
+ * Differential test of the fast path parser against DokuwikiParser, rendering the same markup through each.
+ */
+@SpringBootTest(classes = { DokuWikiRenderer.class, RendererRegistrar.class, DokuWikiRendererFastPathTest.TestConfig.class})
+@ComponentScan("us.calubrecht.lazerwiki.service.renderhelpers.doku")
+@ActiveProfiles("test")
+public class DokuWikiRendererFastPathTest {
+    @MockBean
+    TOCRenderService tocRenderService;
+
+    @Configuration
+    @ComponentScan("us.calubrecht.lazerwiki.service.renderhelpers.doku")
+    public static class TestConfig {
+    }
+
+    @Autowired
+    DokuWikiRenderer underTest;
+
+    @MockBean
+    PageService pageService;
+
+    @MockBean
+    MacroService macroService;
+
+    @MockBean
+    RandomService randomService;
+
+    @MockBean
+    LinkOverrideService linkOverrideService;
+
+    @MockBean
+    MediaOverrideService mediaOverrideService;
+
+    static final List<String> SUPPORTED = List.of(
+            "Just a line of text",
+            "Two lines\nof text\n\nand another paragraph",
+            " A line with a leading space",
+            "====== Header 1 ======\n===== Header 2 =====\n==== Header 3 ====\nBody text",
+            " === Header with a [[exists|link]] and a | pipe ===  \nafter",
+            "Some words are **meant to **be bold.",
+            "Some //italic// and **bold** and **//both//** and //a **mix** of them//",
+            " **Bold after a space**",
+            "**Bold** at the start and //italic// at the end",
+            "A link to [[exists]], [[ exists|This Page has an alternate display]] and [[httP://externalLink.com ]]",
+            "[[exists]] at the start, [[missing| ]] with a blank display, [[https://example.com/a_path-with//slashes|external]]",
+            "**Bold with a [[exists|link]] | and a pipe**",
+            "{{thisImage.jpg}} at the start and {{ thisImage.jpg?50x60|Image with a title}} after",
+            "Some text {{thisImage.jpg?linkonly|just a link}}",
+            "  * Item 1\n  * Item2\n    * Nested item\n  * Item with **bold** and a [[exists|link]]",
+            "  - Item 1\n  - Item 2\n\n  * Unordered\n  - Ordered",
+            "Text with <angle> brackets & ampersands \"quoted\" and a > b * c - d",
+            "Numbers 1 2 3 and 3.14, a tab\tin the middle, and trailing space   ");
+
+    static final List<String> UNSUPPORTED = List.of(
+            "  This is in the code block",
+            "| First | Line |\n|Second | Line|",
+            "^ Header ^ Row ^",
+            "> Quote",
+            "Some __underlined__ text",
+            "Some ''monospaced'' text",
+            "%%This **should not be bold**%%",
+            "This is a line \\\\ with a linebreak",
+            "Can **bold\nspan lines?**",
+            "Some bolds **aren't matched",
+            "<hidden>hidden text</hidden>",
+            "----",
+            "---",
+            "  - {{3}}Numbered item",
+            "~~NOTOC~~",
+            "   ");
+
+    @AfterEach
+    void restore() {
+        underTest.fastPathEnabled = true;
+    }
+
+    boolean fastPathAccepts(String markup) {
+        return new FastPathParser(new CommonTokenStream(new DokuwikiLexer(CharStreams.fromString(markup + '\n')))).parse() != null;
+    }
+
+    RenderResult render(String markup, boolean fastPath) {
+        underTest.fastPathEnabled = fastPath;
+        underTest.parseTreeCache.clear();
+        return underTest.renderWithInfo(markup, new RenderContext("localhost", "default", "page", "jack"));
+    }
+
+    void assertSameRender(String markup) {
+        RenderResult fast = render(markup, true);
+        RenderResult antlr = render(markup, false);
+        assertEquals(antlr.renderedText(), fast.renderedText(), markup);
+        assertEquals(antlr.plainText(), fast.plainText(), markup);
+        assertEquals(antlr.renderState(), fast.renderState(), markup);
+    }
+
+    @BeforeEach
+    void stubLinkLookups() {
+        DokuWikiRendererTest.stubLinkTargets(pageService);
+    }
+
+    @Test
+    public void testSupported() {
+        when(pageService.exists(eq("localhost"), eq("exists"))).thenReturn(true);
+        when(pageService.getTitle(eq("localhost"), any())).thenReturn("A Title");
+        for (String markup : SUPPORTED) {
+            assertTrue(fastPathAccepts(markup), markup);
+            assertSameRender(markup);
+        }
+    }
+
+    @Test
+    public void testUnsupportedFallsBack() {
+        when(randomService.nextInt()).thenReturn(5);
+        for (String markup : UNSUPPORTED) {
+            assertFalse(fastPathAccepts(markup), markup);
+            assertSameRender(markup);
+        }
+    }
+
+    @Test
+    public void testCorpus() throws IOException {
+        when(macroService.renderMacro(any(), any(), any())).thenAnswer(inv -> "<div>Macro " + inv.getArgument(0, String.class) + "</div>");
+        List<String> corpus = new ArrayList<>();
+        try (Stream<Path> files = Files.list(Paths.get("src/test/resources/problem_pages"))) {
+            for (Path f : files.sorted().toList()) {
+                corpus.add(Files.readString(f));
+            }
+        }
+        assertFalse(corpus.isEmpty());
+        corpus.add(String.join("\n", SUPPORTED));
+        corpus.add(new DokuwikiGrammarBenchmarkTest().generatePage(20000));
+        for (String markup : corpus) {
+            assertSameRender(markup);
+        }
+    }
+}
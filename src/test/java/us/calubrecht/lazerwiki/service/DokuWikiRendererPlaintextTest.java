@@ -1,5 +1,6 @@
 package us.calubrecht.lazerwiki.service;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -7,9 +8,13 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.test.context.ActiveProfiles;
+import us.calubrecht.lazerwiki.model.RenderResult;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
 
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.when;
@@ -50,6 +55,11 @@ public class DokuWikiRendererPlaintextTest {
     }
 
 
+    @BeforeEach
+    void stubLinkLookups() {
+        DokuWikiRendererTest.stubLinkTargets(pageService);
+    }
+
     @Test
     void testRenderLink() {
 
@@ -63,6 +73,17 @@ public class DokuWikiRendererPlaintextTest {
         assertEquals("This Page Exists", doRender("[[exists| ]]"));
     }
 
+    @Test
+    void testRendersInPlaintextState() {
+        RenderContext context = new RenderContext("localhost", "default", "page", "jack");
+        when(pageService.exists(eq("localhost"), eq("exists"))).thenReturn(true);
+        when(pageService.getTitle(eq("localhost"), eq("exists"))).thenReturn("This Page Exists");
+        assertEquals("Before This Page Exists", underTest.renderToPlainText("Before [[exists]]", context));
+        // Rendered in a fork flagged for plaintext, the caller's state isn't changed
+        assertFalse(context.renderState().containsKey("plainText"));
+        assertFalse(context.renderState().containsKey(RenderResult.RENDER_STATE_KEYS.LINKS.name()));
+    }
+
     @Test
     void testRenderList() {
         assertEquals("Item 1\nItem2", doRender("  *Item 1\n  *Item2"));
@@ -163,4 +184,23 @@ public class DokuWikiRendererPlaintextTest {
         source = "-----";
         assertEquals("-----", doRender(source));
     }
+
+    @Test
+    public void testRenderWithInfoMatchesSeparatePasses() {
+        when(pageService.exists(eq("localhost"), eq("exists"))).thenReturn(true);
+        when(pageService.getTitle(eq("localhost"), eq("exists"))).thenReturn("This Page Exists");
+        List<String> sources = List.of(
+                "[[exists]] and [[ exists|This Page has an alternate display]] and [[httP://externalLink.com ]]",
+                "===The Header with a [[goHere|link]]===\nSome **bold //and italic//** text",
+                "  *Item 1\n  *Item2\nAfter the list",
+                "| First | Line |\n|Second | Line|\n\nA paragraph",
+                "> One quote **with some bold**\n>And\n>>Another layer of quote",
+                "<hidden>line1\n\nline2{{animage|with some title text}}</hidden>",
+                "%%This **should not be bold**%% \\\\ with a linebreak\n----");
+        for (String source : sources) {
+            RenderResult result = underTest.renderWithInfo(source, new RenderContext("localhost", "default", "page", "jack"));
+            assertEquals(underTest.renderToString(source, new RenderContext("localhost", "default", "page", "jack")), result.renderedText());
+            assertEquals(doRender(source), result.plainText());
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package us.calubrecht.lazerwiki.service;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -12,18 +14,24 @@ import us.calubrecht.lazerwiki.model.LinkOverride;
 import us.calubrecht.lazerwiki.model.LinkOverrideInstance;
 import us.calubrecht.lazerwiki.model.RenderResult;
 import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiParser;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderBudget;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
 import us.calubrecht.lazerwiki.service.renderhelpers.TreeRenderer;
 import us.calubrecht.lazerwiki.service.renderhelpers.doku.HiddenRenderer;
+import us.calubrecht.lazerwiki.service.renderhelpers.doku.LinkResolver;
 
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.OVERRIDE_STATS;
 
 @SuppressWarnings("unchecked")
@@ -63,6 +71,22 @@ public class DokuWikiRendererTest {
         return underTest.renderToString(source, "localhost", "default", "page", "");
     }
 
+    @BeforeEach
+    void stubLinkLookups() {
+        stubLinkTargets(pageService);
+    }
+
+    // Answer the batched link lookup from the exists and getTitle stubs
+    public static void stubLinkTargets(PageService pageService) {
+        when(pageService.getLinkTargets(anyString(), any())).thenAnswer(inv -> {
+            String host = inv.getArgument(0);
+            Collection<String> pageNames = inv.getArgument(1);
+            Map<String, PageService.LinkTarget> targets = new HashMap<>();
+            pageNames.forEach(name -> targets.put(name, new PageService.LinkTarget(pageService.exists(host, name), pageService.getTitle(host, name))));
+            return targets;
+        });
+    }
+
     @Test
     void testRenderHeader() {
         String source = "====== Big header ======\n ==== Smaller Header ====";
@@ -120,6 +144,81 @@ public class DokuWikiRendererTest {
         assertEquals("<div><a class=\"wikiLink\" href=\"/\">Name of Home</a></div>", doRender("[[|Name of Home]]"));
     }
 
+    @Test
+    public void testLinksResolvedWithOneLookup() {
+        when(pageService.getLinkTargets(eq("localhost"), any())).thenReturn(Map.of(
+                "exists", new PageService.LinkTarget(true, "Exists & Titled"),
+                "ns:missing", new PageService.LinkTarget(false, "Missing")));
+        RenderResult result = underTest.renderWithInfo("[[exists]] [[ns:missing]] [[exists|Named]]", "localhost", "default", "page", "");
+        assertEquals("<div><a class=\"wikiLink\" href=\"/page/exists\">Exists & Titled</a> <a class=\"wikiLinkMissing\" href=\"/page/ns:missing\">Missing</a> <a class=\"wikiLink\" href=\"/page/exists\">Named</a></div>", result.renderedText());
+        assertEquals("Exists &amp; Titled Missing Named", result.plainText());
+        verify(pageService, times(1)).getLinkTargets(eq("localhost"), eq(Set.of("exists", "ns:missing")));
+
+        // Headers resolve their own links, as the text is needed for the id and title
+        result = underTest.renderWithInfo("===== Header [[exists]] =====", "localhost", "default", "page", "");
+        assertEquals("<h2 id=\"header_Header_Exists___Titled\">Header <a class=\"wikiLink\" href=\"/page/exists\">Exists & Titled</a></h2>", result.renderedText());
+        assertEquals("Header Exists & Titled", result.getTitle());
+        verify(pageService, times(2)).getLinkTargets(eq("localhost"), any());
+        verify(pageService, never()).exists(anyString(), anyString());
+        verify(pageService, never()).getTitle(anyString(), anyString());
+    }
+
+    @Test
+    public void testHeaderLinksResolvedWithOneLookup() {
+        when(pageService.getTitle(eq("localhost"), eq("second"))).thenReturn("Second");
+        RenderResult result = underTest.renderWithInfo("===== One [[first]] =====\n===== Two [[second]] =====\n[[first]] [[third]]", "localhost", "default", "page", "");
+        assertTrue(result.renderedText().contains("<h2 id=\"header_Two_Second\">"));
+        verify(pageService, times(1)).getLinkTargets(eq("localhost"), eq(Set.of("first", "second")));
+        // Headers' targets aren't looked up again
+        verify(pageService, times(1)).getLinkTargets(eq("localhost"), eq(Set.of("third")));
+        verify(pageService, times(2)).getLinkTargets(eq("localhost"), any());
+    }
+
+    @Test
+    public void testPlaceholdersInMarkupNotFilled() {
+        when(pageService.exists(eq("localhost"), eq("exists"))).thenReturn(true);
+        when(pageService.getTitle(eq("localhost"), eq("exists"))).thenReturn("Spoofed");
+        String rendered = doRender("Text \uE000Cexists\uE001 and \uE000Texists\uE001");
+        assertEquals("<div>Text \uFFFDCexists\uFFFD and \uFFFDTexists\uFFFD</div>", rendered);
+    }
+
+    @Test
+    public void testLinkSlotsKeptForCache() {
+        when(pageService.exists(eq("localhost"), eq("exists"))).thenReturn(true);
+        when(pageService.getTitle(eq("localhost"), eq("exists"))).thenReturn("This Page Exists");
+        RenderContext context = new RenderContext("localhost", "default", "page", "");
+        context.state().setForCache(true);
+        RenderResult result = underTest.renderWithInfo("[[exists]]", context);
+        assertEquals("<div><a class=\"" + LinkResolver.cssClassPlaceholder("exists") + "\" href=\"/page/exists\">" + LinkResolver.titlePlaceholder("exists") + "</a></div>", result.renderedText());
+        // Plaintext is used for search, so is resolved
+        assertEquals("This Page Exists", result.plainText());
+    }
+
+    @Test
+    public void testRenderBudget() {
+        RenderContext context = new RenderContext("localhost", "default", "page", "");
+        context.state().setBudget(new RenderBudget(0, 1000, null));
+        String full = underTest.renderToString("line1\n\nline2\n\nline3", context);
+        assertTrue(full.contains("line3"));
+        assertFalse(full.contains(DokuWikiRenderer.PARTIAL_RENDER));
+        assertFalse(context.state().isDontCache());
+
+        context = new RenderContext("localhost", "default", "page", "");
+        context.state().setBudget(new RenderBudget(0, 3, null));
+        RenderResult partial = underTest.renderWithInfo("line1\n\nline2\n\nline3", context);
+        assertTrue(partial.renderedText().endsWith(DokuWikiRenderer.PARTIAL_RENDER));
+        assertFalse(partial.renderedText().contains("line3"));
+        assertTrue(context.state().isDontCache());
+
+        // Sub-renders leave the notice to the page
+        context = new RenderContext("localhost", "default", "page", "");
+        context.state().setBudget(new RenderBudget(0, 3, null));
+        RenderContext subContext = new RenderContext("localhost", "default", "page", "", underTest, context.state().fork());
+        partial = underTest.renderWithInfo("line1\n\nline2\n\nline3", subContext);
+        assertFalse(partial.renderedText().contains(DokuWikiRenderer.PARTIAL_RENDER));
+        assertTrue(subContext.state().isDontCache());
+    }
+
     @Test
     public void testRenderLinkOtherSite() {
         when(pageService.exists(eq("otherHost"), eq("exists"))).thenReturn(true);
@@ -180,6 +279,27 @@ public class DokuWikiRendererTest {
         assertNull(underTest.renderers.getRenderer(Integer.class, null).getTargets());
     }
 
+    @Test
+    public void testRuleIndexDispatchMatchesClassDispatch() {
+        RendererRegistrar registrar = underTest.renderers;
+        for (Class cl : registrar.renderersForClass.keySet()) {
+            int ruleIndex = registrar.getRuleIndex(cl);
+            if (ruleIndex >= 0) {
+                assertSame(registrar.renderersForClass.get(cl), registrar.renderersForRule[ruleIndex], cl.getName());
+            }
+        }
+        assertSame(registrar.DEFAULT_RENDERER, registrar.getRenderer(new DokuwikiParser.PageContext(null, 0)));
+        assertSame(registrar.getRenderer(DokuwikiParser.Bold_spanContext.class, null), registrar.getRenderer(new DokuwikiParser.Bold_spanContext(null, 0)));
+
+        // Additive classes shared by several renderers share an id
+        TreeRenderer olist = registrar.getRenderer(DokuwikiParser.Olist_itemContext.class, null);
+        TreeRenderer ulist = registrar.getRenderer(DokuwikiParser.Ulist_itemContext.class, null);
+        assertNotEquals(-1, olist.getAdditiveId());
+        assertEquals(olist.getAdditiveId(), ulist.getAdditiveId());
+        assertNotEquals(olist.getAdditiveId(), registrar.getRenderer(DokuwikiParser.BlockquoteContext.class, null).getAdditiveId());
+        assertEquals(-1, registrar.getRenderer(DokuwikiParser.HeaderContext.class, null).getAdditiveId());
+    }
+
     @Test
     public void testLinebreaks() {
         String input1 = "A single linebreak in the source\nwill not break in the output";
@@ -639,4 +759,178 @@ public class DokuWikiRendererTest {
         source = "-----";
         assertEquals("<hr>", doRender(source));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParseCache() {
+        String source = "Some **unique** text for the parse cache test";
+        ParseTreeCache.Stats before = underTest.getParseCacheStats();
+        String first = doRender(source);
+        assertEquals(first, doRender(source));
+        ParseTreeCache.Stats after = underTest.getParseCacheStats();
+        assertEquals(before.misses() + 1, after.misses());
+        assertEquals(before.hits() + 1, after.hits());
+
+        // Broken input is cached after the allowBroken reparse
+        String broken = "---";
+        doRender(broken);
+        assertEquals("<div class=\"parseError\"><b>ERROR:</b> Cannot parse: [---]</div>", doRender(broken));
+    }
+
+    RenderResult memoRender(String source, String page) {
+        RenderContext context = new RenderContext("localhost", "default", page, "");
+        context.state().setMemoizeBlocks(true);
+        return underTest.renderWithInfo(source, context);
+    }
+
+    void assertSameRender(RenderResult expected, RenderResult actual) {
+        assertEquals(expected.renderedText(), actual.renderedText());
+        assertEquals(expected.plainText(), actual.plainText());
+        for (RenderResult.RENDER_STATE_KEYS key : List.of(RenderResult.RENDER_STATE_KEYS.TITLE, RenderResult.RENDER_STATE_KEYS.LINKS,
+                RenderResult.RENDER_STATE_KEYS.IMAGES, RenderResult.RENDER_STATE_KEYS.HEADERS, RenderResult.RENDER_STATE_KEYS.TOC)) {
+            assertEquals(expected.renderState().get(key.name()), actual.renderState().get(key.name()), key.name());
+        }
+    }
+
+    @Test
+    public void testBlockMemoization() {
+        String source = "====== Memoized header ======\nA paragraph long enough to memoize, with a [[memoLink]]\n\n  * A list item long enough to memoize\n  * {{memoImage.png}}\n\n~~NOTOC~~\n";
+        BlockRenderCache.Stats before = underTest.getBlockCacheStats();
+        RenderResult first = memoRender(source, "memoPage");
+        assertSameRender(underTest.renderWithInfo(source, new RenderContext("localhost", "default", "memoPage", "")), first);
+        BlockRenderCache.Stats afterFirst = underTest.getBlockCacheStats();
+        assertEquals(before.hits(), afterFirst.hits());
+
+        assertSameRender(first, memoRender(source, "memoPage"));
+        BlockRenderCache.Stats afterSecond = underTest.getBlockCacheStats();
+        assertEquals(afterFirst.misses(), afterSecond.misses());
+        assertTrue(afterSecond.hits() > afterFirst.hits());
+
+        // Only the edited paragraph is rendered again
+        String edited = source.replace("[[memoLink]]", "[[otherMemoLink]]");
+        RenderResult editedRender = memoRender(edited, "memoPage");
+        assertSameRender(underTest.renderWithInfo(edited, new RenderContext("localhost", "default", "memoPage", "")), editedRender);
+        assertEquals(afterSecond.misses() + 1, underTest.getBlockCacheStats().misses());
+        assertTrue(((Set<String>)editedRender.renderState().get(RenderResult.RENDER_STATE_KEYS.LINKS.name())).contains("otherMemoLink"));
+
+        // Not reused on another page
+        memoRender(source, "otherMemoPage");
+        assertEquals(afterSecond.misses() + 1 + (afterSecond.hits() - afterFirst.hits()), underTest.getBlockCacheStats().misses());
+    }
+
+    @Test
+    public void testBlockMemoizationIdSuffix() {
+        // Rendered for preview, then reused by the save
+        String source = "====== Suffixed memo header ======\nA paragraph long enough to memoize after the header\n";
+        RenderContext context = new RenderContext("localhost", "default", "memoSuffix" + RenderService.PREVIEW_SUFFIX, "");
+        context.state().setMemoizeBlocks(true);
+        context.state().setIdSuffix("_previewPage");
+        String preview = underTest.renderWithInfo(source, context).renderedText();
+        assertTrue(preview.contains("id=\"header_Suffixed_memo_header_previewPage\""));
+
+        BlockRenderCache.Stats before = underTest.getBlockCacheStats();
+        RenderResult saved = memoRender(source, "memoSuffix");
+        assertEquals(before.misses(), underTest.getBlockCacheStats().misses());
+        assertTrue(underTest.getBlockCacheStats().hits() > before.hits());
+        assertSameRender(underTest.renderWithInfo(source, new RenderContext("localhost", "default", "memoSuffix", "")), saved);
+    }
+
+    @Test
+    public void testBlockMemoizationHeaders() {
+        // The repeated header gets a different id, and only the first sets the title
+        String source = "===== Repeated memo header =====\nSome text between the headers\n===== Repeated memo header =====\n";
+        RenderResult plain = underTest.renderWithInfo(source, new RenderContext("localhost", "default", "memoHeaders", ""));
+        assertTrue(plain.renderedText().contains("header_Repeated_memo_header_1"));
+        assertSameRender(plain, memoRender(source, "memoHeaders"));
+        assertSameRender(plain, memoRender(source, "memoHeaders"));
+
+        String withTitle = "===== New first header =====\n" + source;
+        assertSameRender(underTest.renderWithInfo(withTitle, new RenderContext("localhost", "default", "memoHeaders", "")), memoRender(withTitle, "memoHeaders"));
+    }
+
+    @Test
+    public void testParallelRender() {
+        StringBuilder source = new StringBuilder("~~NOTOC~~\n");
+        for (int i = 0; i < 20; i++) {
+            source.append("===== Section ").append(i % 5).append(" =====\n");
+            source.append("Paragraph ").append(i).append(" with a [[link").append(i).append("]] and **bold** text\n\n");
+            source.append("  * item ").append(i).append("\n  * {{image").append(i).append(".png}}\n\n");
+            source.append("^ Head ^ Head ^\n| cell ").append(i).append(" | [[link").append(i % 3).append("]] |\n\n");
+            source.append("  code box ").append(i).append("\n");
+        }
+        String markup = source.toString();
+        RenderResult sequential = underTest.renderWithInfo(markup, new RenderContext("localhost", "default", "bigPage", ""));
+        RenderResult memoized = memoRender(markup, "bigPage");
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        int minChars = underTest.parallelMinChars;
+        try {
+            underTest.renderPool = pool;
+            underTest.parallelMinChars = 1000;
+            assertTrue(underTest.shouldRenderInParallel(underTest.parseMarkup(markup)));
+            assertFalse(underTest.shouldRenderInParallel(underTest.parseMarkup("Too short to render in parallel")));
+
+            for (int i = 0; i < 3; i++) {
+                assertSameRender(sequential, underTest.renderWithInfo(markup, new RenderContext("localhost", "default", "bigPage", "")));
+                assertEquals(sequential.renderedText(), underTest.renderToString(markup, new RenderContext("localhost", "default", "bigPage", "")));
+                // Reusing blocks from the sequential render
+                assertSameRender(memoized, memoRender(markup, "bigPage"));
+            }
+            // Repeated headers are numbered as they would be in order
+            assertTrue(sequential.renderedText().contains("header_Section_1_1"));
+        } finally {
+            underTest.renderPool = null;
+            underTest.parallelMinChars = minChars;
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testParseStages() {
+        Map<DokuWikiRenderer.ParseStage, DokuWikiRenderer.ParseStageStats> before = underTest.getParseStageStats();
+        underTest.parseUncached("Some **bold** text and a [[link]]");
+        Map<DokuWikiRenderer.ParseStage, DokuWikiRenderer.ParseStageStats> after = underTest.getParseStageStats();
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.FAST).runs() + 1, after.get(DokuWikiRenderer.ParseStage.FAST).runs());
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.FAST).failures(), after.get(DokuWikiRenderer.ParseStage.FAST).failures());
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.SLL).runs(), after.get(DokuWikiRenderer.ParseStage.SLL).runs());
+
+        // Not handled by the fast path
+        before = after;
+        underTest.parseUncached("Some __underlined__ text");
+        after = underTest.getParseStageStats();
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.FAST).failures() + 1, after.get(DokuWikiRenderer.ParseStage.FAST).failures());
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.SLL).runs() + 1, after.get(DokuWikiRenderer.ParseStage.SLL).runs());
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.SLL).failures(), after.get(DokuWikiRenderer.ParseStage.SLL).failures());
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.LL).runs(), after.get(DokuWikiRenderer.ParseStage.LL).runs());
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.BROKEN).runs(), after.get(DokuWikiRenderer.ParseStage.BROKEN).runs());
+
+        // Broken markup falls through every stage
+        before = after;
+        underTest.parseUncached("Some **unclosed bold");
+        after = underTest.getParseStageStats();
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.FAST).failures() + 1, after.get(DokuWikiRenderer.ParseStage.FAST).failures());
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.SLL).failures() + 1, after.get(DokuWikiRenderer.ParseStage.SLL).failures());
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.LL).failures() + 1, after.get(DokuWikiRenderer.ParseStage.LL).failures());
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.BROKEN).runs() + 1, after.get(DokuWikiRenderer.ParseStage.BROKEN).runs());
+        assertEquals(before.get(DokuWikiRenderer.ParseStage.BROKEN).failures(), after.get(DokuWikiRenderer.ParseStage.BROKEN).failures());
+    }
+
+    @Test
+    public void testPersistedTree(@TempDir Path root) {
+        String markup = "====== Stored header ======\nA paragraph with a [[storedLink]] and **bold** text\n\n  * {{storedImage.png}}\n\n^ Head ^\n| cell |\n";
+        RenderResult plain = underTest.renderWithInfo(markup, new RenderContext("localhost", "default", "storedPage", ""));
+        ParseTreeStore store = underTest.parseTreeStore;
+        try {
+            underTest.parseTreeStore = new ParseTreeStore(root.toString(), true);
+            for (int i = 0; i < 2; i++) {
+                // Parsed and stored, then read back
+                underTest.parseTreeCache.clear();
+                RenderContext context = new RenderContext("localhost", "default", "storedPage", "");
+                context.state().setPersistTree(true);
+                assertSameRender(plain, underTest.renderWithInfo(markup, context));
+            }
+            assertEquals(new ParseTreeStore.Stats(1, 1, 1, 0), underTest.getParseStoreStats());
+        } finally {
+            underTest.parseTreeStore = store;
+        }
+    }
+}
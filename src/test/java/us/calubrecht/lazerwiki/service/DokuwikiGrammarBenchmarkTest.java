@@ -0,0 +1,110 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiLexer;
+import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Token counts and parse times for the test corpus, plus a large generated page of mostly prose. The timings are
+ * logged by the benchmark task, not part of test.
+ */
+public class DokuwikiGrammarBenchmarkTest {
+    final Logger logger = LogManager.getLogger(getClass());
+
+    static final int ITERATIONS = 20;
+
+    Map<String, String> loadCorpus() throws IOException {
+        Map<String, String> corpus = new LinkedHashMap<>();
+        try (Stream<Path> files = Files.list(Paths.get("src/test/resources/problem_pages"))) {
+            for (Path f : files.sorted().toList()) {
+                corpus.put(f.getFileName().toString(), Files.readString(f));
+            }
+        }
+        corpus.put("generated.page", generatePage(50000));
+        return corpus;
+    }
+
+    String generatePage(int size) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (sb.length() < size) {
+            sb.append("====== Section ").append(i).append(" ======\n");
+            sb.append("This is a paragraph of plain prose, with some punctuation; numbers like 42 and 3.14, and a few **bold** and //italic// words.\n");
+            sb.append("It links to [[page").append(i).append("|another page]] and to [[https://example.com/path]] in the middle of a sentence.\n");
+            sb.append("  * A list item with some text\n  * Another item\n");
+            sb.append("| Cell one | Cell two |\n\n");
+            i++;
+        }
+        return sb.toString();
+    }
+
+    int countTokens(String markup) {
+        CommonTokenStream tokens = new CommonTokenStream(new DokuwikiLexer(CharStreams.fromString(markup + '\n')));
+        tokens.fill();
+        return tokens.size();
+    }
+
+    long timeParse(String markup) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            DokuwikiParser parser = new DokuwikiParser(new CommonTokenStream(new DokuwikiLexer(CharStreams.fromString(markup + '\n'))));
+            parser.setAllowBroken();
+            parser.page();
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    // Run with the benchmark task, test excludes it
+    @Test
+    @Tag("benchmark")
+    public void benchmarkCorpus() throws IOException {
+        Map<String, String> corpus = loadCorpus();
+        // Warm up the ATN caches
+        corpus.values().forEach(this::timeParse);
+        corpus.forEach((name, markup) -> {
+            int tokens = countTokens(markup);
+            long nanos = timeParse(markup);
+            logger.info("{}: {} chars, {} tokens, {}us per parse", name, markup.length(), tokens, nanos / 1000);
+        });
+    }
+
+    @Test
+    public void testProseTokens() {
+        String generated = generatePage(50000);
+        // Prose lexes as whole runs of text rather than a token per word and space.
+        assertTrue(countTokens(generated) * 4 < generated.length());
+    }
+
+    @Test
+    public void testTextRuns() {
+        DokuwikiLexer lexer = new DokuwikiLexer(CharStreams.fromString("Some plain text, with punctuation. **Bold** \\\\ after\n"));
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        tokens.fill();
+        assertEquals("Some plain text, with punctuation.", tokens.get(0).getText());
+        assertEquals(DokuwikiLexer.WORD, tokens.get(0).getType());
+        assertEquals(DokuwikiLexer.WS, tokens.get(1).getType());
+        assertEquals(DokuwikiLexer.BOLD_TOKEN, tokens.get(2).getType());
+        assertEquals("Bold", tokens.get(3).getText());
+        assertEquals(DokuwikiLexer.BOLD_TOKEN, tokens.get(4).getType());
+        assertEquals(DokuwikiLexer.FORCE_LINEBREAK, tokens.get(5).getType());
+        assertEquals(DokuwikiLexer.WS, tokens.get(6).getType());
+        assertEquals("after", tokens.get(7).getText());
+        assertEquals(DokuwikiLexer.NEWLINE, tokens.get(8).getType());
+    }
+}
@@ -18,9 +18,12 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
@@ -57,6 +60,19 @@ class LinkServiceTest {
         assertEquals(List.of("page1", "ns:ns:inner:page5"), underTest.getBacklinks("default","pageName"));
     }
 
+    record Edge(String getSourcePageNS, String getSourcePageName, String getTargetPageNS, String getTargetPageName) implements LinkRepository.LinkEdge {}
+
+    @Test
+    void getLinkGraph() {
+        AtomicBoolean closed = new AtomicBoolean();
+        when(linkRepository.streamLinkGraph("default")).thenReturn(Stream.<LinkRepository.LinkEdge>of(
+                new Edge("", "page1", "ns", "page2"),
+                new Edge("ns", "page2", "", "page1"),
+                new Edge("", "page1", "", "page3")).onClose(() -> closed.set(true)));
+        assertEquals(Map.of("page1", List.of("ns:page2", "page3"), "ns:page2", List.of("page1")), underTest.getLinkGraph("default"));
+        assertTrue(closed.get());
+    }
+
     @Test
     void deleteLinks() {
         underTest.deleteLinks("site1", "ns:page1");
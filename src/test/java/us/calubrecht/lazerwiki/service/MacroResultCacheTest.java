@@ -0,0 +1,100 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MacroResultCacheTest {
+
+    MacroResultCache cache(int maxEntries) {
+        MacroResultCache cache = new MacroResultCache();
+        cache.maxEntries = maxEntries;
+        return cache;
+    }
+
+    MacroResultCache.Key key(String args) {
+        return new MacroResultCache.Key("host", "page", "macro", args, "Guest", false);
+    }
+
+    MacroResultCache.Result result(String html, Set<String> dependencies, boolean siteWide, long asOf) {
+        return new MacroResultCache.Result(html, Set.of(), false, "site", dependencies, siteWide, asOf, System.currentTimeMillis() + 60000);
+    }
+
+    @Test
+    public void testDependencies() {
+        MacroResultCache cache = cache(10);
+        cache.put(key("a"), result("A", Set.of("ns:Page1"), false, cache.now()));
+        cache.put(key("b"), result("B", Set.of("page2"), true, cache.now()));
+        assertEquals("A", cache.get(key("a")).html());
+        assertEquals("B", cache.get(key("b")).html());
+
+        // Descriptors are compared case-insensitively, site wide results are dropped by any change in the site
+        cache.pageChanged("otherSite", "ns:page1");
+        assertEquals("A", cache.get(key("a")).html());
+        cache.pageChanged("site", "other");
+        assertEquals("A", cache.get(key("a")).html());
+        assertNull(cache.get(key("b")));
+        cache.pageChanged("site", "NS:page1");
+        assertNull(cache.get(key("a")));
+
+        assertEquals(new MacroResultCache.Stats(4, 0, 2, 0), cache.getStats());
+    }
+
+    @Test
+    public void testChangedWhileRendering() {
+        MacroResultCache cache = cache(10);
+        long asOf = cache.now();
+        cache.pageChanged("site", "page1");
+        cache.put(key("a"), result("A", Set.of("page1"), false, asOf));
+        assertNull(cache.get(key("a")));
+        cache.put(key("a"), result("A", Set.of("page1"), false, cache.now()));
+        assertEquals("A", cache.get(key("a")).html());
+    }
+
+    @Test
+    public void testChangedInTransaction() {
+        MacroResultCache cache = cache(10);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            cache.pageChanged("site", "page1");
+            cache.clear();
+            // Rendered from what is committed before the change is
+            cache.put(key("a"), result("A", Set.of("page1"), false, cache.now()));
+            cache.put(key("b"), result("B", Set.of("page2"), false, cache.now()));
+            assertEquals("A", cache.get(key("a")).html());
+            assertEquals("B", cache.get(key("b")).html());
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+            assertNull(cache.get(key("a")));
+            assertNull(cache.get(key("b")));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void testExpiryAndEviction() {
+        MacroResultCache cache = cache(2);
+        cache.put(key("expired"), new MacroResultCache.Result("X", Set.of(), false, "site", Set.of(), false, cache.now(), System.currentTimeMillis() - 1));
+        assertNull(cache.get(key("expired")));
+
+        cache.put(key("a"), result("A", Set.of(), false, cache.now()));
+        cache.put(key("b"), result("B", Set.of(), false, cache.now()));
+        cache.get(key("a"));
+        cache.put(key("c"), result("C", Set.of(), false, cache.now()));
+        assertNull(cache.get(key("b")));
+        assertNotNull(cache.get(key("a")));
+        assertNotNull(cache.get(key("c")));
+
+        cache.clear();
+        assertNull(cache.get(key("a")));
+
+        MacroResultCache disabled = cache(0);
+        disabled.put(key("a"), result("A", Set.of(), false, disabled.now()));
+        assertNull(disabled.get(key("a")));
+    }
+}
@@ -1,5 +1,6 @@
 package us.calubrecht.lazerwiki.service;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.MethodOrderer;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
@@ -14,20 +15,36 @@ import us.calubrecht.lazerwiki.macro.Macro;
 import us.calubrecht.lazerwiki.model.PageCache;
 import us.calubrecht.lazerwiki.model.PageDescriptor;
 import us.calubrecht.lazerwiki.model.RenderResult;
+import us.calubrecht.lazerwiki.model.User;
+import us.calubrecht.lazerwiki.model.UserRole;
+import us.calubrecht.lazerwiki.repository.MediaRecordRepository;
+import us.calubrecht.lazerwiki.repository.NamespaceRepository;
+import us.calubrecht.lazerwiki.repository.PageRepository;
 import us.calubrecht.lazerwiki.responses.PageData;
 import us.calubrecht.lazerwiki.responses.PageData.PageFlags;
 import us.calubrecht.lazerwiki.responses.SearchResult;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderBudget;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
+import us.calubrecht.lazerwiki.service.renderhelpers.doku.LinkResolver;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-@SpringBootTest(classes = {MacroService.class, DokuWikiRenderer.class, RendererRegistrar.class, DokuWikiRendererTest.TestConfig.class},
-        properties = { "lazerwiki.plugin.scan.packages=us.calubrecht.lazerwiki.service" })
+@SpringBootTest(classes = {MacroService.class, NamespaceService.class, MacroResultCache.class, RenderBudgetService.class, DokuWikiRenderer.class, RendererRegistrar.class, DokuWikiRendererTest.TestConfig.class},
+        properties = { "lazerwiki.plugin.scan.packages=us.calubrecht.lazerwiki.service", "lazerwiki.macro.Broken.result.cache.seconds=30", "lazerwiki.macro.budget.nodes=50" })
 @ComponentScan("us.calubrecht.lazerwiki.service.renderhelpers.doku")
 @ActiveProfiles("test")
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
@@ -60,6 +77,32 @@ class MacroServiceTest {
     @MockBean
     TOCRenderService tocRenderService;
 
+    @MockBean
+    UserService userService;
+
+    @MockBean
+    NamespaceRepository namespaceRepository;
+
+    @MockBean
+    PageRepository pageRepository;
+
+    @MockBean
+    MediaRecordRepository mediaRecordRepository;
+
+    @MockBean
+    SharedPageCache sharedPageCache;
+
+    @Autowired
+    MacroResultCache macroResultCache;
+
+    @Autowired
+    RenderBudgetService renderBudgetService;
+
+    @BeforeEach
+    void stubLinkLookups() {
+        DokuWikiRendererTest.stubLinkTargets(pageService);
+    }
+
     @Test
     @Order(1)
     void registerMacros() {
@@ -194,6 +237,134 @@ class MacroServiceTest {
         assertEquals("<div><span class=\"bold\">notCachedPage</span></div>", res.get("notCached").getHtml());
     }
 
+    @Test
+    void testMacroContextGetCachedRendersInParallel() {
+        List<String> pds = new ArrayList<>();
+        Map<PageDescriptor, PageData> pageData = new HashMap<>();
+        for (int i = 20; i > 0; i--) {
+            pds.add("page" + i);
+            pageData.put(new PageDescriptor("", "page" + i), new PageData("", "Page " + i, null, null, PageData.ALL_RIGHTS));
+        }
+        pds.add("page5");
+        when(pageService.getPageData(any(), any(List.class), any())).thenReturn(pageData);
+        when(pageService.getCachedPages(any(), any(List.class))).thenReturn(List.of());
+
+        RenderContext context = new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>());
+        MacroService.MacroContextImpl macroContext = underTest.new MacroContextImpl(context);
+        Map<String, Macro.MacroContext.RenderOutput> res = macroContext.getCachedRenders(pds);
+        // In the requested order, whichever thread rendered them
+        assertEquals(pds.subList(0, 20), new ArrayList<>(res.keySet()));
+        for (int i = 20; i > 0; i--) {
+            assertEquals("<div>Page " + i + "</div>", res.get("page" + i).getHtml());
+        }
+
+        // Pages not rendered by the deadline are left out, and the page isn't cached
+        assertFalse(context.state().isDontCache());
+        long deadline = underTest.renderDeadlineMs;
+        try {
+            underTest.renderDeadlineMs = -1;
+            res = macroContext.getCachedRenders(pds);
+            assertEquals(pds.subList(0, 20), new ArrayList<>(res.keySet()));
+            assertEquals(MacroService.NOT_RENDERED, res.get("page1").getHtml());
+            assertTrue(context.state().isDontCache());
+        } finally {
+            underTest.renderDeadlineMs = deadline;
+        }
+    }
+
+    @Test
+    void testGetCachedRendersDeadlineNotCached() {
+        Map<PageDescriptor, PageData> pageData = new HashMap<>();
+        pageData.put(new PageDescriptor("", "slowPage"), new PageData("", "Slow page", null, null, PageData.ALL_RIGHTS));
+        when(pageService.getPageData(any(), any(List.class), any())).thenReturn(pageData);
+        when(pageService.getCachedPages(any(), any(List.class))).thenReturn(List.of());
+        DeadlineMacro.runs.set(0);
+        long deadline = underTest.renderDeadlineMs;
+        try {
+            underTest.renderDeadlineMs = -1;
+            RenderContext context = new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>());
+            assertEquals(MacroService.NOT_RENDERED + " 1", underTest.renderMacro("Deadline", "", context));
+            assertTrue(context.state().isDontCache());
+            // Left out output isn't reused
+            assertEquals(MacroService.NOT_RENDERED + " 2", underTest.renderMacro("Deadline", "",
+                    new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>())));
+        } finally {
+            underTest.renderDeadlineMs = deadline;
+        }
+        assertEquals("<div>Slow page</div> 3", underTest.renderMacro("Deadline", "",
+                new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>())));
+        assertEquals("<div>Slow page</div> 3", underTest.renderMacro("Deadline", "",
+                new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>())));
+    }
+
+    @Test
+    void testMacroContextGetCachedRendersWaitsForHelpers() {
+        Map<PageDescriptor, PageData> pageData = new HashMap<>();
+        for (String pd : List.of("one", "two")) {
+            pageData.put(new PageDescriptor("", pd), new PageData("", "~~MACRO~~Barrier~~/MACRO~~", null, null, PageData.ALL_RIGHTS));
+        }
+        when(pageService.getPageData(any(), any(List.class), any())).thenReturn(pageData);
+        when(pageService.getCachedPages(any(), any(List.class))).thenReturn(List.of());
+        // One page renders on the caller and one on a helper at once, and the helper finishes after the caller.
+        BarrierMacro.barrier = new CyclicBarrier(2);
+        BarrierMacro.callerDone = new CountDownLatch(1);
+
+        RenderContext context = new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>());
+        MacroService.MacroContextImpl macroContext = underTest.new MacroContextImpl(context);
+        Map<String, Macro.MacroContext.RenderOutput> res = macroContext.getCachedRenders(List.of("one", "two"));
+        assertEquals(Set.of("<div>Caller</div>", "<div>Helper</div>"), Set.of(res.get("one").getHtml(), res.get("two").getHtml()));
+    }
+
+    @Test
+    void testMacroContextAsync() throws Exception {
+        Map<PageDescriptor, PageData> pageData = new HashMap<>();
+        for (String pd : List.of("a", "b", "c")) {
+            pageData.put(new PageDescriptor("", pd), new PageData("", "Page " + pd, null, null, PageData.ALL_RIGHTS));
+        }
+        when(pageService.getPageData(any(), any(List.class), any())).thenReturn(pageData);
+        when(pageService.getCachedPages(any(), any(List.class))).thenReturn(List.of());
+        when(linkService.getLinksOnPage("default", "a")).thenReturn(List.of("b", "c"));
+
+        RenderContext context = new RenderContext("localhost", "default", "page", "user", renderer, new HashMap<>());
+        MacroService.MacroContextImpl macroContext = underTest.new MacroContextImpl(context);
+        assertEquals(List.of("b", "c"), macroContext.getLinksOnPageAsync("a").join());
+
+        // Hold up the pool so the requests queue into one batch
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        ExecutorService asyncPool = underTest.asyncPool;
+        ExecutorService renderPool = underTest.renderPool;
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(1);
+        pool.execute(() -> {
+            held.countDown();
+            try {
+                latch.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        try {
+            assertTrue(held.await(5, TimeUnit.SECONDS));
+            underTest.asyncPool = pool;
+            // The batch renders on the pool thread alone
+            underTest.renderPool = null;
+            List<CompletableFuture<Macro.MacroContext.RenderOutput>> futures = List.of("c", "a", "b", "a").stream().
+                    map(macroContext::getCachedRenderAsync).toList();
+            assertTrue(futures.stream().noneMatch(CompletableFuture::isDone));
+            latch.countDown();
+            List<String> html = new ArrayList<>();
+            for (CompletableFuture<Macro.MacroContext.RenderOutput> f : futures) {
+                html.add(f.get(5, TimeUnit.SECONDS).getHtml());
+            }
+            assertEquals(List.of("<div>Page c</div>", "<div>Page a</div>", "<div>Page b</div>", "<div>Page a</div>"), html);
+            verify(pageService).getCachedPages("localhost", List.of("c", "a", "b"));
+        } finally {
+            latch.countDown();
+            underTest.asyncPool = asyncPool;
+            underTest.renderPool = renderPool;
+            pool.shutdown();
+        }
+    }
+
 
     //setPageDontCache
     @Test
@@ -221,6 +392,26 @@ class MacroServiceTest {
         assertEquals("THis has some Good Macro macro in it", underTest.postRender(text, context));
     }
 
+    @Test
+    void testPostRenderSplicesMacros() {
+        RenderContext context = new RenderContext("localhost", "default", "page", "user");
+        String noMacros = "<div>Nothing to do here</div>";
+        assertSame(noMacros, underTest.postRender(noMacros, context));
+
+        String text = "~~MACRO~~Good:1~~/MACRO~~ then\n~~MACRO~~Good:\n2~~/MACRO~~$end ~~MACRO~~Good:unterminated";
+        assertEquals("Good Macro then\nGood Macro$end ~~MACRO~~Good:unterminated", underTest.postRender(text, context));
+        assertEquals("Good Macro", underTest.postRender("~~MACRO~~Good:~~/MACRO~~", context));
+    }
+
+    @Test
+    void testPostRenderFillsLinkSlots() {
+        RenderContext context = new RenderContext("localhost", "default", "page", "user");
+        when(pageService.exists("localhost", "exists")).thenReturn(true);
+        when(pageService.getTitle("localhost", "exists")).thenReturn("Exists");
+        String cached = "<a class=\"" + LinkResolver.cssClassPlaceholder("exists") + "\" href=\"/page/exists\">" + LinkResolver.titlePlaceholder("exists") + "</a> ~~MACRO~~Good:~~/MACRO~~";
+        assertEquals("<a class=\"wikiLink\" href=\"/page/exists\">Exists</a> Good Macro", underTest.postRender(cached, context));
+    }
+
     @Test
     void testNoCacheMacro() {
         RenderContext context = new RenderContext("localhost", "default", "page", "user");
@@ -232,6 +423,138 @@ class MacroServiceTest {
         assertEquals("Only render post cache", underTest.postRender(fullText, context));
     }
 
+    @Test
+    void testResultCache() {
+        User reader = new User("reader", "");
+        reader.roles = List.of(new UserRole(reader, "ROLE_USER"));
+        User admin = new User("admin", "");
+        admin.roles = List.of(new UserRole(admin, "ROLE_ADMIN"));
+        when(userService.getUser("reader")).thenReturn(reader);
+        when(userService.getUser("admin")).thenReturn(admin);
+        CachedMacro.runs.set(0);
+
+        RenderContext context = new RenderContext("localhost", "default", "page", "reader");
+        assertEquals("Run 1", underTest.renderMacro("Cached", "", context));
+        assertEquals(Set.of("ns:linked"), context.state().getLinks());
+        assertTrue(context.state().isDontCache());
+        assertFalse(context.renderState().containsKey(MacroService.DEPENDENCIES_KEY));
+
+        // Reused, with the links and flags it set replayed onto the page
+        context = new RenderContext("localhost", "default", "page", "reader");
+        assertEquals("Run 1", underTest.renderMacro("Cached", "", context));
+        assertEquals(Set.of("ns:linked"), context.state().getLinks());
+        assertTrue(context.state().isDontCache());
+
+        // Another ACL class, or other args, run again
+        assertEquals("Run 2", underTest.renderMacro("Cached", "", new RenderContext("localhost", "default", "page", "admin")));
+        assertEquals("Run 3", underTest.renderMacro("Cached:other", "", new RenderContext("localhost", "default", "page", "reader")));
+        // Guests and users without a user record share a class
+        assertEquals("Run 4", underTest.renderMacro("Cached", "", new RenderContext("localhost", "default", "page", "Guest")));
+        assertEquals("Run 4", underTest.renderMacro("Cached", "", new RenderContext("localhost", "default", "page", "user")));
+
+        // Changes to pages it didn't read keep it, changes to pages it read drop it
+        macroResultCache.pageChanged("default", "ns:unrelated");
+        macroResultCache.pageChanged("otherSite", "ns:linked");
+        assertEquals("Run 1", underTest.renderMacro("Cached", "", new RenderContext("localhost", "default", "page", "reader")));
+        macroResultCache.pageChanged("default", "ns:linked");
+        assertEquals("Run 5", underTest.renderMacro("Cached", "", new RenderContext("localhost", "default", "page", "reader")));
+        assertEquals("Run 5", underTest.renderMacro("Cached", "", new RenderContext("localhost", "default", "page", "reader")));
+        macroResultCache.pageChanged("default", "declared");
+        assertEquals("Run 6", underTest.renderMacro("Cached", "", new RenderContext("localhost", "default", "page", "reader")));
+
+        // Not used when rendering for the page cache
+        context = new RenderContext("localhost", "default", "page", "reader");
+        context.state().setForCache(true);
+        assertEquals("Run 7", underTest.renderMacro("Cached", "", context));
+    }
+
+    @Test
+    void testResultCacheTtl() {
+        assertEquals(Duration.ZERO, underTest.resultCacheTtl(underTest.macros.get("Good")));
+        assertEquals(Duration.ofMinutes(1), underTest.resultCacheTtl(underTest.macros.get("Cached")));
+        // Overridden by property
+        assertEquals(Duration.ofSeconds(30), underTest.resultCacheTtl(underTest.macros.get("Broken")));
+    }
+
+    @Test
+    void testResultCacheSiteDependency() {
+        when(pageService.getAllPagesFlat(any(), any())).thenReturn(List.of("page1"));
+        SiteMacro.runs.set(0);
+        assertEquals("Site 1", underTest.renderMacro("Site", "", new RenderContext("localhost", "default", "page", "Guest")));
+        assertEquals("Site 1", underTest.renderMacro("Site", "", new RenderContext("localhost", "default", "page", "Guest")));
+        macroResultCache.pageChanged("default", "anyPage");
+        assertEquals("Site 2", underTest.renderMacro("Site", "", new RenderContext("localhost", "default", "page", "Guest")));
+        macroResultCache.clear();
+        assertEquals("Site 3", underTest.renderMacro("Site", "", new RenderContext("localhost", "default", "page", "Guest")));
+    }
+
+    @Test
+    void testMacroBudget() {
+        // No budget outside of renders for viewing
+        RenderContext context = new RenderContext("localhost", "default", "bigPage", "user", renderer, new HashMap<>());
+        String out = underTest.renderMacro("Budget", "", context);
+        assertFalse(out.contains(DokuWikiRenderer.PARTIAL_RENDER));
+        assertTrue(out.endsWith("ok"));
+
+        context = new RenderContext("localhost", "default", "bigPage", "user", renderer, new HashMap<>());
+        RenderBudget pageBudget = new RenderBudget(0, 0, null);
+        context.state().setBudget(pageBudget);
+        out = underTest.renderMacro("Budget", "", context);
+        // The page's render marks it partial, not the macro's sub-render
+        assertFalse(out.contains(DokuWikiRenderer.PARTIAL_RENDER));
+        assertTrue(out.endsWith("over"));
+        // The page's budget is restored and not spent by the macro, though its output is partial
+        assertSame(pageBudget, context.state().getBudget());
+        assertFalse(pageBudget.isExceeded());
+        assertTrue(pageBudget.isSpent());
+
+        RenderBudgetService.Overrun overrun = renderBudgetService.getOverruns("default").get(0);
+        assertEquals("bigPage", overrun.page());
+        assertEquals("Budget", overrun.macro());
+        assertEquals(RenderBudget.Limit.NODES, overrun.limit());
+    }
+
+    @Test
+    void testRenderPageShared() throws Exception {
+        PageData page = new PageData(null, "~~MACRO~~Gate~~/MACRO~~", null, null, PageData.ALL_RIGHTS);
+        when(pageService.getPageData(anyString(), eq("gatedPage"), anyString())).thenReturn(page);
+        GateMacro.runs.set(0);
+        GateMacro.entered = new CountDownLatch(1);
+        GateMacro.release = new CountDownLatch(1);
+        long sharedBefore = underTest.subRenders.getStats().shared();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> underTest.new MacroContextImpl(
+                    new RenderContext("localhost", "default", "page1", "user", renderer, new HashMap<>())).renderPage("gatedPage").getHtml());
+            assertTrue(GateMacro.entered.await(5, TimeUnit.SECONDS));
+            Thread[] waiter = new Thread[1];
+            Future<String> second = executor.submit(() -> {
+                waiter[0] = Thread.currentThread();
+                return underTest.new MacroContextImpl(
+                        new RenderContext("localhost", "default", "page2", "user", renderer, new HashMap<>())).renderPage("gatedPage").getHtml();
+            });
+            // Let the second request reach the running render before it finishes
+            long until = System.currentTimeMillis() + 5000;
+            while ((waiter[0] == null || waiter[0].getState() != Thread.State.TIMED_WAITING) && System.currentTimeMillis() < until) {
+                Thread.sleep(5);
+            }
+            GateMacro.release.countDown();
+            String html = first.get(5, TimeUnit.SECONDS);
+            assertTrue(html.contains("Gate 1"));
+            assertEquals(html, second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, GateMacro.runs.get());
+            assertEquals(sharedBefore + 1, underTest.subRenders.getStats().shared());
+        } finally {
+            GateMacro.release.countDown();
+            executor.shutdownNow();
+        }
+
+        // Another state renders on its own
+        GateMacro.entered = new CountDownLatch(1);
+        RenderContext context = new RenderContext("localhost", "default", "page3", "user", renderer, new HashMap<>());
+        context.state().setIdSuffix("_2");
+        assertTrue(underTest.new MacroContextImpl(context).renderPage("gatedPage").getHtml().contains("Gate 2"));
+    }
 
     @CustomMacro
     public static class BrokenMacro extends Macro {
@@ -298,4 +621,138 @@ class MacroServiceTest {
         }
     }
 
-}
\ No newline at end of file
+    @CustomMacro
+    public static class CachedMacro extends Macro {
+        static final AtomicInteger runs = new AtomicInteger();
+
+        @Override
+        public String getName() {
+            return "Cached";
+        }
+
+        @Override
+        public Duration getResultCacheTtl() {
+            return Duration.ofMinutes(1);
+        }
+
+        @Override
+        public String render(MacroContext context, String macroArgs) {
+            context.getLinksOnPage("ns:linked");
+            context.addDependency("declared");
+            context.addLinks(List.of("ns:linked"));
+            context.setPageDontCache();
+            return "Run " + runs.incrementAndGet();
+        }
+    }
+
+    @CustomMacro
+    public static class DeadlineMacro extends Macro {
+        static final AtomicInteger runs = new AtomicInteger();
+
+        @Override
+        public String getName() {
+            return "Deadline";
+        }
+
+        @Override
+        public Duration getResultCacheTtl() {
+            return Duration.ofMinutes(1);
+        }
+
+        @Override
+        public String render(MacroContext context, String macroArgs) {
+            return context.getCachedRenders(List.of("slowPage")).get("slowPage").getHtml() + " " + runs.incrementAndGet();
+        }
+    }
+
+    @CustomMacro
+    public static class SiteMacro extends Macro {
+        static final AtomicInteger runs = new AtomicInteger();
+
+        @Override
+        public String getName() {
+            return "Site";
+        }
+
+        @Override
+        public Duration getResultCacheTtl() {
+            return Duration.ofMinutes(1);
+        }
+
+        @Override
+        public String render(MacroContext context, String macroArgs) {
+            context.getAllPages();
+            return "Site " + runs.incrementAndGet();
+        }
+    }
+
+    @CustomMacro
+    public static class GateMacro extends Macro {
+        static final AtomicInteger runs = new AtomicInteger();
+        static volatile CountDownLatch entered = new CountDownLatch(0);
+        static volatile CountDownLatch release = new CountDownLatch(0);
+
+        @Override
+        public String getName() {
+            return "Gate";
+        }
+
+        @Override
+        public String render(MacroContext context, String macroArgs) {
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "Gate " + runs.incrementAndGet();
+        }
+    }
+
+    @CustomMacro
+    public static class BarrierMacro extends Macro {
+        static volatile CyclicBarrier barrier;
+        static volatile CountDownLatch callerDone;
+        static volatile Thread caller;
+
+        @Override
+        public String getName() {
+            return "Barrier";
+        }
+
+        @Override
+        public String render(MacroContext context, String macroArgs) {
+            try {
+                barrier.await(5, TimeUnit.SECONDS);
+                if (Thread.currentThread().getName().startsWith("macro-render-")) {
+                    callerDone.await(5, TimeUnit.SECONDS);
+                    // Finish once the caller is waiting on this helper
+                    long until = System.currentTimeMillis() + 5000;
+                    while (caller.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < until) {
+                        Thread.onSpinWait();
+                    }
+                    return "Helper";
+                }
+                caller = Thread.currentThread();
+                callerDone.countDown();
+                return "Caller";
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @CustomMacro
+    public static class BudgetMacro extends Macro {
+        @Override
+        public String getName() {
+            return "Budget";
+        }
+
+        @Override
+        public String render(MacroContext context, String macroArgs) {
+            MacroContext.RenderOutput output = context.renderMarkup("a\n\n".repeat(100));
+            return output.getHtml() + (context.isOverBudget() ? "over" : "ok");
+        }
+    }
+}
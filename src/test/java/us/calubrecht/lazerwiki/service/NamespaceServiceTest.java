@@ -36,6 +36,12 @@ public class NamespaceServiceTest {
     @MockBean
     MediaRecordRepository mediaRecordRepository;
 
+    @MockBean
+    MacroResultCache macroResultCache;
+
+    @MockBean
+    SharedPageCache sharedPageCache;
+
     @Test
     public void testCanReadNamespace() {
         assertTrue(underTest.canReadNamespace("site1", "ns_unknown", "bob"));
@@ -338,6 +344,7 @@ public class NamespaceServiceTest {
         underTest.setNSRestriction("site1", "ns4", Namespace.RESTRICTION_TYPE.INHERIT);
         // Delete not called for ns4
         verify(namespaceRepository, times(1)).delete(any());
+        verify(sharedPageCache, times(4)).clear();
     }
 
     @Test
@@ -345,4 +352,33 @@ public class NamespaceServiceTest {
         assertEquals("singleNS", underTest.joinNS("", "singleNS"));
         assertEquals("ns:nestedNS", underTest.joinNS("ns", "nestedNS"));
     }
+
+    @Test
+    public void testAclClass() {
+        assertEquals("Guest", underTest.aclClass("site1", "Guest"));
+        assertEquals("Guest", underTest.aclClass("site1", null));
+
+        User user1 = new User();
+        user1.roles = List.of(new UserRole(user1, "ROLE_USER"), new UserRole(user1, "ROLE_READ:site1:closed"),
+                new UserRole(user1, "ROLE_WRITE:site2:ns"), new UserRole(user1, "ROLE_DELETE:site1"));
+        when(userService.getUser("user1")).thenReturn(user1);
+        User user2 = new User();
+        user2.roles = List.of(new UserRole(user2, "ROLE_DELETE:site1"), new UserRole(user2, "ROLE_READ:site1:closed"),
+                new UserRole(user2, "ROLE_USER"), new UserRole(user2, "ROLE_UPLOAD:site3"));
+        when(userService.getUser("user2")).thenReturn(user2);
+        User user3 = new User();
+        user3.roles = List.of(new UserRole(user3, "ROLE_USER"));
+        when(userService.getUser("user3")).thenReturn(user3);
+
+        // Only roles for the site matter
+        assertEquals("user:ROLE_DELETE:site1,ROLE_READ:site1:closed,ROLE_USER", underTest.aclClass("site1", "user1"));
+        assertEquals(underTest.aclClass("site1", "user1"), underTest.aclClass("site1", "user2"));
+        assertNotEquals(underTest.aclClass("site2", "user1"), underTest.aclClass("site2", "user2"));
+        assertEquals("user:ROLE_USER", underTest.aclClass("site1", "user3"));
+        assertEquals(underTest.aclClass("site2", "user2"), underTest.aclClass("site2", "user3"));
+        // A user with no roles still isn't a guest, they can write open namespaces
+        assertNotEquals("Guest", underTest.aclClass("site1", "user3"));
+        // Without a user record they can only do what guests can
+        assertEquals("Guest", underTest.aclClass("site1", "unknown"));
+    }
 }
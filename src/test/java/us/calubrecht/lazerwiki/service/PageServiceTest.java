@@ -40,6 +40,9 @@ public class PageServiceTest {
     @MockBean
     PageRepository pageRepository;
 
+    @MockBean
+    RenderedPageCache renderedPageCache;
+
     @MockBean
     IdRepository idRepository;
 
@@ -461,6 +464,7 @@ public class PageServiceTest {
         cached2.useCache = true;
         cached2.source = "source";
         verify(pageCacheRepository).save(cached2);
+        verify(renderedPageCache, times(2)).invalidate("default", "ns:toCache");
     }
 
     @Test
@@ -491,6 +495,20 @@ public class PageServiceTest {
 
     }
 
+    @Test
+    public void testGetPageVersion() {
+        when(siteService.getSiteForHostname("localhost")).thenReturn("default");
+        PageVersion current = mock(PageVersion.class);
+        PageVersion past = mock(PageVersion.class);
+        when(pageRepository.getVersionBySiteAndNamespaceAndPagename("default", "ns", "page1")).thenReturn(current);
+        when(pageRepository.findBySiteAndNamespaceAndPagenameAndRevision("default", "ns", "page1", 2L, PageVersion.class)).thenReturn(past);
+
+        assertEquals(current, pageService.getPageVersion("localhost", "ns:page1"));
+        assertEquals(past, pageService.getPageVersion("localhost", "ns:page1", 2L));
+        assertNull(pageService.getPageVersion("localhost", "ns:page2"));
+        verify(pageRepository, never()).getBySiteAndNamespaceAndPagename(any(), any(), any());
+    }
+
     @Test
     void testGetPageHistory() throws PageReadException {
         when(siteService.getSiteForHostname("localhost")).thenReturn("default");
@@ -505,6 +523,24 @@ public class PageServiceTest {
 
     }
 
+    @Test
+    void testGetLinkGraph() {
+        when(siteService.getSiteForHostname("localhost")).thenReturn("default");
+        Map<String, List<String>> graph = new LinkedHashMap<>();
+        graph.put("", List.of("page2", "secret:page3", "ns:page4"));
+        graph.put("secret:page5", List.of("page2"));
+        graph.put("ns:page4", List.of("secret:page5"));
+        when(linkService.getLinkGraph("default")).thenReturn(graph);
+        when(namespaceService.canReadNamespace(eq("default"), any(), eq("Bob"))).thenReturn(true);
+        when(namespaceService.canReadNamespace("default", "secret", "Bob")).thenReturn(false);
+
+        Map<String, List<String>> readable = pageService.getLinkGraph("localhost", "Bob");
+        assertEquals(Map.of("", List.of("page2", "ns:page4"), "ns:page4", List.of()), readable);
+        // Each namespace checked once
+        verify(namespaceService, times(1)).canReadNamespace("default", "secret", "Bob");
+        verify(namespaceService, times(1)).canReadNamespace("default", "", "Bob");
+    }
+
     @Test
     void testGetPageDiff() throws PageReadException {
         when(siteService.getSiteForHostname("localhost")).thenReturn("default");
@@ -586,6 +622,27 @@ public class PageServiceTest {
 
     }
 
+    @Test
+    public void testGetLinkTargets() {
+        when(siteService.getSiteForHostname(eq("localhost"))).thenReturn("site1");
+        PageTitle pt1 = new PageTextImpl("", "page1", null, null);
+        PageTitle pt2 = new PageTextImpl("ns", "titled", "A Title", null);
+        PageTitle pt3 = new PageTextImpl("ns", "CaseDiffers", "Case Title", null);
+        ArgumentCaptor<List<String>> captor = ArgumentCaptor.forClass(List.class);
+        when(pageRepository.getTitlesBySiteAndNamespaceAndPagename(anyString(), eq("site1"), captor.capture())).
+                thenReturn(List.of(pt1, pt2, pt3));
+
+        Map<String, PageService.LinkTarget> res = pageService.getLinkTargets("localhost", List.of("page1", "ns:titled", "ns:missing_page", "ns:caseDiffers"));
+        assertEquals(Set.of(":page1", "ns:titled", "ns:missing_page", "ns:caseDiffers"), new HashSet<>(captor.getValue()));
+        assertEquals(new PageService.LinkTarget(true, "Page 1"), res.get("page1"));
+        assertEquals(new PageService.LinkTarget(true, "A Title"), res.get("ns:titled"));
+        assertEquals(new PageService.LinkTarget(false, "Missing Page"), res.get("ns:missing_page"));
+        assertEquals(new PageService.LinkTarget(true, "Case Title"), res.get("ns:caseDiffers"));
+
+        assertTrue(pageService.getLinkTargets("localhost", List.of()).isEmpty());
+        verify(pageRepository, times(1)).getTitlesBySiteAndNamespaceAndPagename(anyString(), anyString(), any());
+    }
+
     @Test
     void recentChanges() {
         when(siteService.getSiteForHostname(eq("theHost"))).thenReturn("site1");
@@ -32,6 +32,12 @@ public class PageUpdateServiceTest {
     @MockBean
     PageRepository pageRepository;
 
+    @MockBean
+    RenderedPageCache renderedPageCache;
+
+    @MockBean
+    SharedPageCache sharedPageCache;
+
     @MockBean
     IdRepository idRepository;
 
@@ -74,6 +80,9 @@ public class PageUpdateServiceTest {
     @MockBean
     MediaOverrideService mediaOverrideService;
 
+    @MockBean
+    MacroResultCache macroResultCache;
+
 
     @Test
     public void testSavePage() throws PageWriteException {
@@ -251,6 +260,8 @@ public class PageUpdateServiceTest {
         pageUpdateService.deletePage("localhost", "testPage", "bob");
         verify(linkService).deleteLinks(eq("default"), eq("testPage"));
         verify(regenCacheService).regenCachesForBacklinks("default", "testPage");
+        verify(renderedPageCache).invalidate("default", "testPage");
+        verify(sharedPageCache).siteChanged("default");
         ArgumentCaptor<Page> captor = ArgumentCaptor.forClass(Page.class);
         verify(pageRepository, times(2)).save(captor.capture());
         verify(activityLogService).log(ActivityType.ACTIVITY_PROTO_DELETE_PAGE,  "default",user, "testPage");
@@ -0,0 +1,75 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+import org.antlr.v4.runtime.CommonToken;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParseTreeCacheTest {
+
+    AtomicInteger parseCount = new AtomicInteger();
+
+    Function<String, ParseTree> parser = (markup) -> {
+        parseCount.incrementAndGet();
+        return new TerminalNodeImpl(new CommonToken(0, markup));
+    };
+
+    @Test
+    public void testHitAndMiss() {
+        ParseTreeCache cache = new ParseTreeCache(1000);
+        ParseTree first = cache.get("some markup", parser);
+        assertSame(first, cache.get("some markup", parser));
+        assertNotSame(first, cache.get("other markup", parser));
+        assertEquals(2, parseCount.get());
+
+        ParseTreeCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.hits());
+        assertEquals(2, stats.misses());
+        assertEquals(2, stats.entries());
+        assertEquals("some markup".length() + "other markup".length(), stats.weight());
+        assertEquals(1.0/3, stats.hitRate(), 0.0001);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        ParseTreeCache cache = new ParseTreeCache(40);
+        cache.get("aaaaaaaaaa", parser);
+        cache.get("bbbbbbbbbb", parser);
+        cache.get("cccccccccc", parser);
+        cache.get("dddddddddd", parser);
+        // Touch a so b is eldest
+        cache.get("aaaaaaaaaa", parser);
+        cache.get("eeeeeeeeee", parser);
+        assertEquals(1, cache.getStats().evictions());
+        assertEquals(40, cache.getStats().weight());
+
+        parseCount.set(0);
+        cache.get("aaaaaaaaaa", parser);
+        assertEquals(0, parseCount.get());
+        cache.get("bbbbbbbbbb", parser);
+        assertEquals(1, parseCount.get());
+    }
+
+    @Test
+    public void testOversizeNotCached() {
+        ParseTreeCache cache = new ParseTreeCache(40);
+        cache.get("a much longer source than the cache wants", parser);
+        cache.get("a much longer source than the cache wants", parser);
+        assertEquals(2, parseCount.get());
+        assertEquals(0, cache.getStats().entries());
+    }
+
+    @Test
+    public void testDisabled() {
+        ParseTreeCache cache = new ParseTreeCache(0);
+        cache.get("markup", parser);
+        cache.get("markup", parser);
+        assertEquals(2, parseCount.get());
+        assertEquals(0, cache.getStats().hitRate());
+    }
+}
@@ -0,0 +1,104 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.Trees;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiLexer;
+import us.calubrecht.lazerwiki.service.parser.doku.DokuwikiParser;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParseTreeStoreTest {
+    @TempDir
+    Path root;
+
+    static final List<String> RULE_NAMES = Arrays.asList(DokuwikiParser.ruleNames);
+
+    ParseTree parse(CharStream input, boolean allowBroken) {
+        DokuwikiParser parser = new DokuwikiParser(new CommonTokenStream(new DokuwikiLexer(input)));
+        parser.removeErrorListeners();
+        if (allowBroken) {
+            parser.setAllowBroken();
+        }
+        return parser.page();
+    }
+
+    void assertSameTree(ParseTree expected, ParseTree actual) {
+        assertEquals(Trees.toStringTree(expected, RULE_NAMES), Trees.toStringTree(actual, RULE_NAMES));
+        assertEquals(expected.getText(), actual.getText());
+        assertEquals(expected.getSourceInterval(), actual.getSourceInterval());
+        ParserRuleContext expectedRoot = (ParserRuleContext)expected;
+        ParserRuleContext actualRoot = (ParserRuleContext)actual;
+        assertEquals(expectedRoot.start.getStartIndex(), actualRoot.start.getStartIndex());
+        assertEquals(expectedRoot.stop.getStopIndex(), actualRoot.stop.getStopIndex());
+        assertEquals(expectedRoot.stop.getLine(), actualRoot.stop.getLine());
+    }
+
+    @Test
+    public void testRoundTrip() {
+        ParseTreeStore store = new ParseTreeStore(root.toString(), true);
+        String markup = "====== Header ======\nSome **bold** and //italic// text with a [[ns:link|link]]\n\n  * {{image.png}}\n\n^ Head ^\n| cell |\n<code>\ncode\n</code>\n";
+        ParseTree tree = parse(CharStreams.fromString(markup + '\n'), false);
+        store.save("site1", "ns:page", markup, tree);
+        assertTrue(Files.exists(store.pathFor("site1", "ns:page")));
+
+        ParseTree loaded = store.load("site1", "ns:page", markup, CharStreams.fromString(markup + '\n'));
+        assertNotNull(loaded);
+        assertSameTree(tree, loaded);
+        assertEquals(new ParseTreeStore.Stats(1, 0, 1, 0), store.getStats());
+
+        // Other markup, other page or other site
+        assertNull(store.load("site1", "ns:page", markup + "more", CharStreams.fromString(markup + "more\n")));
+        assertNull(store.load("site1", "ns:other", markup, CharStreams.fromString(markup + '\n')));
+        assertNull(store.load("site2", "ns:page", markup, CharStreams.fromString(markup + '\n')));
+        assertEquals(new ParseTreeStore.Stats(1, 3, 1, 0), store.getStats());
+    }
+
+    @Test
+    public void testBrokenMarkup() {
+        ParseTreeStore store = new ParseTreeStore(root.toString(), true);
+        String markup = "---\n[[unclosed link\n**bold";
+        ParseTree tree = parse(CharStreams.fromString(markup + '\n'), true);
+        store.save("site1", "broken", markup, tree);
+        assertSameTree(tree, store.load("site1", "broken", markup, CharStreams.fromString(markup + '\n')));
+    }
+
+    @Test
+    public void testOtherGrammar() throws IOException {
+        ParseTreeStore store = new ParseTreeStore(root.toString(), true);
+        String markup = "Some text";
+        Path path = store.pathFor("site1", "page");
+        Files.createDirectories(path.getParent());
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+            out.writeUTF(ParseTreeCache.hash(markup));
+            out.writeUTF("not the grammar hash");
+        }
+        assertNull(store.load("site1", "page", markup, CharStreams.fromString(markup + '\n')));
+
+        // Truncated files aren't read
+        Files.write(path, Arrays.copyOf(Files.readAllBytes(path), 10));
+        assertNull(store.load("site1", "page", markup, CharStreams.fromString(markup + '\n')));
+        assertEquals(new ParseTreeStore.Stats(0, 1, 0, 1), store.getStats());
+    }
+
+    @Test
+    public void testDisabled() {
+        ParseTreeStore store = new ParseTreeStore(root.toString(), false);
+        String markup = "Some text";
+        store.save("site1", "page", markup, parse(CharStreams.fromString(markup + '\n'), false));
+        assertFalse(Files.exists(store.pathFor("site1", "page")));
+        assertNull(store.load("site1", "page", markup, CharStreams.fromString(markup + '\n')));
+    }
+}
@@ -1,6 +1,7 @@
 package us.calubrecht.lazerwiki.service;
 
 import org.antlr.v4.runtime.TokenStreamRewriter;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -47,6 +48,15 @@ public class ProblemPagesTest {
     @MockBean
     TOCRenderService rocRenderService;
 
+    @MockBean
+    MacroResultCache macroResultCache;
+
+    @MockBean
+    NamespaceService namespaceService;
+
+    @MockBean
+    RenderBudgetService renderBudgetService;
+
     @Configuration
     @ComponentScan("us.calubrecht.lazerwiki.service.renderhelpers.doku")
     public static class TestConfig {
@@ -65,6 +75,11 @@ public class ProblemPagesTest {
         }
     }
 
+    @BeforeEach
+    void stubLinkLookups() {
+        DokuWikiRendererTest.stubLinkTargets(pageService);
+    }
+
     @Test
     public void testAboutPage_wasFatal() {
         String s = loadPage("about.page") + '\n';
@@ -10,11 +10,13 @@ import us.calubrecht.lazerwiki.model.*;
 import us.calubrecht.lazerwiki.repository.PageCacheRepository;
 import us.calubrecht.lazerwiki.repository.PageRepository;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
+import us.calubrecht.lazerwiki.service.renderhelpers.doku.LinkResolver;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -30,6 +32,12 @@ class RegenCacheServiceTest {
     @MockBean
     PageRepository pageRepository;
 
+    @MockBean
+    RenderedPageCache renderedPageCache;
+
+    @MockBean
+    SharedPageCache sharedPageCache;
+
     @MockBean
     IMarkupRenderer renderer;
 
@@ -110,6 +118,8 @@ class RegenCacheServiceTest {
 
         ArgumentCaptor<PageCache> argument = ArgumentCaptor.forClass(PageCache.class);
         verify(pageCacheRepository).deleteBySite("default");
+        verify(renderedPageCache).invalidateSite("default");
+        verify(sharedPageCache).siteChanged("default");
         verify(pageCacheRepository,times(2)).save(argument.capture());
         assertEquals("text1 rendered", argument.getAllValues().get(0).renderedCache);
         assertEquals(true, argument.getAllValues().get(0).useCache);
@@ -149,6 +159,7 @@ class RegenCacheServiceTest {
         ArgumentCaptor<PageCache> argument = ArgumentCaptor.forClass(PageCache.class);
         verify(pageCacheRepository, never()).deleteBySite("default");
         verify(pageCacheRepository,times(3)).save(argument.capture());
+        verify(renderedPageCache, times(3)).invalidate(eq("default"), anyString());
         assertEquals("text1 rendered", argument.getAllValues().get(0).renderedCache);
         assertEquals(true, argument.getAllValues().get(0).useCache);
         assertEquals("text2 rendered", argument.getAllValues().get(1).renderedCache);
@@ -156,6 +167,32 @@ class RegenCacheServiceTest {
 
     }
 
+    @Test
+    void regenCachesForBacklinksSkipsLateBoundLinks() {
+        Page page2 = new Page();
+        page2.setPagename("page2");
+        page2.setText("text2");
+        when(linkService.getBacklinks(any(), any())).thenReturn(List.of("page1", "page2"));
+        // page1 only has a slot for the link, page2 was cached with it resolved
+        PageCache cache1 = new PageCache("default", "", "page1", "Page 1",
+                "<a class=\"" + LinkResolver.cssClassPlaceholder("linkedPage") + "\" href=\"/page/linkedPage\">" + LinkResolver.titlePlaceholder("linkedPage") + "</a>", "", true);
+        PageCache cache2 = new PageCache("default", "", "page2", "Page 2",
+                "<a class=\"" + LinkResolver.cssClassPlaceholder("linkedPage") + "\" href=\"/page/linkedPage\">Linked</a><h1><a class=\"wikiLinkMissing\" href=\"/page/linkedPage\">Linked Page</a></h1>", "", true);
+        when(pageCacheRepository.findById(new PageCache.PageCacheKey("default", "", "page1"))).thenReturn(Optional.of(cache1));
+        when(pageCacheRepository.findById(new PageCache.PageCacheKey("default", "", "page2"))).thenReturn(Optional.of(cache2));
+        when(pageRepository.getBySiteAndNamespaceAndPagenameAndDeleted(any(), any(), eq("page2"), eq(false))).thenReturn(page2);
+        when(renderer.renderWithInfo(anyString(), any(RenderContext.class))).thenAnswer(inv ->
+                new RenderResult(inv.getArgument(0, String.class) + " rendered", "", Map.of()));
+        when(siteService.getHostForSitename("default")).thenReturn("host");
+
+        underTest.regenCachesForBacklinks("default", "linkedPage");
+
+        ArgumentCaptor<PageCache> argument = ArgumentCaptor.forClass(PageCache.class);
+        verify(pageCacheRepository,times(1)).save(argument.capture());
+        assertEquals("page2", argument.getValue().pageName);
+        assertEquals("text2 rendered", argument.getValue().renderedCache);
+    }
+
     @Test
     public void testRegenCacheForBacklinksWithNoCache() {
         List<PageDesc> pds = List.of(new PageServiceTest.PageDescImpl("", "page1"), new PageServiceTest.PageDescImpl("ns", "page2"));
@@ -0,0 +1,59 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.junit.jupiter.api.Test;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderBudget;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderBudgetServiceTest {
+
+    @Test
+    void testBudgets() {
+        RenderBudgetService service = new RenderBudgetService();
+        service.renderNodes = 2;
+        service.macroNodes = 1;
+        RenderBudget page = service.newRenderBudget();
+        RenderBudget macro = service.newMacroBudget(page);
+        assertSame(page, macro.getParent());
+        assertTrue(macro.charge());
+        assertFalse(macro.charge());
+        assertTrue(page.charge());
+        assertFalse(page.charge());
+    }
+
+    @Test
+    void testCheckBudget() {
+        RenderBudgetService service = new RenderBudgetService();
+        RenderContext context = new RenderContext("localhost", "default", "bigPage", "user");
+        service.checkBudget(context, null, null);
+        service.checkBudget(context, null, new RenderBudget(0, 5, null));
+        assertEquals(List.of(), service.getOverruns("default"));
+
+        // Over its parent's limit, but it skipped nothing
+        RenderBudget parent = new RenderBudget(0, 1, null);
+        parent.charge();
+        parent.charge();
+        service.checkBudget(context, "macro", new RenderBudget(0, 5, parent));
+        assertEquals(List.of(), service.getOverruns("default"));
+
+        RenderBudget spent = new RenderBudget(0, 1, null);
+        spent.charge();
+        spent.charge();
+        service.checkBudget(context, null, spent);
+        service.checkBudget(context, null, spent);
+        service.checkBudget(new RenderContext("localhost", "default", "otherPage", "user"), "include", spent);
+        service.checkBudget(new RenderContext("localhost", "otherSite", "bigPage", "user"), null, spent);
+
+        List<RenderBudgetService.Overrun> overruns = service.getOverruns("default");
+        assertEquals(2, overruns.size());
+        assertEquals("otherPage", overruns.get(0).page());
+        assertEquals("include", overruns.get(0).macro());
+        assertEquals("bigPage", overruns.get(1).page());
+        assertNull(overruns.get(1).macro());
+        assertEquals(2, overruns.get(1).count());
+        assertEquals(RenderBudget.Limit.NODES, overruns.get(1).limit());
+    }
+}
@@ -6,16 +6,27 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.ActiveProfiles;
 import us.calubrecht.lazerwiki.model.PageCache;
+import us.calubrecht.lazerwiki.model.PageVersion;
 import us.calubrecht.lazerwiki.model.RenderResult;
 import us.calubrecht.lazerwiki.responses.PageData;
 import us.calubrecht.lazerwiki.responses.PageData.PageFlags;
 import us.calubrecht.lazerwiki.service.exception.PageWriteException;
+import us.calubrecht.lazerwiki.service.renderhelpers.RenderBudget;
 import us.calubrecht.lazerwiki.service.renderhelpers.RenderContext;
 
 import java.util.*;
-
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -41,6 +52,18 @@ public class RenderServiceTest {
     @MockBean
     MacroService macroService;
 
+    @MockBean
+    RenderBudgetService renderBudgetService;
+
+    @MockBean
+    RenderedPageCache renderedPageCache;
+
+    @MockBean
+    SharedPageCache sharedPageCache;
+
+    @MockBean
+    NamespaceService namespaceService;
+
     @Test
     public void testRender() {
         PageData pd = new PageData(null, "This is raw page text",  null,null, null, PageData.ALL_RIGHTS, 1L);
@@ -57,6 +80,98 @@ public class RenderServiceTest {
         assertEquals(new PageData("Doesn't exist", "This is raw page text",   null,null, new PageFlags(false, false, true, true, false, false)), underTest.getRenderedPage("host1", "ns:nonPage", "Bob"));
     }
 
+    @Test
+    public void testColdRenderShared() throws Exception {
+        PageData pd = new PageData(null, "Slow page text",  null,null, null, PageData.ALL_RIGHTS, 5L);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(renderer.renderWithInfo(eq("Slow page text"), any(RenderContext.class))).thenAnswer(inv -> {
+            entered.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return new RenderResult("Slow Rendered", "", new HashMap<>());
+        });
+        when(pageService.getPageData(any(), eq("ns:slowPage"), any())).thenReturn(pd);
+        when(siteService.getSiteForHostname(any())).thenReturn("default");
+        when(pageService.adjustSource(anyString(), any())).thenReturn("adjusted Source");
+        when(macroService.postRender(any(), any())).thenAnswer(inv -> inv.getArgument(0, String.class) + " for " + inv.getArgument(1, RenderContext.class).user());
+
+        long sharedBefore = underTest.coldRenders.getStats().shared();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<PageData> first = executor.submit(() -> underTest.getRenderedPage("host1", "ns:slowPage", "Bob"));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            Thread[] waiter = new Thread[1];
+            Future<PageData> second = executor.submit(() -> {
+                waiter[0] = Thread.currentThread();
+                return underTest.getRenderedPage("host1", "ns:slowPage", "Joe");
+            });
+            long until = System.currentTimeMillis() + 5000;
+            while ((waiter[0] == null || waiter[0].getState() != Thread.State.TIMED_WAITING) && System.currentTimeMillis() < until) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            // One render for the cache, finished for each user
+            assertEquals("Slow Rendered for Bob", first.get(5, TimeUnit.SECONDS).rendered());
+            assertEquals("Slow Rendered for Joe", second.get(5, TimeUnit.SECONDS).rendered());
+            assertEquals("adjusted Source", second.get().source());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        verify(renderer, times(1)).renderWithInfo(eq("Slow page text"), any(RenderContext.class));
+        verify(pageService, times(1)).saveCache(eq("host1"), eq("ns:slowPage"), eq("Slow page text"), any());
+        assertEquals(sharedBefore + 1, underTest.coldRenders.getStats().shared());
+    }
+
+    @Test
+    public void testColdRenderPartialNotShared() throws Exception {
+        PageData pd = new PageData(null, "Big page text",  null,null, null, PageData.ALL_RIGHTS, 6L);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger renders = new AtomicInteger();
+        when(renderBudgetService.newRenderBudget()).thenAnswer(inv -> new RenderBudget(0, 1, null));
+        when(renderer.renderWithInfo(eq("Big page text"), any(RenderContext.class))).thenAnswer(inv -> {
+            if (renders.incrementAndGet() > 1) {
+                return new RenderResult("Full", "", new HashMap<>());
+            }
+            entered.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            // Runs out of budget
+            RenderBudget budget = inv.getArgument(1, RenderContext.class).state().getBudget();
+            budget.charge();
+            budget.charge();
+            return new RenderResult("Partial", "", new HashMap<>());
+        });
+        when(pageService.getPageData(any(), eq("ns:bigPage"), any())).thenReturn(pd);
+        when(siteService.getSiteForHostname(any())).thenReturn("default");
+        when(pageService.adjustSource(anyString(), any())).thenReturn("adjusted Source");
+        when(macroService.postRender(any(), any())).thenAnswer(inv -> inv.getArgument(0, String.class) + " for " + inv.getArgument(1, RenderContext.class).user());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<PageData> first = executor.submit(() -> underTest.getRenderedPage("host1", "ns:bigPage", "Bob"));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            Thread[] waiter = new Thread[1];
+            Future<PageData> second = executor.submit(() -> {
+                waiter[0] = Thread.currentThread();
+                return underTest.getRenderedPage("host1", "ns:bigPage", "Joe");
+            });
+            long until = System.currentTimeMillis() + 5000;
+            while ((waiter[0] == null || waiter[0].getState() != Thread.State.TIMED_WAITING) && System.currentTimeMillis() < until) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            // The waiter doesn't take the output cut short by the other view's budget
+            assertEquals("Partial for Bob", first.get(5, TimeUnit.SECONDS).rendered());
+            assertEquals("Full for Joe", second.get(5, TimeUnit.SECONDS).rendered());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        verify(renderer, times(2)).renderWithInfo(eq("Big page text"), any(RenderContext.class));
+        verify(pageService, times(1)).saveCache(eq("host1"), eq("ns:bigPage"), eq("Big page text"), any());
+    }
+
     @Test
     public void testRenderError() {
         PageData pd = new PageData(null, "This is raw page text",  null, null, PageData.ALL_RIGHTS);
@@ -142,6 +257,75 @@ public class RenderServiceTest {
         assertEquals(new PageData("This is Rendered Text", "adjusted Text",   null,null,PageData.ALL_RIGHTS), underTest.getRenderedPage("host1", "ns:realPage2", "Bob"));
     }
 
+    @Test
+    public void testGetRenderedPage_InHeapCache() {
+        PageData pd = new PageData(null, "This is raw page text",  null,null, null, PageData.ALL_RIGHTS, 1L, 4L);
+        when(pageService.getPageData(any(), eq("ns:hotPage"), any())).thenReturn(pd);
+        when(siteService.getSiteForHostname(any())).thenReturn("default");
+        when(macroService.postRender(any(), any())).thenAnswer(inv -> inv.getArgument(0, String.class));
+        PageCache cached = new PageCache();
+        cached.useCache = true;
+        cached.renderedCache = "This is from rendered Cache";
+        cached.source = "Cached source";
+        when(pageService.getCachedPage("host1", "ns:hotPage")).thenReturn(cached);
+        when(renderedPageCache.now()).thenReturn(7L);
+
+        PageData expected = new PageData("This is from rendered Cache", "Cached source",   null,null, null, PageData.ALL_RIGHTS, 1L, 4L);
+        assertEquals(expected, underTest.getRenderedPage("host1", "ns:hotPage", "Bob"));
+        RenderedPageCache.Key key = RenderedPageCache.key("default", "ns:hotPage");
+        RenderedPageCache.Entry entry = new RenderedPageCache.Entry(4L, "This is from rendered Cache", "Cached source", true);
+        verify(renderedPageCache).put(key, entry, 7L);
+
+        // Served without fetching the cache row
+        when(renderedPageCache.get(key, 4L)).thenReturn(entry);
+        assertEquals(expected, underTest.getRenderedPage("host1", "ns:hotPage", "Bob"));
+        verify(pageService, times(1)).getCachedPage("host1", "ns:hotPage");
+    }
+
+    @Test
+    public void testGetPageJson() {
+        PageData pd = new PageData(null, "This is raw page text",  null,null, null, PageData.ALL_RIGHTS, 1L, 4L);
+        when(pageService.getPageData(any(), eq("ns:guestPage"), any())).thenReturn(pd);
+        when(pageService.getPageData(any(), eq("ns:macroPage"), any())).thenReturn(pd);
+        when(siteService.getSiteForHostname(any())).thenReturn("default");
+        when(namespaceService.aclClass("default", "Guest")).thenReturn("Guest");
+        when(namespaceService.aclClass("default", "Bob")).thenReturn("user:ROLE_USER");
+        when(namespaceService.aclClass("default", "Joe")).thenReturn("user:ROLE_USER");
+        when(macroService.postRender(any(), any())).thenAnswer(inv -> inv.getArgument(0, String.class));
+        PageCache cached = new PageCache();
+        cached.useCache = true;
+        cached.renderedCache = "This is from rendered Cache";
+        cached.source = "Cached source";
+        when(pageService.getCachedPage("host1", "ns:guestPage")).thenReturn(cached);
+        PageCache withMacro = new PageCache();
+        withMacro.useCache = true;
+        withMacro.renderedCache = "Runs a ~~MACRO~~~~date~~/MACRO~~";
+        withMacro.source = "Cached source";
+        when(pageService.getCachedPage("host1", "ns:macroPage")).thenReturn(withMacro);
+        when(sharedPageCache.put(any(), any(), anyBoolean(), anyLong())).thenReturn("json".getBytes());
+
+        SharedPageCache.Key key = new SharedPageCache.Key("default", "host1", "ns:guestPage", "Guest");
+        assertEquals("json", new String(underTest.getPageJson("host1", "ns:guestPage", "Guest").json()));
+        verify(sharedPageCache).put(key, new PageData("This is from rendered Cache", "Cached source",   null,null, null, PageData.ALL_RIGHTS, 1L, 4L), true, 0L);
+
+        // Macros run on each view
+        underTest.getPageJson("host1", "ns:macroPage", "Guest");
+        verify(sharedPageCache).put(eq(new SharedPageCache.Key("default", "host1", "ns:macroPage", "Guest")), any(), eq(false), eq(0L));
+
+        when(sharedPageCache.get(key)).thenReturn("cached json".getBytes());
+        assertEquals("cached json", new String(underTest.getPageJson("host1", "ns:guestPage", "Guest").json()));
+        verify(pageService, times(1)).getPageData(any(), eq("ns:guestPage"), any());
+
+        // Users with the same roles in the site share the page rendered for the first of them
+        SharedPageCache.Key userKey = new SharedPageCache.Key("default", "host1", "ns:guestPage", "user:ROLE_USER");
+        assertEquals("json", new String(underTest.getPageJson("host1", "ns:guestPage", "Bob").json()));
+        verify(pageService).getPageData(any(), eq("ns:guestPage"), eq("Bob"));
+        verify(sharedPageCache).put(eq(userKey), any(), eq(true), eq(0L));
+        when(sharedPageCache.get(userKey)).thenReturn("bob json".getBytes());
+        assertEquals("bob json", new String(underTest.getPageJson("host1", "ns:guestPage", "Joe").json()));
+        verify(pageService, never()).getPageData(any(), eq("ns:guestPage"), eq("Joe"));
+    }
+
     @Test
     public void testGetHistoricalRenderedPage() {
         PageData pd = new PageData(null, "This is raw page text",  null,null, PageData.ALL_RIGHTS);
@@ -170,6 +354,53 @@ public class RenderServiceTest {
                 <h1>Error</h1>
                 <div>There was an error rendering this page! Please contact an admin, or correct the markup</div>
                 <code>BAD</code>""", "BAD",   null,null,  PageData.ALL_RIGHTS), underTest.getHistoricalRenderedPage("host1", "badRender", 1L,"Bob"));
+
+        // Only complete renders of revisions that exist are fixed
+        assertTrue(underTest.renderHistoricalPage("host1", "ns:realPage", 1L,"Bob").shareable());
+        assertFalse(underTest.renderHistoricalPage("host1", "ns:nonPage", 1L,"Bob").shareable());
+        assertFalse(underTest.renderHistoricalPage("host1", "no", 1L,"Bob").shareable());
+        assertFalse(underTest.renderHistoricalPage("host1", "badRender", 1L,"Bob").shareable());
+    }
+
+    @Test
+    public void testETags() {
+        when(siteService.getSiteForHostname(any())).thenReturn("default");
+        when(namespaceService.aclClass("default", "Guest")).thenReturn("Guest");
+        when(namespaceService.aclClass("default", "Bob")).thenReturn("user:ROLE_USER");
+        when(namespaceService.canReadNamespace(eq("default"), eq("ns"), any())).thenReturn(true);
+        when(sharedPageCache.generation("default")).thenReturn("1.1");
+        PageVersion version = mock(PageVersion.class);
+        when(version.getId()).thenReturn(10L);
+        when(version.getRevision()).thenReturn(3L);
+        when(pageService.getPageVersion("host1", "ns:page")).thenReturn(version);
+
+        String tag = underTest.getPageETag("host1", "ns:page", "Guest");
+        assertTrue(tag.startsWith("\"") && tag.endsWith("\""));
+        assertEquals(tag, underTest.getPageETag("host1", "ns:page", "Guest"));
+        assertNotEquals(tag, underTest.getPageETag("host1", "ns:page", "Bob"));
+        assertNotEquals(tag, underTest.getPageETag("host1", "ns:other", "Guest"));
+        when(sharedPageCache.generation("default")).thenReturn("1.2");
+        assertNotEquals(tag, underTest.getPageETag("host1", "ns:page", "Guest"));
+        tag = underTest.getPageETag("host1", "ns:page", "Guest");
+        when(version.getRevision()).thenReturn(4L);
+        assertNotEquals(tag, underTest.getPageETag("host1", "ns:page", "Guest"));
+        verify(pageService, never()).getPageData(anyString(), anyString(), anyString());
+
+        when(pageService.getPageVersion("host1", "ns:page", 2L)).thenReturn(version);
+        String historical = underTest.getHistoricalPageETag("host1", "ns:page", 2L, "Guest");
+        assertNotNull(historical);
+        assertEquals(historical, underTest.getHistoricalPageETag("host1", "ns:page", 2L, "Guest"));
+        // Past revisions show the site's links and macros as they are now
+        when(sharedPageCache.generation("default")).thenReturn("1.3");
+        assertNotEquals(historical, underTest.getHistoricalPageETag("host1", "ns:page", 2L, "Guest"));
+        assertNull(underTest.getHistoricalPageETag("host1", "ns:page", 5L, "Guest"));
+        assertNull(underTest.getHistoricalPageETag("host1", "closed:page", 2L, "Guest"));
+
+        String diff = underTest.getPageDiffETag("host1", "ns:page", 1L, 2L, "Guest");
+        assertEquals(diff, underTest.getPageDiffETag("host1", "ns:page", 1L, 2L, "Bob"));
+        assertNotEquals(diff, underTest.getPageDiffETag("host1", "ns:page", 1L, 3L, "Guest"));
+        assertNull(underTest.getPageDiffETag("host1", "closed:page", 1L, 2L, "Guest"));
+        assertNull(underTest.getPageDiffETag("host1", "ns:missing", 1L, 2L, "Guest"));
     }
 
     @Test
@@ -0,0 +1,109 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderedPageCacheTest {
+
+    RenderedPageCache cache(long maxWeight) {
+        RenderedPageCache cache = new RenderedPageCache();
+        cache.maxWeight = maxWeight;
+        return cache;
+    }
+
+    RenderedPageCache.Entry entry(long revision, String html) {
+        return new RenderedPageCache.Entry(revision, html, "", true);
+    }
+
+    @Test
+    public void testRevisionsAndInvalidation() {
+        RenderedPageCache cache = cache(1000);
+        RenderedPageCache.Key key = RenderedPageCache.key("site", "NS:Page1");
+        assertEquals(key, RenderedPageCache.key("site", "ns:page1"));
+
+        cache.put(key, entry(2, "<div>html</div>"), cache.now());
+        assertEquals("<div>html</div>", cache.get(key, 2).renderedCache());
+        // Cached at another revision
+        assertNull(cache.get(key, 3));
+
+        cache.invalidate("otherSite", "ns:page1");
+        assertNotNull(cache.get(key, 2));
+        cache.invalidate("site", "ns:Page1");
+        assertNull(cache.get(key, 2));
+
+        cache.put(key, entry(2, "<div>html</div>"), cache.now());
+        cache.put(RenderedPageCache.key("otherSite", "page"), entry(1, "other"), cache.now());
+        cache.invalidateSite("site");
+        assertNull(cache.get(key, 2));
+        assertNotNull(cache.get(RenderedPageCache.key("otherSite", "page"), 1));
+
+        assertEquals(new RenderedPageCache.Stats(3, 3, 0, 3, 1, "other".length(), 1000), cache.getStats());
+    }
+
+    @Test
+    public void testInvalidatedWhileFetching() {
+        RenderedPageCache cache = cache(1000);
+        RenderedPageCache.Key key = RenderedPageCache.key("site", "page");
+        long asOf = cache.now();
+        cache.invalidate("site", "page");
+        cache.put(key, entry(1, "stale"), asOf);
+        assertNull(cache.get(key, 1));
+
+        asOf = cache.now();
+        cache.invalidateSite("site");
+        cache.put(key, entry(1, "stale"), asOf);
+        assertNull(cache.get(key, 1));
+
+        cache.put(key, entry(1, "fresh"), cache.now());
+        assertEquals("fresh", cache.get(key, 1).renderedCache());
+    }
+
+    @Test
+    public void testInvalidatedInTransaction() {
+        RenderedPageCache cache = cache(1000);
+        RenderedPageCache.Key key = RenderedPageCache.key("site", "page");
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            cache.invalidate("site", "page");
+            cache.invalidateSite("otherSite");
+            // Fetched before the change is committed
+            long asOf = cache.now();
+            cache.put(key, entry(1, "before commit"), asOf);
+            cache.put(RenderedPageCache.key("otherSite", "page"), entry(1, "before commit"), asOf);
+            assertNotNull(cache.get(key, 1));
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+            assertNull(cache.get(key, 1));
+            assertNull(cache.get(RenderedPageCache.key("otherSite", "page"), 1));
+            cache.put(key, entry(1, "stale"), asOf);
+            assertNull(cache.get(key, 1));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void testEviction() {
+        RenderedPageCache cache = cache(40);
+        for (String page : new String[]{"a", "b", "c", "d"}) {
+            cache.put(RenderedPageCache.key("site", page), entry(1, "0123456789"), cache.now());
+        }
+        // Touch a so b is eldest
+        cache.get(RenderedPageCache.key("site", "a"), 1);
+        cache.put(RenderedPageCache.key("site", "e"), entry(1, "0123456789"), cache.now());
+        assertEquals(1, cache.getStats().evictions());
+        assertNotNull(cache.get(RenderedPageCache.key("site", "a"), 1));
+        assertNull(cache.get(RenderedPageCache.key("site", "b"), 1));
+
+        // Too big for the cache
+        cache.put(RenderedPageCache.key("site", "big"), entry(1, "a much longer page than the cache wants"), cache.now());
+        assertNull(cache.get(RenderedPageCache.key("site", "big"), 1));
+
+        RenderedPageCache disabled = cache(0);
+        disabled.put(RenderedPageCache.key("site", "a"), entry(1, "a"), disabled.now());
+        assertNull(disabled.get(RenderedPageCache.key("site", "a"), 1));
+    }
+}
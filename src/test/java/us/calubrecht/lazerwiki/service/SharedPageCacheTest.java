@@ -0,0 +1,157 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import us.calubrecht.lazerwiki.responses.PageData;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedPageCacheTest {
+
+    SharedPageCache cache(long maxWeight) {
+        SharedPageCache cache = new SharedPageCache();
+        cache.maxWeight = maxWeight;
+        cache.ttlSeconds = 60;
+        return cache;
+    }
+
+    PageData page(String rendered) {
+        return new PageData(rendered, "source", "title", null, null, PageData.ALL_RIGHTS, 1L, 2L);
+    }
+
+    SharedPageCache.Key key(String site, String page) {
+        return new SharedPageCache.Key(site, "host-" + site, page, "Guest");
+    }
+
+    @Test
+    public void testPutAndPurge() {
+        SharedPageCache cache = cache(10000);
+        byte[] json = cache.put(key("site1", "page"), page("Rendered"), true, cache.now());
+        assertTrue(new String(json).contains("\"rendered\":\"Rendered\""));
+        assertArrayEquals(json, cache.get(key("site1", "page")));
+
+        // Not shareable, still serialized
+        assertNotNull(cache.put(key("site1", "macroPage"), page("Random"), false, cache.now()));
+        assertNull(cache.get(key("site1", "macroPage")));
+
+        cache.put(key("site2", "page"), page("Other site"), true, cache.now());
+        cache.siteChanged("site1");
+        assertNull(cache.get(key("site1", "page")));
+        assertNotNull(cache.get(key("site2", "page")));
+
+        cache.clear();
+        assertNull(cache.get(key("site2", "page")));
+        SharedPageCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.hits());
+        assertEquals(3, stats.misses());
+        assertEquals(2, stats.purges());
+        assertEquals(0, stats.weight());
+    }
+
+    @Test
+    public void testAclClasses() {
+        SharedPageCache cache = cache(10000);
+        SharedPageCache.Key editors = new SharedPageCache.Key("site1", "host-site1", "page", "user:ROLE_WRITE:site1:ns");
+        cache.put(key("site1", "page"), page("For guests"), true, cache.now());
+        cache.put(editors, page("For editors"), true, cache.now());
+        assertTrue(new String(cache.get(key("site1", "page"))).contains("For guests"));
+        assertTrue(new String(cache.get(editors)).contains("For editors"));
+        assertNull(cache.get(new SharedPageCache.Key("site1", "host-site1", "page", "user:ROLE_USER")));
+
+        cache.siteChanged("site1");
+        assertNull(cache.get(editors));
+    }
+
+    @Test
+    public void testChangedWhileRendering() {
+        SharedPageCache cache = cache(10000);
+        long asOf = cache.now();
+        cache.siteChanged("site1");
+        cache.put(key("site1", "page"), page("Stale"), true, asOf);
+        assertNull(cache.get(key("site1", "page")));
+
+        asOf = cache.now();
+        cache.clear();
+        cache.put(key("site2", "page"), page("Stale"), true, asOf);
+        assertNull(cache.get(key("site2", "page")));
+
+        cache.put(key("site1", "page"), page("Fresh"), true, cache.now());
+        assertNotNull(cache.get(key("site1", "page")));
+    }
+
+    @Test
+    public void testGeneration() {
+        SharedPageCache cache = cache(10000);
+        String gen1 = cache.generation("site1");
+        assertEquals(gen1, cache.generation("site2"));
+        cache.siteChanged("site1");
+        String gen2 = cache.generation("site1");
+        assertNotEquals(gen1, gen2);
+        assertEquals(gen1, cache.generation("site2"));
+        cache.clear();
+        assertNotEquals(gen2, cache.generation("site1"));
+        assertNotEquals(gen1, cache.generation("site2"));
+    }
+
+    @Test
+    public void testChangedInTransaction() {
+        SharedPageCache cache = cache(10000);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            cache.siteChanged("site1");
+            // Rendered from what is committed before the change is
+            long asOf = cache.now();
+            String gen = cache.generation("site1");
+            cache.put(key("site1", "page"), page("Before commit"), true, asOf);
+            assertNotNull(cache.get(key("site1", "page")));
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+            assertNull(cache.get(key("site1", "page")));
+            assertNotEquals(gen, cache.generation("site1"));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void testChangedInRolledBackTransaction() {
+        SharedPageCache cache = cache(10000);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            cache.siteChanged("site1");
+            // Rendered by the transaction itself, from what it wrote
+            cache.put(key("site1", "page"), page("Uncommitted"), true, cache.now());
+            assertNotNull(cache.get(key("site1", "page")));
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+            assertNull(cache.get(key("site1", "page")));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void testExpiryAndEviction() {
+        SharedPageCache cache = cache(10000);
+        cache.ttlSeconds = 0;
+        cache.put(key("site1", "expired"), page("Expired"), true, cache.now());
+        assertNull(cache.get(key("site1", "expired")));
+
+        cache.ttlSeconds = 60;
+        int size = cache.put(key("site1", "a"), page("a"), true, cache.now()).length;
+        cache.maxWeight = size * 4L;
+        cache.put(key("site1", "b"), page("b"), true, cache.now());
+        cache.put(key("site1", "c"), page("c"), true, cache.now());
+        cache.put(key("site1", "d"), page("d"), true, cache.now());
+        // Touch a so b is eldest
+        cache.get(key("site1", "a"));
+        cache.put(key("site1", "e"), page("e"), true, cache.now());
+        assertNotNull(cache.get(key("site1", "a")));
+        assertNull(cache.get(key("site1", "b")));
+
+        SharedPageCache disabled = cache(0);
+        disabled.put(key("site1", "a"), page("a"), true, disabled.now());
+        assertNull(disabled.get(key("site1", "a")));
+    }
+}
@@ -0,0 +1,126 @@
+package us.calubrecht.lazerwiki.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    void awaitWaiting(Thread[] thread) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while ((thread[0] == null || thread[0].getState() != Thread.State.TIMED_WAITING) && System.currentTimeMillis() < until) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testShared() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>(5000);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> flight.run("key", () -> {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "value " + runs.incrementAndGet();
+            }));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            Thread[] waiter = new Thread[1];
+            Future<String> second = executor.submit(() -> {
+                waiter[0] = Thread.currentThread();
+                return flight.run("key", () -> "value " + runs.incrementAndGet());
+            });
+            awaitWaiting(waiter);
+            release.countDown();
+            assertEquals("value 1", first.get(5, TimeUnit.SECONDS));
+            assertEquals("value 1", second.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        assertEquals(new SingleFlight.Stats(1, 1, 0), flight.getStats());
+
+        // Finished flights aren't reused
+        assertEquals("value 2", flight.run("key", () -> "value " + runs.incrementAndGet()));
+        assertTrue(flight.inFlight.isEmpty());
+    }
+
+    @Test
+    public void testLeaderComputesNested() {
+        SingleFlight<String, String> flight = new SingleFlight<>(5000);
+        // Waiting on its own flight would never finish
+        assertEquals("outer inner", flight.run("key", () -> "outer " + flight.run("key", () -> "inner")));
+        assertEquals(new SingleFlight.Stats(2, 0, 0), flight.getStats());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>(10);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> slow = executor.submit(() -> flight.run("key", () -> {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "slow";
+            }));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            assertEquals("own", flight.run("key", () -> "own"));
+            release.countDown();
+            assertEquals("slow", slow.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        assertEquals(new SingleFlight.Stats(2, 0, 1), flight.getStats());
+    }
+
+    @Test
+    public void testException() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>(5000);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> flight.run("key", () -> {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                throw new IllegalStateException("Render failed");
+            }));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            Thread[] waiter = new Thread[1];
+            Future<String> second = executor.submit(() -> {
+                waiter[0] = Thread.currentThread();
+                return flight.run("key", () -> "never");
+            });
+            awaitWaiting(waiter);
+            release.countDown();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+            e = assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        assertTrue(flight.inFlight.isEmpty());
+    }
+}
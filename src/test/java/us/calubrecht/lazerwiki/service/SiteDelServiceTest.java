@@ -30,6 +30,12 @@ public class SiteDelServiceTest {
     SiteDelService underTest;
     @MockBean
     SiteRepository siteRepository;
+
+    @MockBean
+    RenderedPageCache renderedPageCache;
+
+    @MockBean
+    SharedPageCache sharedPageCache;
     @MockBean
     MediaRecordRepository mediaRecordRepository;
     @MockBean
@@ -84,6 +90,8 @@ public class SiteDelServiceTest {
         verify(namespaceRepository).deleteBySite(site);
         verify(pageRepository).deleteBySite(site);
         verify(pageCacheRepository).deleteBySite(site);
+        verify(renderedPageCache).invalidateSite(site);
+        verify(sharedPageCache).siteChanged(site);
         verify(pageLockRepository).deleteBySite(site);
         verify(siteRepository).deleteById(site);
     }
@@ -0,0 +1,81 @@
+package us.calubrecht.lazerwiki.service.renderhelpers;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderBudgetTest {
+
+    @Test
+    void testNodeLimit() {
+        RenderBudget budget = new RenderBudget(0, 3, null);
+        assertTrue(budget.charge());
+        assertTrue(budget.charge());
+        assertTrue(budget.charge());
+        assertFalse(budget.isSpent());
+        assertNull(budget.getExceeded());
+        assertFalse(budget.charge());
+        assertTrue(budget.isSpent());
+        assertTrue(budget.isExceeded());
+        assertEquals(RenderBudget.Limit.NODES, budget.getExceeded());
+        assertFalse(budget.charge());
+    }
+
+    @Test
+    void testTimeLimit() throws InterruptedException {
+        RenderBudget budget = new RenderBudget(1, 0, null);
+        Thread.sleep(5);
+        assertTrue(budget.isExceeded());
+        assertFalse(budget.isSpent());
+        assertEquals(RenderBudget.Limit.TIME, budget.getExceeded());
+        assertFalse(budget.charge());
+        assertTrue(budget.isSpent());
+
+        RenderBudget unlimited = new RenderBudget(0, 0, null);
+        assertTrue(unlimited.charge());
+        assertFalse(unlimited.isExceeded());
+    }
+
+    @Test
+    void testParent() {
+        RenderBudget page = new RenderBudget(0, 3, null);
+        RenderBudget macro = new RenderBudget(0, 10, page);
+        assertTrue(macro.charge());
+        assertTrue(page.charge());
+        assertTrue(macro.charge());
+        // Macro nodes count against the page
+        assertFalse(macro.charge());
+        assertEquals(RenderBudget.Limit.NODES, macro.getExceeded());
+        assertTrue(page.isSpent());
+
+        RenderBudget page2 = new RenderBudget(0, 10, null);
+        RenderBudget macro2 = new RenderBudget(0, 1, page2);
+        assertTrue(macro2.charge());
+        assertFalse(macro2.charge());
+        // The page can carry on once the macro is done, its output is partial though
+        assertTrue(page2.charge());
+        assertFalse(page2.isExceeded());
+        assertFalse(page2.isRefused());
+        assertTrue(page2.isSpent());
+        // Nodes the macro refused aren't charged to the page
+        RenderBudget page3 = new RenderBudget(0, 2, null);
+        RenderBudget macro3 = new RenderBudget(0, 1, page3);
+        assertTrue(macro3.charge());
+        assertFalse(macro3.charge());
+        assertTrue(page3.charge());
+        assertFalse(page3.charge());
+    }
+
+    @Test
+    void testSharedByForks() {
+        RenderState state = new RenderState();
+        assertTrue(state.chargeBudget());
+        state.setBudget(new RenderBudget(0, 1, null));
+        RenderState fork = state.fork();
+        assertSame(state.getBudget(), fork.getBudget());
+        assertTrue(fork.chargeBudget());
+        assertFalse(state.chargeBudget());
+        // Not part of the map view
+        assertTrue(state.isEmpty());
+    }
+}
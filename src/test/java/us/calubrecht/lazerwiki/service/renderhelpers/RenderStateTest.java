@@ -0,0 +1,131 @@
+package us.calubrecht.lazerwiki.service.renderhelpers;
+
+import org.junit.jupiter.api.Test;
+import us.calubrecht.lazerwiki.model.HeaderRef;
+import us.calubrecht.lazerwiki.model.LinkOverride;
+import us.calubrecht.lazerwiki.model.LinkOverrideInstance;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static us.calubrecht.lazerwiki.model.RenderResult.RENDER_STATE_KEYS.*;
+
+class RenderStateTest {
+
+    @Test
+    void testMapView() {
+        RenderState state = new RenderState();
+        assertTrue(state.isEmpty());
+        state.addLink("page1");
+        state.addImage("img.jpg");
+        state.addHeader(new HeaderRef(1, "Header", "header_Header"));
+        state.addOverrideStat(new LinkOverrideInstance("a", "b", 0, 1));
+        state.setTitle("Title");
+        state.setToc(false);
+        state.setDontCache(true);
+        state.put("macroRunning:wrap", "1");
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put(LINKS.name(), Set.of("page1"));
+        expected.put(IMAGES.name(), Set.of("img.jpg"));
+        expected.put(HEADERS.name(), List.of(new HeaderRef(1, "Header", "header_Header")));
+        expected.put(OVERRIDE_STATS.name(), List.of(new LinkOverrideInstance("a", "b", 0, 1)));
+        expected.put(TITLE.name(), "Title");
+        expected.put(TOC.name(), false);
+        expected.put(DONT_CACHE.name(), true);
+        expected.put("macroRunning:wrap", "1");
+        assertEquals(expected, state);
+        assertEquals(expected, new HashMap<>(state));
+        assertEquals(8, state.size());
+
+        assertTrue(state.containsKey(TITLE.name()));
+        assertFalse(state.containsKey(ID_SUFFIX.name()));
+        assertEquals("Title", state.remove(TITLE.name()));
+        assertFalse(state.containsKey(TITLE.name()));
+        assertEquals("1", state.remove("macroRunning:wrap"));
+        assertNull(state.get("macroRunning:wrap"));
+
+        // Collections from the map view are live
+        ((Set<String>) state.computeIfAbsent(LINKS.name(), k -> new HashSet<>())).add("page2");
+        assertEquals(Set.of("page1", "page2"), state.getLinks());
+        state.put(ID_SUFFIX.name(), "_preview");
+        assertEquals("_preview", state.getIdSuffix());
+    }
+
+    @Test
+    void testOf() {
+        RenderState state = new RenderState();
+        assertSame(state, RenderState.of(state));
+        RenderState copied = RenderState.of(Map.of(FOR_CACHE.name(), true, "plainText", true));
+        assertTrue(copied.isForCache());
+        assertEquals(true, copied.get("plainText"));
+        assertTrue(RenderState.of(null).isEmpty());
+    }
+
+    @Test
+    void testForkIsCopyOnWrite() {
+        RenderState parent = new RenderState();
+        parent.addLink("parentLink");
+        parent.addHeader(new HeaderRef(1, "Header", "header_Header"));
+        parent.setTitle("Parent");
+        parent.put("macroRunning:include", "1");
+
+        RenderState child = parent.fork();
+        // Shared until written. Checked before any map view access, which unshares what it hands out.
+        assertSame(parent.links, child.links);
+        assertSame(parent.other, child.other);
+
+        child.addLink("childLink");
+        child.setTitle(null);
+        child.put("macroRunning:wrap", "1");
+        assertEquals(Set.of("parentLink"), parent.getLinks());
+        assertEquals(Set.of("parentLink", "childLink"), child.getLinks());
+        assertEquals("Parent", parent.getTitle());
+        assertFalse(child.hasTitle());
+        assertFalse(parent.containsKey("macroRunning:wrap"));
+        assertTrue(child.containsKey("macroRunning:include"));
+        assertSame(parent.headers, child.headers);
+
+        // The parent also copies before writing to what it shares
+        parent.addHeader(new HeaderRef(2, "Second", "header_Second"));
+        assertEquals(2, parent.getHeaders().size());
+        assertEquals(1, child.getHeaders().size());
+
+        // Getting a collection through the map view unshares it
+        RenderState child2 = parent.fork();
+        ((Set<String>) child2.get(LINKS.name())).add("viaMap");
+        assertEquals(Set.of("parentLink"), parent.getLinks());
+
+        assertEquals(parent, parent.fork());
+    }
+
+    @Test
+    void testInputKey() {
+        RenderState state = new RenderState();
+        state.addHeader(new HeaderRef(1, "Top", "header_Top"));
+        state.put("macroRunning:include", "1");
+        state.put("deps", new Object());
+        RenderState other = state.fork();
+        // Output isn't an input
+        other.addLink("link");
+        other.put("deps", new Object());
+        assertEquals(state.inputKey(Set.of("deps")), other.inputKey(Set.of("deps")));
+        assertNotEquals(state.inputKey(Set.of()), other.inputKey(Set.of()));
+
+        other.setIdSuffix("_1");
+        assertNotEquals(state.inputKey(Set.of("deps")), other.inputKey(Set.of("deps")));
+        other = state.fork();
+        other.addHeader(new HeaderRef(2, "Next", "header_Next"));
+        assertNotEquals(state.inputKey(Set.of("deps")), other.inputKey(Set.of("deps")));
+        other = state.fork();
+        other.put("plainText", true);
+        assertNotEquals(state.inputKey(Set.of("deps")), other.inputKey(Set.of("deps")));
+
+        // Overrides are the loading page's
+        other = state.fork();
+        other.setLinkOverrides(Map.of());
+        assertEquals(state.inputKey(Set.of("deps")), other.inputKey(Set.of("deps")));
+        other.setLinkOverrides(Map.of("moved", new LinkOverride()));
+        assertNull(other.inputKey(Set.of("deps")));
+    }
+}
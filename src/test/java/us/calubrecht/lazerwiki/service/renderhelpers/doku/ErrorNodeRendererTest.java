@@ -28,6 +28,18 @@ public class ErrorNodeRendererTest {
                 renderer.render(List.of(tree, tree2), renderContext).toString());
     }
 
+    @Test
+    public void testRenderToSink() {
+        ParseTree tree = new MockParseTree("input1");
+
+        RenderContext renderContext = new RenderContext("host", "site", "page", "user");
+        StringBuilder out = new StringBuilder("<p>before</p>");
+        renderer.render(List.of(tree), renderContext, out);
+        assertEquals(
+                "<p>before</p><div class=\"parseError\"><b>ERROR:</b> Cannot parse: [input1]</div>",
+                out.toString());
+    }
+
     @Test
     public void testRenderToPlaintext() {
         ParseTree tree = new MockParseTree("input1");
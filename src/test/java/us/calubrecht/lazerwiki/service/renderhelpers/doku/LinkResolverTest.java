@@ -0,0 +1,84 @@
+package us.calubrecht.lazerwiki.service.renderhelpers.doku;
+
+import org.junit.jupiter.api.Test;
+import us.calubrecht.lazerwiki.service.PageService;
+import us.calubrecht.lazerwiki.service.PageService.LinkTarget;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class LinkResolverTest {
+
+    LinkResolver resolver() {
+        LinkResolver resolver = new LinkResolver();
+        resolver.pageService = mock(PageService.class);
+        return resolver;
+    }
+
+    @Test
+    public void testResolve() {
+        LinkResolver resolver = resolver();
+        when(resolver.pageService.getLinkTargets(eq("host"), eq(Set.of("page1", "ns:page2")))).thenReturn(Map.of(
+                "page1", new LinkTarget(true, "Page One"),
+                "ns:page2", new LinkTarget(false, "Page 2")));
+        StringBuilder html = new StringBuilder("<a class=\"" + LinkResolver.cssClassPlaceholder("page1") + "\">" + LinkResolver.titlePlaceholder("page1") + "</a> and <a class=\"" + LinkResolver.cssClassPlaceholder("ns:page2") + "\">" + LinkResolver.titlePlaceholder("ns:page2") + "</a>");
+        StringBuilder plainText = new StringBuilder("Text " + LinkResolver.titlePlaceholder("ns:page2"));
+        resolver.resolve("host", html, plainText);
+        assertEquals("<a class=\"wikiLink\">Page One</a> and <a class=\"wikiLinkMissing\">Page 2</a>", html.toString());
+        assertEquals("Text Page 2", plainText.toString());
+        verify(resolver.pageService, times(1)).getLinkTargets(any(), any());
+    }
+
+    @Test
+    public void testNothingToResolve() {
+        LinkResolver resolver = resolver();
+        StringBuilder html = new StringBuilder("<div>No links</div>");
+        resolver.resolve("host", html);
+        assertEquals("<div>No links</div>", html.toString());
+        verify(resolver.pageService, never()).getLinkTargets(any(), any());
+    }
+
+    @Test
+    public void testStrayMarkersLeftAlone() {
+        LinkResolver resolver = resolver();
+        when(resolver.pageService.getLinkTargets(eq("host"), eq(Set.of("page")))).thenReturn(Map.of("page", new LinkTarget(true, "Title")));
+        String stray = "a\uE000b \uE000 c\uE001 \uE000";
+        StringBuilder html = new StringBuilder(stray + LinkResolver.titlePlaceholder("page") + stray);
+        resolver.resolve("host", html);
+        assertEquals(stray + "Title" + stray, html.toString());
+
+        // Not in the lookup result, treated as missing
+        html = new StringBuilder(LinkResolver.cssClassPlaceholder("other:some_page") + " " + LinkResolver.titlePlaceholder("other:some_page"));
+        LinkResolver.fill(html, Map.of());
+        assertEquals("wikiLinkMissing Some Page", html.toString());
+    }
+
+    @Test
+    public void testResolveKnown() {
+        LinkResolver resolver = resolver();
+        when(resolver.pageService.getLinkTargets(eq("host"), eq(Set.of("page2")))).thenReturn(Map.of("page2", new LinkTarget(false, "Two")));
+        Map<String, LinkTarget> known = Map.of("page1", new LinkTarget(true, "One"));
+        StringBuilder html = new StringBuilder(LinkResolver.titlePlaceholder("page1"));
+        resolver.resolve("host", known, html);
+        assertEquals("One", html.toString());
+        verify(resolver.pageService, never()).getLinkTargets(any(), any());
+
+        html = new StringBuilder(LinkResolver.titlePlaceholder("page1") + " " + LinkResolver.titlePlaceholder("page2"));
+        resolver.resolve("host", known, html);
+        assertEquals("One Two", html.toString());
+        verify(resolver.pageService, times(1)).getLinkTargets(any(), any());
+    }
+
+    @Test
+    public void testStripDelimiters() {
+        String text = "No placeholders";
+        assertSame(text, LinkResolver.stripDelimiters(text));
+        assertEquals("\uFFFDCpage\uFFFD", LinkResolver.stripDelimiters(LinkResolver.cssClassPlaceholder("page")));
+    }
+}
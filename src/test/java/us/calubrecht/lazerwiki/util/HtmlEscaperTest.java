@@ -0,0 +1,98 @@
+package us.calubrecht.lazerwiki.util;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HtmlEscaperTest {
+    final Logger logger = LogManager.getLogger(getClass());
+
+    static String reference(String input) {
+        return StringEscapeUtils.escapeHtml4(input).replaceAll("&quot;", "\"");
+    }
+
+    @Test
+    void testEscape() {
+        assertEquals("Plain text", HtmlEscaper.escape("Plain text"));
+        assertEquals("&lt;b&gt;this&lt;/b&gt; &amp; \"that\" isn't", HtmlEscaper.escape("<b>this</b> & \"that\" isn't"));
+        assertEquals("a&nbsp;b &eacute; &euro; &hearts;", HtmlEscaper.escape("a b é € ♥"));
+        assertEquals("", HtmlEscaper.escape(""));
+
+        StringBuilder sb = new StringBuilder("before ");
+        HtmlEscaper.escape(new StringBuilder("<tag>"), sb);
+        assertEquals("before &lt;tag&gt;", sb.toString());
+    }
+
+    @Test
+    void testUnescapedIsNotCopied() {
+        String input = "Nothing to escape here";
+        assertSame(input, HtmlEscaper.escape(input));
+    }
+
+    @Test
+    void testMatchesEscapeHtml4() {
+        // Every char, including lone surrogates
+        StringBuilder all = new StringBuilder();
+        for (char c = 0; c < Character.MAX_VALUE; c++) {
+            all.append(c);
+            String single = String.valueOf(c);
+            assertEquals(reference(single), HtmlEscaper.escape(single), "char " + (int)c);
+        }
+        assertEquals(reference(all.toString()), HtmlEscaper.escape(all.toString()));
+        assertEquals(reference("😀 & 😀"), HtmlEscaper.escape("😀 & 😀"));
+
+        Random random = new Random(42);
+        for (String s : randomStrings(random, 1000)) {
+            assertEquals(reference(s), HtmlEscaper.escape(s));
+        }
+    }
+
+    List<String> randomStrings(Random random, int count) {
+        String alphabet = "abcdefgh ijk.,;<>&\"' é€♥\n";
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder();
+            int len = random.nextInt(80);
+            for (int j = 0; j < len; j++) {
+                // Mostly plain text, as in a rendered page
+                sb.append(random.nextInt(10) == 0 ? alphabet.charAt(random.nextInt(alphabet.length())) : (char)('a' + random.nextInt(26)));
+            }
+            strings.add(sb.toString());
+        }
+        return strings;
+    }
+
+    // Run with the benchmark task, test excludes it
+    @Test
+    @Tag("benchmark")
+    void benchmark() {
+        List<String> inputs = randomStrings(new Random(7), 10000);
+        int iterations = 20;
+        // Warm up
+        for (int i = 0; i < iterations; i++) {
+            inputs.forEach(HtmlEscaperTest::reference);
+            inputs.forEach(HtmlEscaper::escape);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            inputs.forEach(HtmlEscaperTest::reference);
+        }
+        long referenceNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        StringBuilder sink = new StringBuilder();
+        for (int i = 0; i < iterations; i++) {
+            sink.setLength(0);
+            inputs.forEach(s -> HtmlEscaper.escape(s, sink));
+        }
+        long escaperNanos = System.nanoTime() - start;
+        logger.info("escapeHtml4 + replaceAll: {}us, HtmlEscaper: {}us", referenceNanos / 1000, escaperNanos / 1000);
+    }
+}